@@ -0,0 +1,102 @@
+package org.jboss.pnc.artsync;
+
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import jakarta.enterprise.context.ApplicationScoped;
+import lombok.extern.slf4j.Slf4j;
+import org.eclipse.microprofile.health.HealthCheck;
+import org.eclipse.microprofile.health.HealthCheckResponse;
+import org.eclipse.microprofile.health.HealthCheckResponseBuilder;
+import org.eclipse.microprofile.health.Readiness;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Circuit breakers of all backends (PNC, Indy, AWS), one per ServiceApplicationConfig#serviceName.
+ *
+ * While a breaker is open, calls to its backend fail fast and the upload pipeline is parked (see
+ * {@link #whenClosed()}) instead of turning every project version into an error. Breakers move to half-open
+ * automatically and close once trial calls succeed.
+ *
+ * Readiness only goes DOWN while a critical breaker (FaultToleranceConfig#critical) is open.
+ */
+@Slf4j
+@Readiness
+@ApplicationScoped
+public class BackendCircuitBreakers implements HealthCheck {
+
+    private final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+    // names of the breakers readiness depends on
+    private final Set<String> critical = ConcurrentHashMap.newKeySet();
+
+    // guarded by this
+    private final List<CompletableFuture<Void>> waiting = new ArrayList<>();
+
+    /**
+     * @param critical readiness goes DOWN while the breaker is open
+     */
+    public void register(CircuitBreaker breaker, boolean critical) {
+        breakers.put(breaker.getName(), breaker);
+        if (critical) {
+            this.critical.add(breaker.getName());
+        }
+        breaker.getEventPublisher().onStateTransition(event -> {
+            log.warn("Circuit breaker of {} transitioned {}.", event.getCircuitBreakerName(), event.getStateTransition());
+            wakeUpIfClosed();
+        });
+    }
+
+    /**
+     * @return future completed once no breaker is open
+     */
+    public synchronized CompletableFuture<Void> whenClosed() {
+        if (!anyOpen()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        CompletableFuture<Void> closed = new CompletableFuture<>();
+        waiting.add(closed);
+        return closed;
+    }
+
+    private void wakeUpIfClosed() {
+        List<CompletableFuture<Void>> toComplete;
+        synchronized (this) {
+            if (anyOpen() || waiting.isEmpty()) {
+                return;
+            }
+            toComplete = new ArrayList<>(waiting);
+            waiting.clear();
+        }
+        // outside the lock, dependant stages can run in the completing thread
+        toComplete.forEach(future -> future.complete(null));
+    }
+
+    private boolean anyOpen() {
+        return breakers.values().stream().anyMatch(BackendCircuitBreakers::isOpen);
+    }
+
+    private static boolean isOpen(CircuitBreaker breaker) {
+        return breaker.getState() == CircuitBreaker.State.OPEN || breaker.getState() == CircuitBreaker.State.FORCED_OPEN;
+    }
+
+    @Override
+    public HealthCheckResponse call() {
+        HealthCheckResponseBuilder responseBuilder = HealthCheckResponse.named("Backend circuit breakers");
+
+        breakers.forEach((name, breaker) -> responseBuilder.withData(name, breaker.getState().name()));
+        boolean criticalOpen = breakers.values().stream()
+            .anyMatch(breaker -> critical.contains(breaker.getName()) && isOpen(breaker));
+        if (criticalOpen) {
+            responseBuilder.down();
+        } else {
+            responseBuilder.up();
+        }
+        return responseBuilder.build();
+    }
+}
@@ -0,0 +1,34 @@
+package org.jboss.pnc.artsync;
+
+import jakarta.enterprise.inject.Produces;
+import jakarta.inject.Singleton;
+import org.jboss.pnc.artsync.concurrency.ByteAdmissionController;
+import org.jboss.pnc.artsync.config.ArtsyncConfig;
+
+import java.io.File;
+import java.nio.file.Path;
+
+public class DiskBudgetProvider {
+
+    /**
+     * Budget of bytes downloaded into download-root-dir, shared by the versions in the pipeline and the second copies
+     * of hedged downloads.
+     */
+    @Produces
+    @Singleton
+    ByteAdmissionController diskBudget(ArtsyncConfig config) {
+        return new ByteAdmissionController(config.pipelineDiskBudget().asLongValue(),
+            () -> usableSpace(config.downloadRootDir()) - config.pipelineMinFreeSpace().asLongValue());
+    }
+
+    private static long usableSpace(Path dir) {
+        // download-root-dir may not be created yet, probe the closest existing parent
+        for (Path path = dir.toAbsolutePath(); path != null; path = path.getParent()) {
+            File file = path.toFile();
+            if (file.exists()) {
+                return file.getUsableSpace();
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+}
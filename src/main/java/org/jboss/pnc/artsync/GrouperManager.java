@@ -1,10 +1,13 @@
 package org.jboss.pnc.artsync;
 
+import io.github.resilience4j.core.functions.Either;
+import io.micrometer.core.instrument.Timer;
 import io.quarkus.hibernate.orm.panache.Panache;
 import io.quarkus.narayana.jta.QuarkusTransaction;
 import io.quarkus.virtual.threads.VirtualThreads;
 import io.vertx.core.Vertx;
 import io.vertx.core.file.FileSystem;
+import io.vertx.core.http.HttpClientResponse;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.enterprise.inject.Any;
 import jakarta.inject.Inject;
@@ -16,7 +19,10 @@ import org.commonjava.atlas.maven.ident.ref.ProjectRef;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.jboss.da.common.version.VersionComparator;
 import org.jboss.da.common.version.VersionParser;
+import org.jboss.pnc.artsync.PipelineMetrics.Stage;
 import org.jboss.pnc.artsync.aws.AWSService;
+import org.jboss.pnc.artsync.concurrency.ByteAdmissionController;
+import org.jboss.pnc.artsync.concurrency.FairPermits;
 import org.jboss.pnc.artsync.config.ArtsyncConfig;
 import org.jboss.pnc.artsync.indy.IndyService;
 import org.jboss.pnc.artsync.model.Asset;
@@ -45,25 +51,38 @@ import java.io.File;
 import java.nio.file.Path;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Optional;
+import java.util.Queue;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.stream.Stream;
 
 import static java.util.stream.Collectors.groupingBy;
 import static java.util.stream.Collectors.partitioningBy;
 import static java.util.stream.Collectors.reducing;
+import static java.util.stream.Collectors.toList;
 import static java.util.stream.Collectors.toMap;
 
 @ApplicationScoped
@@ -89,10 +108,32 @@ public class GrouperManager {
 
     private final ResultsRepository rr;
 
-    private final Semaphore pipelineSemaphore;
+    private final ResultsWriter writer;
+
+    private final WorkLedger ledger;
+
+    private final ShardCoordinator shards;
+
+    private final BackendCircuitBreakers breakers;
+
+    // bounds versions being downloaded or uploaded, shared fairly by target repositories and their projects
+    private final FairPermits pipelinePermits;
+
+    // bounds bytes of project versions downloaded in download-root-dir at the same time
+    private final ByteAdmissionController diskBudget;
+
+    // bounds projects released by the analysis side that did not finish uploading yet, waiting doesn't block a thread
+    private final FairPermits uploadQueue;
+
+    private final PipelineMetrics metrics;
+
+    // identifiers of assets being uploaded by any partition, guards overlapping partitions against double uploads
+    private final InFlightRegistry inFlight = new InFlightRegistry();
 
     private final boolean dryRun;
 
+    private final boolean nativeNpmPublish;
+
     @Inject
     @VirtualThreads
     ExecutorService executor;
@@ -107,7 +148,14 @@ public class GrouperManager {
                           VersionParser vp,
                           ArtsyncConfig config,
                           ResultsRepository rr,
-                          @ConfigProperty(name = "aws.dry-run") boolean dryRun) {
+                          ResultsWriter writer,
+                          WorkLedger ledger,
+                          ShardCoordinator shards,
+                          BackendCircuitBreakers breakers,
+                          PipelineMetrics metrics,
+                          ByteAdmissionController diskBudget,
+                          @ConfigProperty(name = "aws.dry-run") boolean dryRun,
+                          @ConfigProperty(name = "aws.native-npm-publish") boolean nativeNpmPublish) {
         this.processedCache = processedCache;
         this.artifactCollector = artifactCollector;
         this.pnc = pnc;
@@ -118,11 +166,82 @@ public class GrouperManager {
         this.vp = vp;
         this.config = config;
         this.rr = rr;
-        this.pipelineSemaphore = new Semaphore(config.pipelineConcurrencyLimit(), true);
+        this.writer = writer;
+        this.ledger = ledger;
+        this.shards = shards;
+        this.breakers = breakers;
+        this.pipelinePermits = new FairPermits(config.pipelineConcurrencyLimit(), config.repositoryMapping()::weightOf);
+        this.diskBudget = diskBudget;
+        this.uploadQueue = new FairPermits(config.pipelineQueueLimit(), ign -> 1);
+        this.metrics = metrics;
         this.dryRun = dryRun;
+        this.nativeNpmPublish = nativeNpmPublish;
+        metrics.gauge("artsync.pipeline.upload.queue", uploadQueue, FairPermits::getInUse);
+        metrics.gauge("artsync.pipeline.inflight", inFlight, InFlightRegistry::size);
+        metrics.gauge("artsync.pipeline.permits.waiting", pipelinePermits, FairPermits::getNumberOfWaiting);
+        metrics.gauge("artsync.pipeline.disk.bytes.inflight", diskBudget, ByteAdmissionController::getBytesInFlight);
+        metrics.gauge("artsync.pipeline.disk.bytes.waiting", diskBudget, ByteAdmissionController::getBytesWaiting);
+        metrics.gauge("artsync.pipeline.disk.versions.waiting", diskBudget, ByteAdmissionController::getNumberOfWaiting);
     }
 
     public void processBuilds(ZonedDateTime timestamp, int limit, int partitionLimit) {
+        List<List<BuildStat>> batchedBuilds = fetchPartitions(timestamp, limit, partitionLimit);
+        Job job = QuarkusTransaction.requiringNew().call(() -> persistPlan(batchedBuilds));
+
+        runJob(job, batchedBuilds.iterator(), false);
+    }
+
+    /**
+     * Processes a Job shared by all nodes connected to the same DB. The unfinished Job is joined, if there is none,
+     * a new one is planned. Builds of the Job are leased from DB a partition at a time, so every node processes
+     * a disjoint part of it. The last node to finish its builds finishes the Job.
+     *
+     * @param timestamp end time of the last processed build of the last finished Job
+     */
+    public void processBuildsSharded(ZonedDateTime timestamp, int limit, int partitionLimit) {
+        if (dryRun) {
+            // nothing is persisted in dry run, there is no plan to share
+            log.warn("Sharding is not supported in dry run, processing builds by this node only.");
+            processBuilds(timestamp, limit, partitionLimit);
+            return;
+        }
+
+        Optional<Job> job = QuarkusTransaction.requiringNew().call(Job::getUnfinishedJob);
+        if (job.isEmpty()) {
+            List<List<BuildStat>> batchedBuilds = fetchPartitions(timestamp, limit, partitionLimit);
+            job = QuarkusTransaction.requiringNew().call(() -> {
+                if (!rr.tryLockSharedJobs()) {
+                    log.info("Another node is planning a job.");
+                    return Optional.<Job>empty();
+                }
+
+                // another node could have planned (or planned and finished) a job since the builds were fetched
+                Optional<Job> unfinished = Job.getUnfinishedJob();
+                Optional<ZonedDateTime> lastProcessed = Job.getLastFinishedJob().map(Job::getLastProcessed);
+                if (unfinished.isPresent() || (lastProcessed.isPresent() && !lastProcessed.get().isEqual(timestamp))) {
+                    return unfinished;
+                }
+                return Optional.of(persistPlan(batchedBuilds));
+            });
+        }
+
+        if (job.isEmpty()) {
+            log.info("No job to join.");
+            return;
+        }
+
+        long jobId = job.get().id;
+        log.info("Node {} processing job {}.", shards.getOwner(), jobId);
+        try {
+            runJob(job.get(), leasedPartitions(jobId, partitionLimit), true);
+        } catch (RuntimeException e) {
+            // a shared Job failing on its nodes over and over is given up as a resumed one
+            QuarkusTransaction.requiringNew().run(() -> Job.countFailedAttempt(jobId));
+            throw e;
+        }
+    }
+
+    private List<List<BuildStat>> fetchPartitions(ZonedDateTime timestamp, int limit, int partitionLimit) {
         ResultAgg<Build> builds = pnc.getBuilds(timestamp, limit);
         if (builds.hasErrors()) {
             log.error("Error getting builds: {}", builds.errors().toString());
@@ -139,20 +258,160 @@ public class GrouperManager {
                 .append(i).append(": ")
                 .append(String.join(", ", batchedBuilds.get(i).stream().map(BuildStat::getBuildID).toList()));
         }
+        log.info("Partitions: {}", partitionStat);
 
+        return batchedBuilds;
+    }
+
+    // has to be called in a transaction
+    private Job persistPlan(List<List<BuildStat>> batchedBuilds) {
         Job job = new Job();
+        job.setStartTime(ZonedDateTime.now());
+        job.persist();
+
+        if (!dryRun) {
+            // persist the plan so that the job can be resumed after a restart
+            for (int i = 0; i < batchedBuilds.size(); i++) {
+                for (var build : batchedBuilds.get(i)) {
+                    build.setJob(job);
+                    build.setPartitionIndex(i);
+                    build.persist();
+                }
+            }
+        }
+        return job;
+    }
+
+    /**
+     * Continues a Job that was interrupted (f.e. by a restart). Builds that finished are not analyzed again and
+     * versions persisted before the interruption are skipped. Only the partitioning of builds is persisted, unfinished
+     * builds are collected and filtered again (which also drops assets persisted before the interruption).
+     *
+     * @param jobId ID of an unfinished job
+     */
+    public void resumeJob(long jobId) {
+        Job job = QuarkusTransaction.requiringNew().call(() -> {
+            Job found = Job.<Job>findById(jobId);
+            if (found != null) {
+                // counted before the attempt, a resume that keeps failing is given up
+                found.resumeAttempts++;
+            }
+            return found;
+        });
+        if (job == null) {
+            throw new IllegalArgumentException("Job " + jobId + " doesn't exist.");
+        }
+
+        List<List<BuildStat>> batchedBuilds = new ArrayList<>(job.getBuilds().stream()
+            .filter(build -> !build.finished)
+            .sorted(Comparator.comparing(BuildStat::getPartitionIndex, Comparator.nullsLast(Comparator.naturalOrder()))
+                .thenComparing(BuildStat::getTimestamp, Comparator.nullsLast(Comparator.naturalOrder())))
+            .collect(groupingBy(build -> Optional.ofNullable(build.getPartitionIndex()).orElse(Integer.MAX_VALUE),
+                TreeMap::new,
+                toList()))
+            .values());
+        log.info("Resuming job {} with {} unfinished builds in {} partitions.",
+            job.id, batchedBuilds.stream().mapToInt(List::size).sum(), batchedBuilds.size());
+
+        runJob(job, batchedBuilds.iterator(), false);
+    }
+
+    /**
+     * Gives up an unfinished Job. Its last processed build is moved back before the first unfinished build, so that
+     * the next Job fetches the unfinished builds again.
+     *
+     * @param jobId ID of an unfinished job
+     */
+    public void failJob(long jobId) {
         QuarkusTransaction.requiringNew().run(() -> {
-            job.setStartTime(ZonedDateTime.now());
-            job.persist();
+            Job job = Job.findById(jobId);
+            if (job == null || job.endTime != null) {
+                return;
+            }
+
+            Optional<ZonedDateTime> firstUnfinished = job.getBuilds().stream()
+                .filter(build -> !build.finished)
+                .map(BuildStat::getTimestamp)
+                .filter(timestamp -> timestamp != null)
+                .min(Comparator.naturalOrder());
+            job.lastProcessed = job.getBuilds().stream()
+                .filter(build -> build.finished)
+                .map(BuildStat::getTimestamp)
+                .filter(timestamp -> timestamp != null && firstUnfinished.map(timestamp::isBefore).orElse(true))
+                .max(Comparator.naturalOrder())
+                .orElse(null); // the last finished Job before this one is used
+            job.failed = true;
+            job.endTime = ZonedDateTime.now();
         });
+    }
 
+    private Iterator<List<BuildStat>> leasedPartitions(long jobId, int partitionLimit) {
+        return new Iterator<>() {
+            private List<BuildStat> next;
 
-        log.info("Partitions: {}", partitionStat);
-        for (int i = 0; i < batchedBuilds.size(); i++) {
-            var partition = batchedBuilds.get(i);
-            log.info("Processing partition {}: {}", i, String.join(", ", partition.stream().map(BuildStat::getBuildID).toList()));
+            // builds leased by this run, this node doesn't lease them again
+            private final Set<Long> held = new HashSet<>();
 
-            uploadBuilds(partition, job);
+            @Override
+            public boolean hasNext() {
+                if (next == null) {
+                    next = shards.leasePartition(jobId, partitionLimit, held);
+                    next.forEach(build -> held.add(build.id));
+                }
+                return !next.isEmpty();
+            }
+
+            @Override
+            public List<BuildStat> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                List<BuildStat> leased = next;
+                next = null;
+                return leased;
+            }
+        };
+    }
+
+    /**
+     * @param sharded the Job is shared with other nodes, its stats are computed from its builds when it finishes
+     */
+    private void runJob(Job job, Iterator<List<BuildStat>> partitions, boolean sharded) {
+        int prefetch = Math.max(0, config.cron().partitionPrefetch());
+        Deque<Partition> analyzed = new ArrayDeque<>();
+        try {
+            for (int i = 0; ; i++) {
+                // start analysis of the current partition and of the following ones while the current one uploads
+                while (analyzed.size() <= prefetch && partitions.hasNext()) {
+                    analyzed.add(analyzePartition(partitions.next(), job));
+                }
+
+                var partition = analyzed.poll();
+                if (partition == null) {
+                    break;
+                }
+                log.info("Processing partition {}: {}", i, String.join(", ", partition.builds().stream().map(BuildStat::getBuildID).toList()));
+
+                // assets claimed by partitions analyzed ahead are uploaded by them, they can't be waited for
+                uploadPartition(partition, sharded,
+                    identifier -> analyzed.stream().anyMatch(ahead -> ahead.claimed().contains(identifier)));
+            }
+        } finally {
+            // partitions analyzed ahead of a failure would keep their assets in-flight forever
+            analyzed.forEach(this::releasePartition);
+            if (sharded) {
+                // builds of a failed partition and of partitions leased ahead are left to any node
+                releaseLeases(job.id);
+            }
+        }
+
+        if (sharded) {
+            if (rr.finishSharedJob(job.id)) {
+                log.info("Job {} finished.", job.id);
+            } else {
+                log.info("No builds of job {} left to lease, other nodes are finishing it.", job.id);
+            }
+            return;
         }
 
         QuarkusTransaction.requiringNew().run(() -> {
@@ -165,6 +424,15 @@ public class GrouperManager {
             job.id, job.successes, job.errors, job.cached, job.filtered, job.total);
     }
 
+    // doesn't hide the failure of the Job, leases expire if they can't be released
+    private void releaseLeases(long jobId) {
+        try {
+            shards.releaseLeases(jobId);
+        } catch (RuntimeException e) {
+            log.warn("Couldn't release leases of job {}.", jobId, e);
+        }
+    }
+
     public void uploadBuildsIds(List<String> buildIds, Job job) {
         List<BuildStat> builds = buildIds.stream().map(BuildStat::new).toList();
 
@@ -176,16 +444,88 @@ public class GrouperManager {
     }
 
     public void uploadBuilds(List<BuildStat> builds, Job job) {
-        log.info("Processing these build IDs {}", builds.stream().map(BuildStat::getBuildID).toList());
+        uploadPartition(analyzePartition(builds, job), false, identifier -> false);
+    }
+
+    /**
+     * Builds of a partition together with their (possibly still running) analysis.
+     *
+     * @param builds builds of the partition
+     * @param projects grouped projects of each build, filtered by processed cache and in-flight assets
+     * @param claimed identifiers this partition claimed in the in-flight registry
+     * @param deferred assets claimed by somebody else when this partition was analyzed
+     */
+    private record Partition(List<BuildStat> builds,
+                             List<CompletableFuture<List<ProjectAssets<?, ?>>>> projects,
+                             Set<String> claimed,
+                             Queue<Deferred> deferred) {}
 
+    /**
+     * @param asset asset skipped because it was in-flight
+     * @param ownerReleased completed once the owner of the claim persisted its results
+     */
+    private record Deferred(Asset asset, CompletableFuture<Void> ownerReleased) {}
+
+    private Partition analyzePartition(List<BuildStat> builds, Job job) {
         if (job != null) {
             builds.forEach(build -> build.setJob(job));
         }
 
-        List<ProjectAssets<?, ?>> projectAssets = analyzeBuilds(builds);
-        List<Results<? extends Asset>> results = uploadAssets(projectAssets);
+        Set<String> claimed = ConcurrentHashMap.newKeySet(builds.size() * 100);
+        Queue<Deferred> deferred = new ConcurrentLinkedQueue<>();
+        var projects = new ArrayList<CompletableFuture<List<ProjectAssets<?, ?>>>>();
+        for (var build : builds) {
+            projects.add(collectAndFilter(build, inFlight, claimed, deferred)
+                .thenApply(this::group)
+                .thenApplyAsync(buildProjects -> {
+                    ledger.plan(build, buildProjects);
+                    return buildProjects;
+                }, executor));
+        }
+
+        return new Partition(builds, projects, claimed, deferred);
+    }
+
+    private void releasePartition(Partition partition) {
+        // claims are made during analysis, wait for it to finish
+        CompletableFuture.allOf(partition.projects().toArray(new CompletableFuture[0]))
+            .handle((ign, t) -> null)
+            .join();
+        releaseClaims(partition);
+    }
+
+    private void releaseClaims(Partition partition) {
+        // the identifiers can be claimed by somebody else right after, they must not be released twice
+        inFlight.releaseAll(partition.claimed());
+        partition.claimed().clear();
+    }
 
-        collectStatsAndPersistResults(results, builds);
+    /**
+     * @param ownedAhead tests whether an identifier is claimed by a partition that will be uploaded after this one
+     */
+    private void uploadPartition(Partition partition, boolean sharded, Predicate<String> ownedAhead) {
+        List<BuildStat> builds = partition.builds();
+        log.info("Processing these build IDs {}", builds.stream().map(BuildStat::getBuildID).toList());
+
+        try {
+            if (!dryRun) {
+                // AssetEntries reference the builds and are persisted as soon as a project finishes
+                rr.persistBuilds(builds, !sharded);
+            }
+
+            streamPartition(partition);
+
+            // results are persisted, owners of deferred assets can be waiting for the claims of this partition
+            releaseClaims(partition);
+            requeueDeferred(partition, ownedAhead);
+
+            ledger.flush();
+            updateStats(builds, sharded);
+        } finally {
+            // results are persisted and committed to processed cache at this point
+            releasePartition(partition);
+            ledger.forget(builds);
+        }
 
         log.info("Number of processed builds in partition: {}", builds.size());
         builds.forEach(stat -> log.info(
@@ -193,12 +533,9 @@ public class GrouperManager {
             stat.buildID, stat.successes, stat.errors, stat.cached, stat.filtered, stat.total));
     }
 
-    private void collectStatsAndPersistResults(List<Results<? extends Asset>> results, List<BuildStat> builds) {
-        // increase build stats
-        for (var result : results) {
-            result.successes().forEach(succ -> succ.result().asset().getProcessingBuildID().incSuccess(1));
-            result.errors().forEach(err -> err.context().getProcessingBuildID().incError(1));
-        }
+    private void updateStats(List<BuildStat> builds, boolean sharded) {
+        // build stats were increased by ResultsWriter
+        builds.forEach(stat -> stat.finished = true);
 
         builds.stream()
             .filter(stat -> stat.getJob() != null)
@@ -219,10 +556,238 @@ public class GrouperManager {
 
 
         if (!dryRun) {
-            rr.persistResults(results, builds);
+            // a shared Job is updated by other nodes too, it's aggregated from its builds when it finishes
+            rr.updateBuilds(builds, !sharded);
         }
     }
 
+    /**
+     * Streams builds through collect -> filter -> group -> download -> upload -> persist.
+     *
+     * Projects of a build are released as soon as that build is collected, the upload queue
+     * (artsync.pipeline-queue-limit) bounds how many of them download/upload at the same time. Versions of one project
+     * (G:A, NPM package) can come from several builds of the partition. Versions from a build collected while the
+     * project still waits for the queue are merged into it and uploaded in version order, versions from a build
+     * collected after its upload started are chained after it, so one project never uploads concurrently. Metadata
+     * (Maven latest/release, NPM latest) only moves forward, a chained older version doesn't regress it.
+     * Assets have to be unique, the first build to claim an Asset is the one uploading it.
+     *
+     * @param partition analyzed partition
+     */
+    private void streamPartition(Partition partition) {
+        ProjectReleases releases = new ProjectReleases();
+        List<CompletableFuture<Void>> builds = partition.projects().stream()
+            .map(buildProjects -> buildProjects.thenCompose(releases::release))
+            .toList();
+
+        CompletableFuture.allOf(builds.toArray(new CompletableFuture[0])).join();
+        log.info("All builds of partition uploaded, {} projects released, {} deferred assets claimed by others.",
+            releases.released(), partition.deferred().size());
+    }
+
+    private void uploadProjects(List<ProjectAssets<?, ?>> projects) {
+        ProjectReleases releases = new ProjectReleases();
+        CompletableFuture<Void> uploads = releases.release(projects);
+
+        log.info("{} projects released.", releases.released());
+        uploads.join();
+    }
+
+    /**
+     * Resolves assets skipped during analysis because another partition (or a manual upload) had them in-flight.
+     * Assets persisted by their owner are counted as processed, assets whose owner failed are claimed again and
+     * uploaded by this partition, so that a failed owner doesn't drop them.
+     *
+     * @param ownedAhead tests whether an identifier is claimed by a partition that will be uploaded after this one
+     */
+    private void requeueDeferred(Partition partition, Predicate<String> ownedAhead) {
+        List<Asset> requeued = new ArrayList<>();
+        for (Deferred deferred; (deferred = partition.deferred().poll()) != null; ) {
+            Asset asset = deferred.asset();
+            String identifier = asset.getIdentifier();
+            if (!deferred.ownerReleased().isDone() && ownedAhead.test(identifier)) {
+                // a following partition of the job uploads it
+                asset.getProcessingBuildID().incCached();
+                continue;
+            }
+
+            deferred.ownerReleased().join();
+            if (!inFlight.claim(identifier)) {
+                // claimed by yet another pipeline, that one uploads it
+                asset.getProcessingBuildID().incCached();
+                continue;
+            }
+            partition.claimed().add(identifier);
+            if (!processedCache.shouldProcess(identifier)) {
+                // the owner persisted it
+                asset.getProcessingBuildID().incCached();
+                continue;
+            }
+            requeued.add(asset);
+        }
+
+        if (!requeued.isEmpty()) {
+            log.info("Uploading {} assets whose owners in other partitions failed.", requeued.size());
+            metrics.count("artsync.pipeline.inflight.requeued", requeued.size());
+            uploadProjects(group(requeued));
+        }
+    }
+
+    /**
+     * Releases projects into the upload queue, one release per project identity at a time (see
+     * {@link #streamPartition}).
+     */
+    private final class ProjectReleases {
+
+        private final Map<String, Release> releases = new HashMap<>();
+
+        private final AtomicInteger uploaded = new AtomicInteger(0);
+
+        private int released;
+
+        CompletableFuture<Void> release(List<ProjectAssets<?, ?>> projects) {
+            return CompletableFuture.allOf(projects.stream()
+                .map(this::release)
+                .toArray(CompletableFuture[]::new));
+        }
+
+        synchronized int released() {
+            return released;
+        }
+
+        private CompletableFuture<Void> release(ProjectAssets<?, ?> project) {
+            String key = projectKey(project);
+            Release previous;
+            Release release;
+            synchronized (this) {
+                previous = releases.get(key);
+                if (previous != null && previous.waiting != null) {
+                    previous.waiting.add(project);
+                    return previous.persisted;
+                }
+                release = new Release(project);
+                releases.put(key, release);
+                released++;
+            }
+
+            CompletableFuture<?> after = previous == null
+                ? CompletableFuture.completedFuture(null)
+                : previous.persisted.handle((ign, t) -> null);
+            after.thenCompose(ign -> uploadQueue.acquire("", key, 1))
+                .thenCompose(ign -> {
+                    ProjectAssets<?, ?> merged = mergeProjects(take(release));
+                    return uploadAssets(merged)
+                        .thenCompose(writer::write) // results don't stay on heap until the end of partition
+                        .thenAccept(res -> {
+                            ledger.markPersisted(merged);
+                            if (uploaded.incrementAndGet() % 100 == 0) {
+                                log.info("UPLOADED {} projects.", uploaded.get());
+                            }
+                        })
+                        .whenComplete((res, t) -> uploadQueue.release());
+                })
+                .whenComplete((res, t) -> {
+                    if (t != null) {
+                        release.persisted.completeExceptionally(t);
+                    } else {
+                        release.persisted.complete(null);
+                    }
+                });
+            return release.persisted;
+        }
+
+        private synchronized List<ProjectAssets<?, ?>> take(Release release) {
+            // versions of builds collected from now on are chained after this release
+            List<ProjectAssets<?, ?>> projects = release.waiting;
+            release.waiting = null;
+            return projects;
+        }
+    }
+
+    private static final class Release {
+
+        // projects waiting for the upload queue, null once the upload started
+        private List<ProjectAssets<?, ?>> waiting = new ArrayList<>();
+
+        private final CompletableFuture<Void> persisted = new CompletableFuture<>();
+
+        private Release(ProjectAssets<?, ?> project) {
+            waiting.add(project);
+        }
+    }
+
+    /**
+     * Merges projects with the same identity coming from different builds. Versions keep their identity (they are
+     * tracked by the WorkLedger per build), only their order is recomputed.
+     */
+    private ProjectAssets<?, ?> mergeProjects(List<ProjectAssets<?, ?>> same) {
+        return same.size() == 1
+            ? same.getFirst()
+            : toProject(same.stream()
+                .<VersionAssets<? extends Asset>>flatMap(project -> project.getProjectVersionAssets().stream())
+                .toList());
+    }
+
+    private static String projectKey(ProjectAssets<?, ?> project) {
+        // same identity as in groupByProject
+        return project.projectIdentifier() + "|" + project.getProjectVersionAssets().getFirst().getSourceRepository().getRepositoryPath();
+    }
+
+    private CompletableFuture<List<Asset>> collectAndFilter(BuildStat build,
+                                                            InFlightRegistry registry,
+                                                            Set<String> claimed,
+                                                            Collection<Deferred> deferred) {
+        Timer.Sample collect = metrics.enter(Stage.COLLECT);
+        return artifactCollector.collectAssetsAsync(build)
+            .whenComplete((buildAssets, t) -> metrics.exit(Stage.COLLECT, collect, buildAssets == null ? 0 : buildAssets.size()))
+            .thenApply(buildAssets -> {
+                Timer.Sample filter = metrics.enter(Stage.FILTER);
+                buildAssets.removeIf(asset -> {
+                    String identifier = asset.getIdentifier();
+                    // Assets have to be unique (claim BEFORE checking the cache, see InFlightRegistry)
+                    if (!registry.claim(identifier)) {
+                        if (claimed.contains(identifier)) {
+                            // another build of the same partition uploads it
+                            asset.getProcessingBuildID().incCached();
+                        } else {
+                            // resolved after the partition uploads, the owner may fail
+                            deferred.add(new Deferred(asset, registry.whenReleased(identifier)));
+                            metrics.count("artsync.pipeline.inflight.deferred", 1);
+                        }
+                        return true;
+                    }
+                    claimed.add(identifier);
+
+                    // FILTER by processed cache
+                    if (!processedCache.shouldProcess(identifier)) {
+                        claimed.remove(identifier);
+                        registry.release(identifier);
+                        asset.getProcessingBuildID().incCached();
+                        return true;
+                    }
+                    return false;
+                });
+                metrics.exit(Stage.FILTER, filter, buildAssets.size());
+                return buildAssets;
+            });
+    }
+
+    private List<ProjectAssets<?, ?>> group(Collection<Asset> assets) {
+        if (assets.isEmpty()) {
+            return List.of();
+        }
+        Timer.Sample group = metrics.enter(Stage.GROUP);
+
+        // Group by G:A:V, N:V...
+        List<VersionAssets<? extends Asset>> versionAssets = groupByVersion(assets);
+
+        // Group by G:A, N... + Versions have to be correctly ordered
+        List<ProjectAssets<?, ?>> projects = groupByProject(versionAssets);
+        metrics.exit(Stage.GROUP, group, projects.size());
+
+        return projects;
+    }
+
     public List<Results<? extends Asset>> uploadAssets(List<ProjectAssets<?, ?>> projectAssets) {
         AtomicInteger inc = new AtomicInteger(0);
         var results = new CopyOnWriteArrayList<Results<? extends Asset>>();
@@ -246,64 +811,79 @@ public class GrouperManager {
     }
 
     public List<ProjectAssets<?, ?>> analyzeBuilds(List<BuildStat> builds) {
-        // Assets have to be unique
+        // Assets have to be unique, analysis is not uploading so it doesn't claim in the shared registry
+        InFlightRegistry registry = new InFlightRegistry();
+        Set<String> claimed = ConcurrentHashMap.newKeySet(builds.size() * 100);
         Set<Asset> assets = ConcurrentHashMap.newKeySet(builds.size() * 100);
 
         var allFutures = new CopyOnWriteArrayList<CompletableFuture<Void>>();
         for (var id : builds) {
-            var future = artifactCollector.collectAssetsAsync(id)
-                .thenApply(buildAssets -> {
-                    // FILTER by processed cache
-                    buildAssets.removeIf(asset -> {
-                        boolean shouldProcess = !processedCache.shouldProcess(asset.getIdentifier());
-                        if (shouldProcess) asset.getProcessingBuildID().incCached();
-
-                        return shouldProcess;
-                    });
-                    return buildAssets;
-                })
-                .thenAccept(assets::addAll);
-            allFutures.add(future);
+            allFutures.add(collectAndFilter(id, registry, claimed, new ConcurrentLinkedQueue<>()).thenAccept(assets::addAll));
         }
         CompletableFuture.allOf(allFutures.toArray(new CompletableFuture[0])).join();
 
-        // Group by G:A:V, N:V...
-        List<VersionAssets<? extends Asset>> versionAssets = groupByVersion(assets);
-
-        // Group by G:A, N... + Versions have to be correctly ordered
-        return groupByProject(versionAssets);
+        return group(assets);
     }
 
+    /**
+     * Uploads all versions of a project.
+     *
+     * Versions are downloaded and their files uploaded concurrently. Maven and NPM versions are then published in
+     * version order because publishing updates project-wide data (maven-metadata.xml, npm dist-tag "latest"), a version
+     * whose predecessor failed is not published. Generic-proxy versions have no such data, a critical error of one of
+     * them cancels every version that didn't start uploading yet.
+     */
     public CompletableFuture<List<Results<? extends Asset>>> uploadAssets(ProjectAssets<?, ?> project) {
         var projectRootDir = determineProjectDir(project, config.downloadRootDir());
-        CompletableFuture<? extends Results<? extends Asset>> future = null;
+        boolean ordered = !(project instanceof GPNamespaceProjectAssets);
+        AtomicBoolean cancelled = new AtomicBoolean(false);
+        // completed with true once the predecessor is published
+        CompletableFuture<Boolean> publishTurn = CompletableFuture.completedFuture(true);
+        Set<Path> versionRoots = new HashSet<>();
         List<CompletableFuture<? extends Results<? extends Asset>>> futures = new ArrayList<>();
 
-        // Compose versions sequentially (thenCompose)
         for (var version : project.getProjectVersionAssets()) {
-            Path versionRoot = determineVersionDir(projectRootDir, version);
-            if (future == null) {
-                future = handleProjectVersion(version, versionRoot);
-            } else {
-                future = future.thenCompose((prev) -> {
-                    if (prev == null || prev.haveCriticalErrors()) {
-                        log.error("Cancelling version " + version.versionIdentifier() + " because last one was error or cancelled.");
+            if (ledger.isPersisted(version)) {
+                // done before the job was interrupted
+                futures.add(CompletableFuture.completedFuture(new Results<>()));
+                continue;
+            }
+            Path versionDir = determineVersionDir(projectRootDir, version);
+            Path versionRoot = versionDir;
+            // the same version can come from several builds of a merged project, they must not share the directory
+            for (int copy = 2; !versionRoots.add(versionRoot); copy++) {
+                versionRoot = versionDir.resolveSibling(versionDir.getFileName() + "-" + copy);
+            }
+            Path root = versionRoot;
+            long versionBytes = downloadedBytes(version);
+
+            // reservations are made in version order, so a waiting version never holds bytes its predecessor needs
+            CompletableFuture<Boolean> turn = publishTurn;
+            CompletableFuture<? extends Results<? extends Asset>> future = downloadVersion(project, version, root, versionBytes)
+                .thenCompose(res -> {
+                    if (!ordered && cancelled.get()) {
+                        log.error("Cancelling version " + version.versionIdentifier() + " because previous one was error or cancelled.");
                         return CompletableFuture.completedFuture(null);
-                    } else {
-                        return handleProjectVersion(version, versionRoot);
                     }
+                    return uploadVersion(project, version, root, res, turn);
+                })
+                .whenComplete((uploaded, t) -> {
+                    if (t != null || (uploaded != null && uploaded.haveCriticalErrors())) cancelled.set(true);
                 });
+            if (ordered) {
+                publishTurn = future.handle((uploaded, t) -> t == null && uploaded != null && !uploaded.haveCriticalErrors());
             }
+            future = cleanUpVersion(future, version, root, versionBytes);
 
             futures.add(future);
         }
 
-        if (future == null) {
+        if (futures.isEmpty()) {
             // should never happen (only if project has no version)
             return CompletableFuture.completedFuture(List.of());
         }
 
-        return future.thenApply((ign) -> {
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).thenApply((ign) -> {
             List<Results<? extends Asset>> toReturn = new ArrayList<>();
             for (int i = 0; i < futures.size(); i++) {
                 // at this point all futures[] have to be finished
@@ -335,34 +915,130 @@ public class GrouperManager {
         });
     }
 
-    private CompletableFuture<? extends Results<? extends Asset>> handleProjectVersion(VersionAssets<?> version, Path versionRoot) {
-        return CompletableFuture.runAsync(() -> {
-            try {
-                pipelineSemaphore.acquire();
-            } catch (InterruptedException e) {
-                throw new IllegalStateException("", e);
-            }}, executor)
-            .thenCompose(ign -> fs.mkdirs(versionRoot.toAbsolutePath().toString()).toCompletionStage().toCompletableFuture())
-            .thenCompose(ign -> indy.downloadToDirectory(version, versionRoot, config.overrideIndyUrl()))
-            .thenCompose(res -> {
-                CompletableFuture<? extends Results<? extends Asset>> future;
-                if (res.hasErrors()) {
-                    future = CompletableFuture.completedFuture(convertResults(version, res));
-                } else {
-                    future = aws.uploadVersion(version, versionRoot);
-                }
-                return future;
+    private CompletableFuture<ResultAgg<File>> downloadVersion(ProjectAssets<?, ?> project, VersionAssets<?> version, Path versionRoot, long versionBytes) {
+        if (isStreamed(version)) {
+            // content is streamed from Indy while uploading
+            return CompletableFuture.completedFuture(new ResultAgg<>(List.of(), List.of()));
+        }
+
+        return diskBudget.reserve(versionBytes)
+            .thenCompose(reserved -> withPipelinePermit(project, version, () ->
+                fs.mkdirs(versionRoot.toAbsolutePath().toString()).toCompletionStage().toCompletableFuture()
+                    .thenCompose(ign -> {
+                        Timer.Sample download = metrics.enter(Stage.DOWNLOAD);
+                        return indy.downloadToDirectory(version, versionRoot, config.overrideIndyUrl())
+                            .whenComplete((res, t) -> metrics.exit(Stage.DOWNLOAD, download, res == null ? 0 : res.successes().size()));
+                    })));
+    }
+
+    /**
+     * Uploads files of the version and publishes it once its turn comes. The pipeline permit is not held while
+     * waiting for the turn.
+     *
+     * @param turn completed with true once the version can be published, false if it must not be
+     * @return null if the version was not published
+     */
+    private CompletableFuture<Results<? extends Asset>> uploadVersion(ProjectAssets<?, ?> project,
+                                                                      VersionAssets<?> version,
+                                                                      Path versionRoot,
+                                                                      ResultAgg<File> downloaded,
+                                                                      CompletableFuture<Boolean> turn) {
+        if (downloaded.hasErrors()) {
+            return CompletableFuture.completedFuture(convertResults(version, downloaded));
+        }
+
+        return withPipelinePermit(project, version, () -> {
+                Timer.Sample upload = metrics.enter(Stage.UPLOAD);
+                CompletableFuture<? extends Results<? extends Asset>> uploading = isStreamed(version)
+                    ? streamVersion((GPNPVAssets) version)
+                    : aws.uploadVersionFiles(version, versionRoot);
+                return uploading
+                    .<Results<? extends Asset>>thenApply(files -> files)
+                    .whenComplete((uploadRes, t) -> metrics.exit(Stage.UPLOAD, upload, version.assets().size()));
             })
-            .thenCompose(ass -> {
-                if (config.cleanArtifacts()) {
-                    return fs.deleteRecursive(versionRoot.toAbsolutePath().toString(), true)
-                        .toCompletionStage()
-                        .thenApply(ign -> ass);
-                } else {
-                    return CompletableFuture.completedStage(ass);
+            .thenCompose(files -> {
+                if (isStreamed(version)) {
+                    return CompletableFuture.completedFuture(files);
                 }
+                return turn.thenCompose(publish -> {
+                    if (!publish) {
+                        log.error("Not publishing version " + version.versionIdentifier() + " because previous one was error or cancelled.");
+                        return CompletableFuture.completedFuture(null);
+                    }
+                    return withPipelinePermit(project, version, () -> aws.publishVersion(version, versionRoot, files)
+                        .<Results<? extends Asset>>thenApply(published -> published));
+                });
+            });
+    }
+
+    private CompletableFuture<Results<GPAsset>> streamVersion(GPNPVAssets version) {
+        GPAsset asset = version.assets().getFirst();
+        return aws.uploadGenericProxyStreaming(version, () -> indy.openStream(asset, config.overrideIndyUrl())
+            .thenApply(opened -> switch (opened) {
+                case Result.Success<HttpClientResponse>(var content) -> Either.<UploadResult.Error<GPAsset>, HttpClientResponse>right(content);
+                case Result.Error err -> Either.<UploadResult.Error<GPAsset>, HttpClientResponse>left(mapIndyError(err, asset));
+            }));
+    }
+
+    private boolean isStreamed(VersionAssets<?> version) {
+        return version instanceof GPNPVAssets && config.streamGenericProxy();
+    }
+
+    /**
+     * Runs the work holding a pipeline permit. The permit is held only while downloading or uploading, never while
+     * waiting for another version. Permits are shared fairly by target AWS repositories (weighted by
+     * artsync.repositories.aws-repository-weights) and by projects within a repository.
+     */
+    private <T> CompletableFuture<T> withPipelinePermit(ProjectAssets<?, ?> project,
+                                                        VersionAssets<?> version,
+                                                        Supplier<CompletableFuture<T>> work) {
+        String repository = Optional.ofNullable(config.repositoryMapping().mapToAws(version.getSourceRepository())).orElse("");
+
+        // a backend with an open circuit breaker parks the pipeline instead of failing every version
+        return breakers.whenClosed()
+            .thenCompose(ign -> pipelinePermits.acquire(repository, projectKey(project), version.assets().size()))
+            .thenComposeAsync(ign -> {
+                CompletableFuture<T> running;
+                try {
+                    running = work.get();
+                } catch (RuntimeException e) {
+                    running = CompletableFuture.failedFuture(e);
+                }
+                return running.whenComplete((res, t) -> pipelinePermits.release());
+            }, executor);
+    }
+
+    private <T> CompletableFuture<T> cleanUpVersion(CompletableFuture<T> future, VersionAssets<?> version, Path versionRoot, long versionBytes) {
+        return future
+            .handle((res, t) -> {
+                // streamed versions never create their directory
+                CompletableFuture<Void> delete = config.cleanArtifacts() && !isStreamed(version)
+                    ? fs.deleteRecursive(versionRoot.toAbsolutePath().toString(), true).toCompletionStage().toCompletableFuture()
+                    : CompletableFuture.completedFuture(null);
+                return delete
+                    .handle((ign, deleteErr) -> {
+                        if (deleteErr != null) {
+                            log.warn("Couldn't clean up " + versionRoot, deleteErr);
+                        }
+                        diskBudget.release(versionBytes);
+                        if (t != null) {
+                            throw new CompletionException(t);
+                        }
+                        return res;
+                    });
             })
-            .whenComplete((ass, ign) -> pipelineSemaphore.release());
+            .thenCompose(Function.identity());
+    }
+
+    private long downloadedBytes(VersionAssets<?> version) {
+        if (version instanceof NpmNVAssets && !nativeNpmPublish) {
+            // NPM CLI publishes directly from Indy URLs, nothing is downloaded
+            return 0;
+        }
+        if (isStreamed(version)) {
+            return 0;
+        }
+        return version.assets().stream().mapToLong(Asset::getSize).sum();
     }
 
     private <T extends Asset> Results<T> convertResults(VersionAssets<T> version, ResultAgg<File> res) {
@@ -461,11 +1137,17 @@ public class GrouperManager {
                     pver.assets().getFirst().getSourceRepository().getRepositoryPath()))) // source repository
             .values()
             .stream()
-            .map(vers -> switch (vers.getFirst()) {
-                case MvnGAVAssets x -> new MvnGAAssets(vers.stream().map(MvnGAVAssets.class::cast)
-                    .sorted((gav1, gav2) -> {
-                        String v1 = gav1.getVersionRef().getVersionString();
-                        String v2 = gav2.getVersionRef().getVersionString();
+            .map(this::toProject)
+            .toList();
+    }
+
+    // versions of one project, ordered as they have to be uploaded
+    private ProjectAssets<?, ?> toProject(List<VersionAssets<? extends Asset>> vers) {
+        return switch (vers.getFirst()) {
+            case MvnGAVAssets x -> new MvnGAAssets(vers.stream().map(MvnGAVAssets.class::cast)
+                .sorted((gav1, gav2) -> {
+                    String v1 = gav1.getVersionRef().getVersionString();
+                    String v2 = gav2.getVersionRef().getVersionString();
 //                        SuffixedVersion parse1 = vp.parse(v1);
 //                        SuffixedVersion parse2 = vp.parse(v2);
 //
@@ -476,16 +1158,15 @@ public class GrouperManager {
 //                            log.warn("Consider adding a new version-suffix. Found {}", parse2.getOriginalVersion());
 //                        }
 
-                        return vc.compare(v1, v2);}
-                    ).toList());
-                case NpmNVAssets x -> new NpmProjectAssets(vers.stream().map(NpmNVAssets.class::cast).sorted((nv1, nv2) -> {
-                        String v1 = nv1.getPackageRef().getVersionString();
-                        String v2 = nv2.getPackageRef().getVersionString();
-                        return vc.compare(v1, v2);}
-                    ).toList());
-                case GPNPVAssets x -> new GPNamespaceProjectAssets(vers.stream().map(GPNPVAssets.class::cast).toList());
-            })
-            .toList();
+                    return vc.compare(v1, v2);}
+                ).toList());
+            case NpmNVAssets x -> new NpmProjectAssets(vers.stream().map(NpmNVAssets.class::cast).sorted((nv1, nv2) -> {
+                    String v1 = nv1.getPackageRef().getVersionString();
+                    String v2 = nv2.getPackageRef().getVersionString();
+                    return vc.compare(v1, v2);}
+                ).toList());
+            case GPNPVAssets x -> new GPNamespaceProjectAssets(vers.stream().map(GPNPVAssets.class::cast).toList());
+        };
     }
 
     private List<VersionAssets<? extends Asset>> groupByVersion(Collection<Asset> assets) {
@@ -0,0 +1,51 @@
+package org.jboss.pnc.artsync;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of asset identifiers claimed by a pipeline that didn't get their results persisted yet.
+ *
+ * Assets have to be claimed BEFORE the processed cache is checked and released only AFTER the results got persisted
+ * (and committed to the cache). That way an asset collected by two overlapping partitions is either deferred to its
+ * owner or seen as processed, never uploaded twice. A deferred asset can wait for the owner to
+ * {@link #whenReleased(String) release} it and take it over if the owner's attempt failed.
+ */
+public class InFlightRegistry {
+
+    // identifier -> completed once the owner releases the claim
+    private final Map<String, CompletableFuture<Void>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * @param identifier asset identifier
+     * @return true if the identifier was claimed by the caller, false if somebody else has it claimed
+     */
+    public boolean claim(String identifier) {
+        return inFlight.putIfAbsent(identifier, new CompletableFuture<>()) == null;
+    }
+
+    /**
+     * @param identifier asset identifier
+     * @return future completed once the current owner releases the identifier, completed if nobody has it claimed
+     */
+    public CompletableFuture<Void> whenReleased(String identifier) {
+        return inFlight.getOrDefault(identifier, CompletableFuture.completedFuture(null));
+    }
+
+    public void release(String identifier) {
+        CompletableFuture<Void> released = inFlight.remove(identifier);
+        if (released != null) {
+            released.complete(null);
+        }
+    }
+
+    public void releaseAll(Collection<String> identifiers) {
+        identifiers.forEach(this::release);
+    }
+
+    public int size() {
+        return inFlight.size();
+    }
+}
@@ -0,0 +1,72 @@
+package org.jboss.pnc.artsync;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import jakarta.enterprise.context.ApplicationScoped;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Per-stage throughput metrics of the build-to-upload pipeline.
+ *
+ * Every stage records how long a single unit of work took (timer), how many items went through it (counter) and how
+ * many units are currently being processed (gauge). Throughput of a stage is the rate of its item counter.
+ */
+@ApplicationScoped
+public class PipelineMetrics {
+
+    public enum Stage {
+        COLLECT, // PNC + Indy analysis of a single build (items = assets)
+        FILTER, // processed-cache and duplicate filtering of a build (items = assets left)
+        GROUP, // grouping of a build's assets (items = projects)
+        DOWNLOAD, // Indy download of a project version (items = files)
+        UPLOAD, // AWS upload of a project version (items = assets)
+        PERSIST // DB persistence of results (items = results)
+    }
+
+    private final MeterRegistry registry;
+
+    private final Map<Stage, Timer> durations = new EnumMap<>(Stage.class);
+
+    private final Map<Stage, Counter> items = new EnumMap<>(Stage.class);
+
+    private final Map<Stage, AtomicInteger> active = new EnumMap<>(Stage.class);
+
+    public PipelineMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        for (Stage stage : Stage.values()) {
+            String tag = stage.name().toLowerCase();
+            durations.put(stage, Timer.builder("artsync.pipeline.stage.duration")
+                .tag("stage", tag)
+                .register(registry));
+            items.put(stage, Counter.builder("artsync.pipeline.stage.items")
+                .tag("stage", tag)
+                .register(registry));
+            active.put(stage, registry.gauge("artsync.pipeline.stage.active", Tags.of("stage", tag), new AtomicInteger(0)));
+        }
+    }
+
+    public Timer.Sample enter(Stage stage) {
+        active.get(stage).incrementAndGet();
+        return Timer.start(registry);
+    }
+
+    public void exit(Stage stage, Timer.Sample sample, long processedItems) {
+        sample.stop(durations.get(stage));
+        items.get(stage).increment(processedItems);
+        active.get(stage).decrementAndGet();
+    }
+
+    public void count(String name, long items) {
+        registry.counter(name).increment(items);
+    }
+
+    public <T> void gauge(String name, T stateObject, ToDoubleFunction<T> valueFunction) {
+        registry.gauge(name, stateObject, valueFunction);
+    }
+}
@@ -1,82 +1,546 @@
 package org.jboss.pnc.artsync;
 
-import com.googlecode.concurrenttrees.radix.ConcurrentRadixTree;
-import com.googlecode.concurrenttrees.radix.node.concrete.DefaultCharArrayNodeFactory;
-import com.googlecode.concurrenttrees.radix.node.concrete.voidvalue.VoidValue;
-import io.quarkus.hibernate.orm.panache.PanacheQuery;
-import io.quarkus.panache.common.Page;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.narayana.jta.QuarkusTransaction;
+import io.quarkus.runtime.Shutdown;
 import io.quarkus.runtime.Startup;
+import io.quarkus.scheduler.Scheduled;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.persistence.NoResultException;
-import jakarta.transaction.Transactional;
 import lombok.extern.slf4j.Slf4j;
 import org.eclipse.microprofile.health.HealthCheck;
 import org.eclipse.microprofile.health.HealthCheckResponse;
 import org.eclipse.microprofile.health.HealthCheckResponseBuilder;
 import org.eclipse.microprofile.health.Readiness;
+import org.jboss.pnc.artsync.concurrency.IdentifierSet;
+import org.jboss.pnc.artsync.config.ArtsyncConfig;
+import org.jboss.pnc.artsync.config.ArtsyncConfig.FailureBackoffConfig;
+import org.jboss.pnc.artsync.config.ArtsyncConfig.ProcessedCacheConfig;
 import org.jboss.pnc.artsync.model.hibernate.AssetEntry;
+import org.jboss.pnc.artsync.model.hibernate.Category;
+import org.jboss.pnc.artsync.model.hibernate.CommitView;
+import org.jboss.pnc.artsync.model.hibernate.FailureView;
 import org.jboss.pnc.artsync.model.hibernate.IdentifierView;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.LongFunction;
+import java.util.function.ToLongFunction;
 
 @Slf4j
 @Readiness
 @ApplicationScoped
 public class ProcessedArtifactsCache implements HealthCheck {
 
-    private final ConcurrentRadixTree<Object> cache = new ConcurrentRadixTree<>(new DefaultCharArrayNodeFactory());
+    private static final String SEGMENT_DIR = ".identifiers";
+
+    private static final String SNAPSHOT_FILE = "processed.snapshot";
+
+    // createdTime of an AssetEntry is its upload time which precedes its commit, replays overlap to cover the gap
+    private static final Duration SNAPSHOT_OVERLAP = Duration.ofMinutes(5);
+
+    // IDs are allocated in blocks of 50 per node, blocks open on up to 32 nodes while loading at startup are covered
+    private static final long STARTUP_ID_WINDOW = 50 * 32;
+
+    // pages read from DB ahead of the consumer adding them into the cache
+    private static final int LOADER_QUEUE = 4;
+
+    private static final Set<Category> BACKED_OFF = EnumSet.of(Category.UNRECOVERABLE, Category.MANUAL_INTERVENTION);
+
+    // errors fixed by a change of configuration, which takes a restart, so their backoff isn't loaded at startup
+    private static final Set<String> CONFIG_FIXABLE = Set.of("GenericError.MissingRepositoryMapping");
+
+    // backoffs stop doubling long before the maximal delay overflows
+    private static final int MAX_DOUBLINGS = 30;
+
+    private final IdentifierSet cache;
+
+    private final FailureBackoffConfig backoffConfig;
+
+    // identifier -> its latest permanent failure
+    private final Map<String, Failure> failures = new ConcurrentHashMap<>();
+
+    private final Counter backedOff;
+
+    /**
+     * @param entryId ID of the AssetEntry of the last failure
+     * @param attempts failures in a row, each doubles the backoff
+     * @param retryAt the identifier is processed again from this time
+     */
+    private record Failure(long entryId, Category category, int attempts, Instant lastFailure, Instant retryAt) {
+    }
+
+    private final int pageSize;
+
+    // null if snapshots are disabled
+    private final Path snapshotFile;
 
     private final AtomicBoolean finished = new AtomicBoolean(false);
     private final AtomicLong count = new AtomicLong(0);
 
+    // identifiers read from DB at startup so far
+    private final AtomicLong loaded = new AtomicLong(0);
+
+    // highest ID of AssetEntries in the cache (loaded, persisted by this node or refreshed), advanced after adding them
+    private final AtomicLong maxId = new AtomicLong(0);
+
+    // every AssetEntry up to this ID was read by refresh(), except for the idGaps
+    private long refreshedId;
+
+    // other nodes share the DB, their entries get into the cache only by refresh()
+    private boolean refreshing = false;
+
+    // IDs below refreshedId which were not committed when read -> since when they are missing
+    private final NavigableMap<Long, Instant> idGaps = new TreeMap<>();
+
+    private final Duration idGapTimeout;
+
+    public ProcessedArtifactsCache(ArtsyncConfig config, MeterRegistry registry) {
+        ProcessedCacheConfig cacheConfig = config.processedCache();
+        Path dir = config.downloadRootDir().resolve(SEGMENT_DIR).toAbsolutePath();
+        if (cacheConfig.offHeap() || cacheConfig.snapshot()) {
+            try {
+                Files.createDirectories(dir);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Couldn't create directory for processed identifiers " + dir, e);
+            }
+        }
+        this.cache = new IdentifierSet(cacheConfig.mergeThreshold(),
+            cacheConfig.offHeap() ? dir : null,
+            cacheConfig.filterFalsePositiveRate(),
+            // merges triggered by the results writer or the loader don't hold them up
+            Executors.newSingleThreadExecutor(Thread.ofPlatform().daemon().name("processed-cache-merge").factory()));
+        this.snapshotFile = cacheConfig.snapshot() ? dir.resolve(SNAPSHOT_FILE) : null;
+        this.pageSize = cacheConfig.loadPageSize();
+        this.backoffConfig = cacheConfig.failureBackoff();
+        this.idGapTimeout = config.cron().sharding().idGapTimeout();
+        this.backedOff = Counter.builder("artsync.processed-cache.backed-off").register(registry);
+        registry.gauge("artsync.processed-cache.failures", failures, Map::size);
+
+        FunctionCounter.builder("artsync.processed-cache.filter.lookups", cache, IdentifierSet::filterNegatives)
+            .tag("result", "negative")
+            .register(registry);
+        FunctionCounter.builder("artsync.processed-cache.filter.lookups", cache, IdentifierSet::filterPositives)
+            .tag("result", "positive")
+            .register(registry);
+        FunctionCounter.builder("artsync.processed-cache.filter.lookups", cache, IdentifierSet::filterFalsePositives)
+            .tag("result", "false-positive")
+            .register(registry);
+        registry.gauge("artsync.processed-cache.filter.bytes", cache, IdentifierSet::filterBytes);
+        registry.gauge("artsync.processed-cache.segment.bytes", cache, IdentifierSet::segmentBytes);
+        registry.gauge("artsync.processed-cache.identifiers", cache, IdentifierSet::size);
+    }
+
     @Startup
-    @Transactional
     public void initializeCache() {
         finished.set(false);
+        if (!loadSnapshot()) {
+            loadAll();
+        }
+        // the rest of the identifiers is compacted too, the delta is meant for the new ones
+        cache.merge();
+        loadFailures();
+        seedIdGaps();
+
+        //finish
+        finished.set(true);
+    }
+
+    /**
+     * Loads the snapshot and replays AssetEntries it doesn't cover.
+     *
+     * @return false if there is no usable snapshot
+     */
+    private boolean loadSnapshot() {
+        if (snapshotFile == null || !Files.exists(snapshotFile)) {
+            return false;
+        }
+        IdentifierSet.Snapshot snapshot;
+        try {
+            snapshot = cache.loadSnapshot(snapshotFile, dbMarker());
+        } catch (IOException e) {
+            log.warn("Couldn't load snapshot {}, loading all identifiers from DB.", snapshotFile, e);
+            return false;
+        }
+        maxId.set(snapshot.maxId());
+        log.info("Loaded {} identifiers from snapshot taken at {}.", cache.size(), snapshot.taken());
+
+        ZonedDateTime since = snapshot.taken().atZone(ZoneId.systemDefault()).minus(SNAPSHOT_OVERLAP);
+        load(lastId -> AssetEntry.getSuccessesNotInSnapshot(snapshot.maxId(), since, lastId, pageSize),
+            IdentifierView::getId, this::commitLoaded);
+        count.set(cache.size());
+        log.info("Replayed {} identifiers after ID {} or since {}.", loaded.get(), snapshot.maxId(), since);
+        return true;
+    }
+
+    private void loadAll() {
         long count;
         try {
-            count = AssetEntry.countSuccessfulIdentifiers();
+            count = QuarkusTransaction.requiringNew().call(AssetEntry::countSuccessfulIdentifiers);
             this.count.set(count);
             if (count == 0) {
-                finished.set(true);
                 return;
             }
         } catch (NoResultException e) {
             log.info("No identifiers found in DB.");
-            finished.set(true);
             return;
         }
-        int pageSize;
-        if (count < 50000) {
-            pageSize = (int) count;
-        } else if (count < 100000) {
-            pageSize = (int) (count/10L);
-        } else {
-            pageSize = (int) (count/20L);
-        }
         log.info("Processing {} identifiers with pageSize {}.", count, pageSize);
-        PanacheQuery<IdentifierView> query = AssetEntry.getSuccesses();
-        query.page(Page.ofSize(pageSize));
+        load(lastId -> AssetEntry.getSuccessesAfterId(lastId, pageSize), IdentifierView::getId, this::commitLoaded);
+    }
 
-        var firstPage = query.list();
-        firstPage.parallelStream().map(IdentifierView::getIdentifier).forEach(this::commitProcessed);
-        while (query.hasNextPage()) {
-            List<IdentifierView> page = query.nextPage().list();
-            page.parallelStream().map(IdentifierView::getIdentifier).forEach(this::commitProcessed);
+    /**
+     * Reads pages of identifiers until a page isn't full, while a consumer thread adds the pages read before into the
+     * cache. At most {@value #LOADER_QUEUE} pages wait for the consumer, so the DB isn't read faster than the cache
+     * takes the identifiers.
+     *
+     * @param pageAfter reads the page following the ID, ordered by ID
+     * @param idOf ID of a read row
+     * @param add takes the rows in the order they were read
+     */
+    private <V> void load(LongFunction<List<V>> pageAfter, ToLongFunction<V> idOf, Consumer<V> add) {
+        BlockingQueue<List<V>> pages = new ArrayBlockingQueue<>(LOADER_QUEUE);
+        CompletableFuture<Void> consumed = new CompletableFuture<>();
+        Thread consumer = Thread.ofPlatform().daemon().name("processed-cache-loader").start(() -> {
+            try {
+                List<V> page;
+                // empty page ends the load
+                while (!(page = pages.take()).isEmpty()) {
+                    page.forEach(add);
+                }
+                consumed.complete(null);
+            } catch (InterruptedException | RuntimeException e) {
+                consumed.completeExceptionally(e);
+            }
+        });
+
+        try {
+            long lastId = 0;
+            List<V> page;
+            do {
+                long after = lastId;
+                page = QuarkusTransaction.requiringNew().call(() -> pageAfter.apply(after));
+                if (!page.isEmpty()) {
+                    lastId = idOf.applyAsLong(page.getLast());
+                    put(pages, page, consumed);
+                }
+            } while (page.size() == pageSize && !consumed.isDone());
+            put(pages, List.of(), consumed);
+            consumed.join();
+        } catch (InterruptedException e) {
+            consumer.interrupt();
+            throw new IllegalStateException("Interrupted while loading processed identifiers.", e);
+        } catch (RuntimeException e) {
+            consumer.interrupt();
+            throw e;
         }
+    }
 
-        //finish
-        finished.set(true);
+    // gives up if the consumer failed, its failure is thrown by joining it
+    private static <V> void put(BlockingQueue<List<V>> pages,
+                            List<V> page,
+                            CompletableFuture<Void> consumed) throws InterruptedException {
+        while (!pages.offer(page, 1, TimeUnit.SECONDS)) {
+            if (consumed.isDone()) {
+                return;
+            }
+        }
+    }
+
+    private void commitLoaded(IdentifierView view) {
+        commitProcessed(view.getIdentifier());
+        maxId.accumulateAndGet(view.getId(), Math::max);
+        loaded.incrementAndGet();
+    }
+
+    @Scheduled(every = "${artsync.processed-cache.snapshot-interval}",
+        concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+    void snapshotPeriodically() {
+        writeSnapshot();
+    }
+
+    @Shutdown
+    void snapshotOnShutdown() {
+        writeSnapshot();
+    }
+
+    private synchronized void writeSnapshot() {
+        if (snapshotFile == null || !finished.get()) {
+            return;
+        }
+        // taken before reading the identifiers, AssetEntries committed afterwards are replayed
+        Instant taken = Instant.now();
+        try {
+            cache.writeSnapshot(snapshotFile, dbMarker(), coveredId(taken), taken);
+            log.debug("Written snapshot of {} identifiers into {}.", cache.size(), snapshotFile);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Couldn't write snapshot " + snapshotFile, e);
+        }
+    }
+
+    /**
+     * Identifies the DB by its first AssetEntry, a snapshot of a recreated or another DB is not loaded.
+     *
+     * @return 0 for an empty DB
+     */
+    private static long dbMarker() {
+        return QuarkusTransaction.requiringNew().call(() -> AssetEntry.getFirst()
+            .map(first -> 31 * first.id + first.createdTime.toInstant().toEpochMilli())
+            .orElse(0L));
+    }
+
+    /**
+     * Highest ID up to which all AssetEntries are in the cache. Once other nodes share the DB, their entries are in the
+     * cache only up to the last refresh, except for IDs not committed yet (unless they are expected never to be).
+     */
+    private synchronized long coveredId(Instant now) {
+        // read before the identifiers of the snapshot, they were added before it advanced
+        long covered = maxId.get();
+        if (refreshing) {
+            covered = Math.min(covered, refreshedId);
+            for (var gap : idGaps.entrySet()) {
+                if (!gap.getValue().plus(idGapTimeout).isBefore(now)) {
+                    covered = Math.min(covered, gap.getKey() - 1);
+                    break;
+                }
+            }
+        }
+        return covered;
+    }
+
+    /**
+     * Adds identifiers committed since the last refresh, f.e. by other nodes sharing the DB.
+     *
+     * Entries are read by ID rather than by createdTime, which is the upload time and precedes the commit by an
+     * unbounded write-behind delay. IDs are allocated in blocks per node, so they are not committed in order either: IDs
+     * skipped by a refresh are remembered as gaps and read again by the following refreshes until they get committed.
+     * Gaps which stay empty for artsync.cron.sharding.id-gap-timeout are dropped (IDs of rolled back transactions and
+     * unused rests of blocks of stopped nodes are never committed).
+     *
+     * @return number of identifiers read from DB
+     */
+    public synchronized int refresh() {
+        Instant now = Instant.now();
+        int read = 0;
+        refreshing = true;
+
+        if (!idGaps.isEmpty()) {
+            List<Long> missing = List.copyOf(idGaps.keySet());
+            for (int from = 0; from < missing.size(); from += pageSize) {
+                List<Long> ids = missing.subList(from, Math.min(from + pageSize, missing.size()));
+                List<CommitView> late = QuarkusTransaction.requiringNew().call(() -> AssetEntry.getCommittedWithIds(ids));
+                for (CommitView view : late) {
+                    idGaps.remove(view.getId());
+                    read += commitRefreshed(view);
+                }
+            }
+            idGaps.values().removeIf(missingSince -> missingSince.plus(idGapTimeout).isBefore(now));
+        }
+
+        List<CommitView> page;
+        do {
+            long after = refreshedId;
+            page = QuarkusTransaction.requiringNew().call(() -> AssetEntry.getCommittedAfterId(after, pageSize));
+            for (CommitView view : page) {
+                read += commitRefreshed(view);
+            }
+            advanceRefreshed(page, now);
+        } while (page.size() == pageSize);
+
+        log.debug("Refreshed up to ID {}, {} IDs below it are not committed yet.", refreshedId, idGaps.size());
+        return read;
+    }
+
+    // IDs which may still get committed after the startup load are read by the first refresh
+    private synchronized void seedIdGaps() {
+        Instant now = Instant.now();
+        long loadedId = maxId.get();
+        long from = Math.max(0, loadedId - STARTUP_ID_WINDOW);
+        refreshedId = from;
+        idGaps.clear();
+        advanceRefreshed(QuarkusTransaction.requiringNew().call(() -> AssetEntry.getCommittedBetween(from, loadedId)), now);
+    }
+
+    // moves refreshedId past the committed entries (ordered by ID), IDs skipped between them become gaps
+    private void advanceRefreshed(List<CommitView> committed, Instant now) {
+        for (CommitView view : committed) {
+            for (long id = refreshedId + 1; id < view.getId(); id++) {
+                idGaps.put(id, now);
+            }
+            refreshedId = view.getId();
+        }
     }
 
+    private int commitRefreshed(CommitView view) {
+        int read = 0;
+        if (view.isSuccess()) {
+            commitProcessed(view.getIdentifier());
+            read = 1;
+        }
+        maxId.accumulateAndGet(view.getId(), Math::max);
+        return read;
+    }
+
+    /**
+     * @return false if the identifier was processed or failed permanently and its backoff didn't elapse yet
+     */
     public boolean shouldProcess(String identifier) {
-        return cache.getValueForExactKey(identifier) == null;
+        if (cache.contains(identifier)) {
+            return false;
+        }
+        if (isBackedOff(identifier)) {
+            backedOff.increment();
+            return false;
+        }
+        return true;
     }
 
     public void commitProcessed(String identifier) {
-        cache.putIfAbsent(identifier, VoidValue.SINGLETON);
+        cache.add(identifier);
+        if (!failures.isEmpty()) {
+            failures.remove(identifier);
+        }
+    }
+
+    /**
+     * Adds a success this node committed in DB, the following snapshots cover its ID.
+     */
+    public void commitPersisted(long id, String identifier) {
+        commitProcessed(identifier);
+        maxId.accumulateAndGet(id, Math::max);
+    }
+
+    /**
+     * Records a failure committed in DB. Only UNRECOVERABLE and MANUAL_INTERVENTION failures are backed off, every
+     * other failure is processed again by the next build depending on it.
+     */
+    public void commitFailed(long entryId, String identifier, Category category, Instant failedAt) {
+        Duration initialDelay = initialDelay(category);
+        if (initialDelay == null) {
+            return;
+        }
+        failures.compute(identifier, (id, previous) -> {
+            int attempts = previous == null || isExpired(previous, failedAt) ? 1 : previous.attempts() + 1;
+            Duration delay = initialDelay.multipliedBy(1L << Math.min(attempts - 1, MAX_DOUBLINGS));
+            if (delay.compareTo(backoffConfig.maxDelay()) > 0) {
+                delay = backoffConfig.maxDelay();
+            }
+            return new Failure(entryId, category, attempts, failedAt, failedAt.plus(delay));
+        });
+    }
+
+    /**
+     * Forgets the failures of the identifier, f.e. once the cause was fixed. The next build depending on it processes
+     * it again. Other nodes forget it with their next {@link #syncFixedFailures() sync}.
+     */
+    public void evictFailure(String identifier) {
+        failures.remove(identifier);
+    }
+
+    /**
+     * Forgets failures whose last AssetEntry is no longer backed off, f.e. because it was marked fixed on another node
+     * sharing the DB.
+     */
+    @Scheduled(every = "${artsync.processed-cache.failure-backoff.sync-interval}",
+        concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+    void syncFixedFailures() {
+        if (!finished.get() || failures.isEmpty()) {
+            return;
+        }
+        Map<Long, String> identifiers = new HashMap<>();
+        failures.forEach((identifier, failure) -> identifiers.put(failure.entryId(), identifier));
+        List<Long> entryIds = List.copyOf(identifiers.keySet());
+        int evicted = 0;
+        for (int from = 0; from < entryIds.size(); from += pageSize) {
+            List<Long> ids = entryIds.subList(from, Math.min(from + pageSize, entryIds.size()));
+            List<CommitView> fixed = QuarkusTransaction.requiringNew().call(() -> AssetEntry.getNotInCategoriesWithIds(ids, BACKED_OFF));
+            for (CommitView view : fixed) {
+                // unless it failed again in the meantime
+                failures.computeIfPresent(identifiers.get(view.getId()),
+                    (identifier, failure) -> failure.entryId() == view.getId() ? null : failure);
+                evicted++;
+            }
+        }
+        if (evicted > 0) {
+            log.info("Forgot failures of {} identifiers marked fixed.", evicted);
+        }
+    }
+
+    private boolean isBackedOff(String identifier) {
+        if (failures.isEmpty()) {
+            return false;
+        }
+        Failure failure = failures.get(identifier);
+        if (failure == null) {
+            return false;
+        }
+        Instant now = Instant.now();
+        if (isExpired(failure, now)) {
+            failures.remove(identifier, failure);
+            return false;
+        }
+        return now.isBefore(failure.retryAt());
+    }
+
+    private boolean isExpired(Failure failure, Instant now) {
+        return now.isAfter(failure.lastFailure().plus(backoffConfig.ttl()));
+    }
+
+    // null if failures of the category are not backed off
+    private Duration initialDelay(Category category) {
+        if (!backoffConfig.enabled()) {
+            return null;
+        }
+        return switch (category) {
+            case UNRECOVERABLE -> backoffConfig.unrecoverableDelay();
+            case MANUAL_INTERVENTION -> backoffConfig.manualInterventionDelay();
+            case RECOVER, IGNORE -> null;
+        };
+    }
+
+    /**
+     * Loads failures within their TTL, in the order they happened, so that their backoff continues after a restart.
+     * Failures fixed by a change of configuration are left out, the restart may have brought the change.
+     */
+    private void loadFailures() {
+        if (!backoffConfig.enabled()) {
+            return;
+        }
+        ZonedDateTime since = ZonedDateTime.now().minus(backoffConfig.ttl());
+        AtomicLong loadedFailures = new AtomicLong(0);
+        load(lastId -> AssetEntry.getFailuresSince(since, BACKED_OFF, CONFIG_FIXABLE, lastId, pageSize),
+            FailureView::getId,
+            failure -> {
+                loadedFailures.incrementAndGet();
+                if (!cache.contains(failure.getIdentifier())) {
+                    commitFailed(failure.getId(), failure.getIdentifier(), failure.getErrorCategory(), failure.getCreatedTime().toInstant());
+                }
+            });
+        log.info("Loaded {} failures of {} identifiers.", loadedFailures.get(), failures.size());
     }
 
     @Override
@@ -85,8 +549,13 @@ public class ProcessedArtifactsCache implements HealthCheck {
 
         if (finished.get()) {
             responseBuilder.withData("Processed items", count.get());
+            responseBuilder.withData("Cached identifiers", cache.size());
+            responseBuilder.withData("Segment bytes", cache.segmentBytes());
+            responseBuilder.withData("Backed-off identifiers", failures.size());
             responseBuilder.up();
         } else {
+            responseBuilder.withData("Loaded identifiers", loaded.get());
+            responseBuilder.withData("Expected identifiers", count.get());
             responseBuilder.down();
         }
         return responseBuilder.build();
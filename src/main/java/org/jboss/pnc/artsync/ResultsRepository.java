@@ -2,28 +2,117 @@ package org.jboss.pnc.artsync;
 
 import io.quarkus.hibernate.orm.panache.Panache;
 import jakarta.enterprise.context.ApplicationScoped;
-import jakarta.enterprise.inject.Any;
+import jakarta.persistence.EntityManager;
 import jakarta.transaction.Transactional;
-import org.jboss.pnc.artsync.model.Asset;
-import org.jboss.pnc.artsync.model.Results;
 import org.jboss.pnc.artsync.model.hibernate.AssetEntry;
 import org.jboss.pnc.artsync.model.hibernate.BuildStat;
 import org.jboss.pnc.artsync.model.hibernate.Job;
 
+import java.time.ZonedDateTime;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Objects;
+import java.util.stream.Stream;
 
 @ApplicationScoped
 public class ResultsRepository {
 
-    private final ProcessedArtifactsCache artifactsCache;
+    // arbitrary key of the Postgres advisory lock guarding planning and finishing of sharded Jobs
+    private static final long SHARED_JOB_LOCK = 0x61727473796e63L;
 
-    public ResultsRepository(@Any ProcessedArtifactsCache artifactsCache) {
-        this.artifactsCache = artifactsCache;
+    /**
+     * Persists builds of a partition before any of their AssetEntries are written.
+     */
+    @Transactional
+    public void persistBuilds(List<BuildStat> builds, boolean mergeJobs) {
+        if (mergeJobs) {
+            mergeJobs(builds);
+        }
+
+        // persist buildStats, unless they were planned with their job
+        builds.stream()
+            .filter(stat -> stat.id == null)
+            .forEach(stat -> stat.persist());
     }
 
+    /**
+     * Updates stats of already persisted builds (and their job) once all their AssetEntries are written.
+     */
     @Transactional
-    public void persistResults(List<Results<? extends Asset>> results, List<BuildStat> builds) {
+    public void updateBuilds(List<BuildStat> builds, boolean mergeJobs) {
+        if (mergeJobs) {
+            mergeJobs(builds);
+        }
+
+        EntityManager em = Panache.getEntityManager();
+        builds.forEach(em::merge);
+    }
+
+    /**
+     * Persists a batch of AssetEntries in its own transaction. Inserts are sent in JDBC batches
+     * (quarkus.hibernate-orm.jdbc.statement-batch-size).
+     */
+    @Transactional(Transactional.TxType.REQUIRES_NEW)
+    public void persistEntries(List<AssetEntry> entries) {
+        EntityManager em = Panache.getEntityManager();
+        entries.forEach(em::persist);
+        em.flush();
+        em.clear();
+    }
+
+    /**
+     * Tries to take the transaction-scoped lock for planning of a sharded Job, so that only one node plans at a time.
+     * Has to be called in a transaction.
+     *
+     * @return false if another node holds the lock
+     */
+    public boolean tryLockSharedJobs() {
+        return (Boolean) Panache.getEntityManager()
+            .createNativeQuery("select pg_try_advisory_xact_lock(?1)")
+            .setParameter(1, SHARED_JOB_LOCK)
+            .getSingleResult();
+    }
+
+    /**
+     * Finishes a sharded Job if all of its builds are finished. Stats of a sharded Job are computed from its builds,
+     * because every node holds only its own part of them.
+     *
+     * @return true if this call finished the Job
+     */
+    @Transactional
+    public boolean finishSharedJob(long jobId) {
+        // nodes finishing their last builds at the same time wait for each other, the one coming later sees builds
+        // of both (the lock is taken before the Job is loaded, so it's read in a fresh snapshot)
+        Panache.getEntityManager()
+            .createNativeQuery("select 1 from (select pg_advisory_xact_lock(?1)) l")
+            .setParameter(1, SHARED_JOB_LOCK)
+            .getSingleResult();
+
+        Job job = Job.findById(jobId);
+        if (job == null || job.endTime != null || job.getBuilds().stream().anyMatch(build -> !build.finished)) {
+            return false;
+        }
+
+        job.total = job.getBuilds().stream().mapToLong(BuildStat::getTotal).sum();
+        job.filtered = job.getBuilds().stream().mapToLong(BuildStat::getFiltered).sum();
+        job.cached = job.getBuilds().stream().mapToLong(BuildStat::getCached).sum();
+        job.errors = job.getBuilds().stream().mapToLong(BuildStat::getErrors).sum();
+        job.successes = job.getBuilds().stream().mapToLong(BuildStat::getSuccesses).sum();
+
+        // set timestamp of last processed build
+        Stream<ZonedDateTime> stream = job.getBuilds().stream()
+            .filter(stat -> !(stat.successes == 0 && stat.errors != 0)) // ignore builds without a single success
+            .map(BuildStat::getTimestamp);
+        if (job.lastProcessed != null) {
+            stream = Stream.concat(stream, Stream.of(job.lastProcessed));
+        }
+        stream.filter(Objects::nonNull).max(Comparator.naturalOrder()).ifPresent(job::setLastProcessed);
+
+        job.setEndTime(ZonedDateTime.now());
+        return true;
+    }
+
+    private static void mergeJobs(List<BuildStat> builds) {
         // persist job if present
         builds.stream()
             .map(BuildStat::getJob)
@@ -34,24 +123,5 @@ public class ResultsRepository {
                 job.getBuilds().forEach(build -> build.setJob(job));
                 merged.persist();
             });
-
-        // persist buildStats
-        builds.forEach(stat -> stat.persist());
-
-        BuildStat.flush();
-        // persist AssetEntries
-        for (var result : results) {
-            for (var error : result.errors()) {
-                AssetEntry entry = new AssetEntry(error);
-                entry.persist();
-            }
-
-            for (var success : result.successes()) {
-                AssetEntry entry = new AssetEntry(success.result());
-                artifactsCache.commitProcessed(entry.identifier);
-                entry.persist();
-            }
-        }
-        AssetEntry.flush();
     }
 }
@@ -0,0 +1,224 @@
+package org.jboss.pnc.artsync;
+
+import io.micrometer.core.instrument.Timer;
+import io.quarkus.virtual.threads.VirtualThreads;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.inject.Any;
+import jakarta.inject.Inject;
+import lombok.extern.slf4j.Slf4j;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.pnc.artsync.PipelineMetrics.Stage;
+import org.jboss.pnc.artsync.config.ArtsyncConfig;
+import org.jboss.pnc.artsync.model.Asset;
+import org.jboss.pnc.artsync.model.Results;
+import org.jboss.pnc.artsync.model.hibernate.AssetEntry;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Write-behind persistence of upload results.
+ *
+ * Results of every uploaded project are queued and a single writer thread persists them as AssetEntries in batches,
+ * each batch in its own transaction. Identifiers are committed to {@link ProcessedArtifactsCache} only after their
+ * batch commits. The queue is bounded, when the DB can't keep up, {@link #write(List)} doesn't complete and the
+ * pipeline waits. A failed batch is split in halves until the failing project is isolated, which is then retried
+ * before its results are failed, so one bad project doesn't fail the others.
+ *
+ * The writer is also the only place where BuildStat success/error counters are increased (once the results are
+ * committed, never in dry run), so they don't need to be thread-safe.
+ */
+@Slf4j
+@ApplicationScoped
+public class ResultsWriter {
+
+    private final ProcessedArtifactsCache processedCache;
+
+    private final ResultsRepository rr;
+
+    private final PipelineMetrics metrics;
+
+    private final int batchSize;
+
+    private final int retries;
+
+    private final Duration retryDelay;
+
+    private final boolean dryRun;
+
+    private final BlockingQueue<Pending> queue;
+
+    private volatile boolean running = true;
+
+    private Thread writer;
+
+    @Inject
+    @VirtualThreads
+    ExecutorService executor;
+
+    private record Pending(List<Results<? extends Asset>> results, CompletableFuture<Void> persisted) {
+        int size() {
+            return results.stream().mapToInt(res -> res.successes().size() + res.errors().size()).sum();
+        }
+    }
+
+    public ResultsWriter(@Any ProcessedArtifactsCache processedCache,
+                         ResultsRepository rr,
+                         PipelineMetrics metrics,
+                         ArtsyncConfig config,
+                         @ConfigProperty(name = "aws.dry-run") boolean dryRun) {
+        this.processedCache = processedCache;
+        this.rr = rr;
+        this.metrics = metrics;
+        this.batchSize = config.persistence().batchSize();
+        this.retries = config.persistence().retries();
+        this.retryDelay = config.persistence().retryDelay();
+        this.dryRun = dryRun;
+        this.queue = new LinkedBlockingQueue<>(config.persistence().queueLimit());
+        metrics.gauge("artsync.pipeline.persist.queue", queue, BlockingQueue::size);
+    }
+
+    @PostConstruct
+    void start() {
+        writer = Thread.ofPlatform().daemon().name("results-writer").start(this::run);
+    }
+
+    @PreDestroy
+    void stop() {
+        running = false;
+        writer.interrupt();
+    }
+
+    /**
+     * Queues results of a project for persistence.
+     *
+     * @param results results of a single project
+     * @return future completed once the results are committed in DB and in the processed cache
+     */
+    public CompletableFuture<Void> write(List<Results<? extends Asset>> results) {
+        Pending pending = new Pending(results, new CompletableFuture<>());
+        // blocking put on a virtual thread is the backpressure
+        return CompletableFuture.runAsync(() -> {
+                try {
+                    queue.put(pending);
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException("Interrupted while waiting for space in persistence queue.", e);
+                }
+            }, executor)
+            .thenCompose(ign -> pending.persisted());
+    }
+
+    private void run() {
+        while (running) {
+            List<Pending> batch = new ArrayList<>();
+            try {
+                Pending first = queue.take();
+                batch.add(first);
+                int entries = first.size();
+                while (entries < batchSize) {
+                    Pending next = queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                    entries += next.size();
+                }
+
+                persistOrSplit(batch);
+            } catch (InterruptedException e) {
+                batch.forEach(pending -> pending.persisted().completeExceptionally(e));
+                if (running) {
+                    log.warn("Results writer interrupted while running.");
+                }
+            }
+        }
+
+        queue.forEach(pending -> pending.persisted().completeExceptionally(new IllegalStateException("Results writer stopped.")));
+    }
+
+    private void persistOrSplit(List<Pending> batch) throws InterruptedException {
+        if (batch.size() == 1) {
+            persistWithRetries(batch.getFirst());
+            return;
+        }
+
+        try {
+            persist(batch);
+            batch.forEach(pending -> pending.persisted().complete(null));
+        } catch (RuntimeException e) {
+            log.warn("Failed to persist batch of {} projects, splitting it.", batch.size(), e);
+            int half = batch.size() / 2;
+            persistOrSplit(batch.subList(0, half));
+            persistOrSplit(batch.subList(half, batch.size()));
+        }
+    }
+
+    private void persistWithRetries(Pending pending) throws InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                persist(List.of(pending));
+                pending.persisted().complete(null);
+                return;
+            } catch (RuntimeException e) {
+                if (attempt >= retries) {
+                    log.error("Failed to persist results of a project after {} retries.", retries, e);
+                    pending.persisted().completeExceptionally(e);
+                    return;
+                }
+                log.warn("Failed to persist results of a project, retrying.", e);
+                Thread.sleep(retryDelay.multipliedBy(attempt + 1).toMillis());
+            }
+        }
+    }
+
+    // entries are created for every attempt, entities of a rolled back transaction can't be reused
+    private void persist(List<Pending> batch) {
+        List<AssetEntry> entries = new ArrayList<>();
+        List<AssetEntry> processed = new ArrayList<>();
+        List<AssetEntry> failed = new ArrayList<>();
+        for (var pending : batch) {
+            for (var result : pending.results()) {
+                for (var error : result.errors()) {
+                    AssetEntry entry = new AssetEntry(error);
+                    failed.add(entry);
+                    entries.add(entry);
+                }
+
+                for (var success : result.successes()) {
+                    AssetEntry entry = new AssetEntry(success.result());
+                    processed.add(entry);
+                    entries.add(entry);
+                }
+            }
+        }
+
+        if (dryRun || entries.isEmpty()) {
+            return;
+        }
+
+        Timer.Sample persist = metrics.enter(Stage.PERSIST);
+        try {
+            rr.persistEntries(entries);
+        } finally {
+            metrics.exit(Stage.PERSIST, persist, entries.size());
+        }
+
+        // only after the batch is committed, a retried batch must not count twice
+        for (var pending : batch) {
+            for (var result : pending.results()) {
+                result.errors().forEach(error -> error.context().getProcessingBuildID().incError(1));
+                result.successes().forEach(success -> success.result().asset().getProcessingBuildID().incSuccess(1));
+            }
+        }
+        // IDs are assigned by the commit
+        processed.forEach(entry -> processedCache.commitPersisted(entry.id, entry.identifier));
+        failed.forEach(entry -> processedCache.commitFailed(entry.id, entry.identifier, entry.errorCategory, entry.createdTime.toInstant()));
+    }
+}
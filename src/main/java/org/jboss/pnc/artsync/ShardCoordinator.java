@@ -0,0 +1,103 @@
+package org.jboss.pnc.artsync;
+
+import io.quarkus.narayana.jta.QuarkusTransaction;
+import io.quarkus.scheduler.Scheduled;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.inject.Any;
+import jakarta.inject.Inject;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.jboss.pnc.artsync.config.ArtsyncConfig;
+import org.jboss.pnc.artsync.model.hibernate.BuildStat;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * Coordination of nodes sharing a Job (artsync.cron.sharding).
+ *
+ * Nodes lease unfinished builds of the Job a partition at a time. Leases are extended by a heartbeat while the node
+ * works on them, leases of a dead node expire and its builds are taken over (versions it already persisted are
+ * skipped as with a resumed Job). A node whose Job failed releases the builds it didn't finish, a restarted node leases
+ * its own leftover builds again.
+ *
+ * Before every leased partition, processed cache is refreshed with assets persisted by the other nodes in the
+ * meantime (read by ID, see {@link ProcessedArtifactsCache#refresh()}).
+ */
+@Slf4j
+@ApplicationScoped
+public class ShardCoordinator {
+
+    private final ArtsyncConfig.ShardingConfig config;
+
+    private final ProcessedArtifactsCache processedCache;
+
+    @Getter
+    private final String owner;
+
+    @Inject
+    public ShardCoordinator(ArtsyncConfig config, @Any ProcessedArtifactsCache processedCache) {
+        this(config.cron().sharding(), processedCache, config.cron().sharding().nodeName()
+            .or(() -> Optional.ofNullable(System.getenv("HOSTNAME")))
+            .orElseGet(() -> UUID.randomUUID().toString()));
+    }
+
+    ShardCoordinator(ArtsyncConfig.ShardingConfig config, ProcessedArtifactsCache processedCache, String owner) {
+        this.config = config;
+        this.processedCache = processedCache;
+        this.owner = owner;
+    }
+
+    public boolean isEnabled() {
+        return config.enabled();
+    }
+
+    public List<BuildStat> leasePartition(long jobId, int limit) {
+        return leasePartition(jobId, limit, List.of());
+    }
+
+    /**
+     * @param jobId ID of the shared Job
+     * @param limit maximum of leased builds
+     * @param held IDs of builds this node leased before and still works on
+     * @return builds leased by this node, empty if there is nothing left to lease
+     */
+    public List<BuildStat> leasePartition(long jobId, int limit, Collection<Long> held) {
+        refreshProcessed();
+
+        List<BuildStat> leased = QuarkusTransaction.requiringNew()
+            .call(() -> BuildStat.lease(jobId, owner, limit, config.leaseDuration(), held));
+        log.info("Node {} leased {} builds of job {}.", owner, leased.size(), jobId);
+        return leased;
+    }
+
+    /**
+     * Releases the unfinished builds of the Job this node leased, f.e. after it failed to process them. Otherwise the
+     * heartbeat would keep their leases alive and no other node could take them over.
+     */
+    public void releaseLeases(long jobId) {
+        int released = QuarkusTransaction.requiringNew().call(() -> BuildStat.releaseLeases(jobId, owner));
+        if (released > 0) {
+            log.info("Node {} released {} unfinished builds of job {}.", owner, released, jobId);
+        }
+    }
+
+    @Scheduled(every = "${artsync.cron.sharding.heartbeat-interval}",
+        concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+    void heartbeat() {
+        if (!config.enabled()) {
+            return;
+        }
+
+        int extended = QuarkusTransaction.requiringNew()
+            .call(() -> BuildStat.extendLeases(owner, config.leaseDuration()));
+        log.debug("Node {} extended leases of {} builds.", owner, extended);
+    }
+
+    private void refreshProcessed() {
+        int read = processedCache.refresh();
+        log.debug("Refreshed processed cache with {} identifiers.", read);
+    }
+}
@@ -15,6 +15,7 @@ import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
+import java.util.Optional;
 
 @Slf4j
 @ApplicationScoped
@@ -51,12 +52,33 @@ public class UploadCronJob {
         try {
             running = true;
 
+            if (config.sharding().enabled()) {
+                // an unfinished job is joined, not resumed, other nodes may be working on it
+                Optional<Job> unfinished = Job.getUnfinishedJob();
+                if (unfinished.isPresent() && unfinished.get().resumeAttempts >= config.maxResumeAttempts()) {
+                    log.error("Sharded Upload Job {} failed {} times, giving up on it.", unfinished.get().id, unfinished.get().resumeAttempts);
+                    manager.failJob(unfinished.get().id);
+                }
+                log.info("Starting or joining a sharded Upload Job");
+                manager.processBuildsSharded(lastProcessed(), config.jobSize(), config.batchSize());
+                log.info("Sharded Upload Job finished on this node");
+                return;
+            }
+
+            Optional<Job> unfinished = Job.getUnfinishedJob();
+            if (unfinished.isPresent() && unfinished.get().resumeAttempts >= config.maxResumeAttempts()) {
+                log.error("Upload Job {} failed {} resumes, giving up on it.", unfinished.get().id, unfinished.get().resumeAttempts);
+                manager.failJob(unfinished.get().id);
+            } else if (unfinished.isPresent()) {
+                log.info("Resuming an interrupted Upload Job {}", unfinished.get().id);
+                manager.resumeJob(unfinished.get().id);
+                log.info("Upload Job resumed and finished");
+                return;
+            }
+
             log.info("Starting an Upload Job");
 
-            ZonedDateTime since = Job.getLastFinishedJob()
-                .map(Job::getLastProcessed)
-                .orElse(ZonedDateTime.ofInstant(Instant.EPOCH, ZoneId.systemDefault()));
-            manager.processBuilds(since, config.jobSize(), config.batchSize());
+            manager.processBuilds(lastProcessed(), config.jobSize(), config.batchSize());
 
             log.info("Upload Job finished");
         } finally {
@@ -65,6 +87,12 @@ public class UploadCronJob {
 
     }
 
+    private static ZonedDateTime lastProcessed() {
+        return Job.getLastFinishedJob()
+            .map(Job::getLastProcessed)
+            .orElse(ZonedDateTime.ofInstant(Instant.EPOCH, ZoneId.systemDefault()));
+    }
+
     public void resume() {
         scheduler.resume(JOB_NAME);
     }
@@ -0,0 +1,130 @@
+package org.jboss.pnc.artsync;
+
+import io.quarkus.narayana.jta.QuarkusTransaction;
+import io.quarkus.scheduler.Scheduled;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.transaction.Transactional;
+import lombok.extern.slf4j.Slf4j;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.pnc.artsync.model.ProjectAssets;
+import org.jboss.pnc.artsync.model.VersionAssets;
+import org.jboss.pnc.artsync.model.hibernate.BuildStat;
+import org.jboss.pnc.artsync.model.hibernate.WorkItem;
+import org.jboss.pnc.artsync.model.hibernate.WorkState;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.util.stream.Collectors.toMap;
+
+/**
+ * Durable record of the planned work of a Job, one {@link WorkItem} per project version of a build.
+ *
+ * Versions are planned when their build is analyzed and marked once their results are persisted. Persisted versions
+ * are buffered and flushed periodically (and at the end of every partition), so the ledger doesn't add a DB round-trip
+ * per version. A resumed Job skips versions that were already persisted, the others are processed from scratch.
+ *
+ * Builds without a Job (manual uploads) and dry runs are not tracked.
+ */
+@Slf4j
+@ApplicationScoped
+public class WorkLedger {
+
+    private final boolean dryRun;
+
+    // planned versions of running partitions -> WorkItem ID
+    private final Map<VersionAssets<?>, Long> items = new ConcurrentHashMap<>();
+
+    // BuildStat ID -> versions persisted before the Job was interrupted
+    private final Map<Long, Set<String>> persisted = new ConcurrentHashMap<>();
+
+    // IDs of WorkItems persisted since the last flush
+    private final Set<Long> persistedSinceFlush = ConcurrentHashMap.newKeySet();
+
+    public WorkLedger(@ConfigProperty(name = "aws.dry-run") boolean dryRun) {
+        this.dryRun = dryRun;
+    }
+
+    public static String versionKey(VersionAssets<?> version) {
+        return version.versionIdentifier() + "|" + version.getSourceRepository().getRepositoryPath();
+    }
+
+    /**
+     * Records versions of an analyzed build. Versions planned by an interrupted run of the Job are reused.
+     */
+    @Transactional
+    public void plan(BuildStat build, List<ProjectAssets<?, ?>> projects) {
+        if (dryRun || build.getJob() == null || build.id == null) {
+            return;
+        }
+
+        Map<String, WorkItem> existing = WorkItem.getByBuild(build.id).stream()
+            .collect(toMap(WorkItem::getVersionKey, item -> item, (item1, item2) -> item1));
+        for (var project : projects) {
+            for (var version : project.getProjectVersionAssets()) {
+                String key = versionKey(version);
+                WorkItem item = existing.get(key);
+                if (item == null) {
+                    item = new WorkItem(build.getJob(), build, key);
+                    item.persist();
+                } else if (item.state == WorkState.PERSISTED) {
+                    persisted.computeIfAbsent(build.id, id -> ConcurrentHashMap.newKeySet()).add(key);
+                    continue;
+                }
+                items.put(version, item.id);
+            }
+        }
+    }
+
+    /**
+     * @return true if the version was persisted by an interrupted run of its Job
+     */
+    public boolean isPersisted(VersionAssets<?> version) {
+        Long buildId = version.assets().getFirst().getProcessingBuildID().id;
+        if (buildId == null) {
+            return false;
+        }
+        return persisted.getOrDefault(buildId, Set.of()).contains(versionKey(version));
+    }
+
+    public void markPersisted(ProjectAssets<?, ?> project) {
+        project.getProjectVersionAssets().forEach(version -> {
+            Long id = items.remove(version);
+            if (id != null) {
+                persistedSinceFlush.add(id);
+            }
+        });
+    }
+
+    /**
+     * Drops in-memory state of finished builds.
+     */
+    public void forget(Collection<BuildStat> builds) {
+        Set<BuildStat> finished = Set.copyOf(builds);
+        items.keySet().removeIf(version -> finished.contains(version.assets().getFirst().getProcessingBuildID()));
+        builds.forEach(build -> {
+            if (build.id != null) persisted.remove(build.id);
+        });
+    }
+
+    @Scheduled(every = "${artsync.cron.work-flush-interval}", concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+    public synchronized void flush() {
+        if (persistedSinceFlush.isEmpty()) {
+            return;
+        }
+
+        List<Long> ids = new ArrayList<>();
+        for (Iterator<Long> it = persistedSinceFlush.iterator(); it.hasNext(); ) {
+            ids.add(it.next());
+            it.remove();
+        }
+
+        QuarkusTransaction.requiringNew().run(() -> WorkItem.updateStates(WorkState.PERSISTED, ids));
+        log.debug("Flushed {} persisted work items.", ids.size());
+    }
+}
@@ -32,6 +32,23 @@ public interface AWSApplicationConfig extends ServiceApplicationConfig {
     @WithDefault("20")
     int subprocessConcurrencyLimit();
 
+    /**
+     * Maven GAVs are uploaded over plain HTTP by {@link MavenUploader}, all files of a GAV concurrently. If disabled,
+     * they are deployed by Aether one file after another.
+     * @return true if Maven GAVs are uploaded by {@link MavenUploader}
+     */
+    @WithDefault("true")
+    boolean nativeMavenUpload();
+
+    /**
+     * npm package versions are published over plain HTTP by {@link NpmPublisher} from tarballs downloaded from Indy,
+     * limited only by the rate limiter. If disabled, `npm publish` is run for every package version (limited by
+     * {@link #subprocessConcurrencyLimit()}).
+     * @return true if npm package versions are published by {@link NpmPublisher}
+     */
+    @WithDefault("true")
+    boolean nativeNpmPublish();
+
     ServiceApplicationConfig publish();
 
     interface AwsConfig extends io.quarkus.amazon.common.runtime.AwsConfig {}
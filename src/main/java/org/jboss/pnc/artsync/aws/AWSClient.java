@@ -1,9 +1,12 @@
 package org.jboss.pnc.artsync.aws;
 
 import io.github.resilience4j.core.functions.Either;
+import io.micrometer.core.instrument.MeterRegistry;
 import io.quarkus.bootstrap.resolver.maven.BootstrapMavenContext;
 import io.quarkus.bootstrap.resolver.maven.BootstrapMavenException;
 import io.quarkus.virtual.threads.VirtualThreads;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpClosedException;
 import jakarta.enterprise.context.ApplicationScoped;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.collections4.queue.CircularFifoQueue;
@@ -27,7 +30,9 @@ import org.eclipse.aether.transfer.TransferResource;
 import org.eclipse.aether.util.artifact.SubArtifact;
 import org.eclipse.aether.util.repository.AuthenticationBuilder;
 import org.eclipse.microprofile.context.ManagedExecutor;
+import org.jboss.pnc.artsync.BackendCircuitBreakers;
 import org.jboss.pnc.artsync.concurrency.ConstrainedExecutor;
+import org.jboss.pnc.artsync.concurrency.Lane;
 import org.jboss.pnc.artsync.model.Asset;
 import org.jboss.pnc.artsync.model.AssetUpload;
 import org.jboss.pnc.artsync.model.GPAsset;
@@ -72,6 +77,7 @@ import software.amazon.awssdk.services.codeartifact.model.ThrottlingException;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.ConnectException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.text.MessageFormat;
@@ -91,6 +97,7 @@ import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 import java.util.regex.Matcher;
@@ -119,6 +126,12 @@ public class AWSClient {
 
     private final AWSTokenMaintainer tokenService;
 
+    private final MavenUploader mavenUploader;
+
+    private final NpmPublisher npmPublisher;
+
+    private final GenericProxyStreamer genericProxyStreamer;
+
     private final Semaphore processSemaphore;
 
     private final Pattern MVN_UPLOAD = Pattern.compile("^\\[INFO] Uploaded to .+: (?<deployUrl>\\S+) \\(.+ at .+\\)$");
@@ -136,13 +149,23 @@ public class AWSClient {
                      @VirtualThreads ExecutorService delegate,
                      ScheduledExecutorService scheduler,
                      ManagedExecutor regularerExecutor,
-                     AWSTokenMaintainer tokenService) throws BootstrapMavenException {
+                     AWSTokenMaintainer tokenService,
+                     MavenUploader mavenUploader,
+                     NpmPublisher npmPublisher,
+                     GenericProxyStreamer genericProxyStreamer,
+                     MeterRegistry registry,
+                     BackendCircuitBreakers breakers) throws BootstrapMavenException {
         this.nativeClient = nativeClient;
         this.config = config;
         this.regularerExecutor = regularerExecutor;
         this.tokenService = tokenService;
-        this.executor = new ConstrainedExecutor(regularerExecutor, scheduler, config, AWSClient::getIsRateLimited, null, AWSClient::shouldRetry);
-        this.publishGenericExecutor = new ConstrainedExecutor(regularerExecutor, scheduler, config.publish(), AWSClient::getIsRateLimited, null, AWSClient::shouldRetry);
+        this.mavenUploader = mavenUploader;
+        this.npmPublisher = npmPublisher;
+        this.genericProxyStreamer = genericProxyStreamer;
+        this.executor = new ConstrainedExecutor(regularerExecutor, scheduler, config, registry, AWSClient::getIsRateLimited, null, AWSClient::shouldRetry, AWSClient::retryErrorClass);
+        this.publishGenericExecutor = new ConstrainedExecutor(regularerExecutor, scheduler, config.publish(), registry, AWSClient::getIsRateLimited, null, AWSClient::shouldRetry, AWSClient::retryErrorClass);
+        breakers.register(executor.getCircuitBreaker(), config.faultTolerance().critical());
+        breakers.register(publishGenericExecutor.getCircuitBreaker(), config.publish().faultTolerance().critical());
         this.regularExecutor = delegate;
         this.processSemaphore = new Semaphore(config.subprocessConcurrencyLimit(), true);
         this.mavenContext = new BootstrapMavenContext(BootstrapMavenContext.config()
@@ -195,8 +218,20 @@ public class AWSClient {
         return toReturn;
     }
 
+    private static String retryErrorClass(Object result) {
+        if (result instanceof Results<?> res) {
+            return res.errors().stream()
+                .map(err -> err.getClass())
+                .filter(retryOn::contains)
+                .map(Class::getSimpleName)
+                .findFirst()
+                .orElse(null);
+        }
+        return result.getClass().getSimpleName();
+    }
+
     public CompletableFuture<Result<Boolean>> repositoriesExists(Collection<String> repositories) {
-        return executor.supplyAsync(1, () -> nativeClient.listRepositoriesInDomain(ListRepositoriesInDomainRequest
+        return executor.supplyAsync(Lane.CONTROL, 1, () -> nativeClient.listRepositoriesInDomain(ListRepositoriesInDomainRequest
                 .builder()
                 .domain(config.domain())
                 .domainOwner(config.owner())
@@ -210,7 +245,7 @@ public class AWSClient {
     }
 
     public CompletableFuture<Result<String>> getRepositoryEndpoint(String repository, PackageFormat tool) {
-        return executor.supplyAsync(1, () -> nativeClient.getRepositoryEndpoint(GetRepositoryEndpointRequest
+        return executor.supplyAsync(Lane.CONTROL, 1, () -> nativeClient.getRepositoryEndpoint(GetRepositoryEndpointRequest
                 .builder()
                 .domain(config.domain())
                 .domainOwner(config.owner())
@@ -222,7 +257,7 @@ public class AWSClient {
     }
 
     public CompletableFuture<Result<GetAuthorizationTokenResponse>> getTemporaryToken(Long durationSeconds) {
-        return executor.supplyAsync(1, () -> nativeClient.getAuthorizationToken(
+        return executor.supplyAsync(Lane.CONTROL, 1, () -> nativeClient.getAuthorizationToken(
             GetAuthorizationTokenRequest.builder()
                 .domain(config.domain())
                 .domainOwner(config.owner())
@@ -258,7 +293,7 @@ public class AWSClient {
                                                                                          String packageValue,
                                                                                          String packageVersion,
                                                                                          PackageFormat format) {
-        return executor.supplyAsync(1, () -> nativeClient.listPackageVersionAssets(
+        return executor.supplyAsync(Lane.VERIFICATION, 1, () -> nativeClient.listPackageVersionAssets(
                 ListPackageVersionAssetsRequest.builder()
                     .domain(config.domain())
                     .domainOwner(config.owner())
@@ -279,7 +314,7 @@ public class AWSClient {
     }
 
     public CompletableFuture<Result<String>> createRepository(String repository) {
-        return executor.supplyAsync(1, () -> nativeClient.createRepository(CreateRepositoryRequest.builder()
+        return executor.supplyAsync(Lane.CONTROL, 1, () -> nativeClient.createRepository(CreateRepositoryRequest.builder()
                 .domain(config.domain())
                 .domainOwner(config.owner())
                 .repository(repository)
@@ -343,7 +378,7 @@ public class AWSClient {
                         .build(), AsyncRequestBody.fromFile(assetPath))
                     .thenAccept((ign) -> {
                         log.trace("Results, Rate-limiter Metrics: waiting: {} permissions: {}",
-                                publishGenericExecutor.getNumberOfWaitingThreads(),
+                                publishGenericExecutor.getNumberOfWaiting(),
                                 publishGenericExecutor.getNumberOfPermissions());
                     })
                     .thenApply((response) -> {
@@ -356,6 +391,48 @@ public class AWSClient {
                 .thenApply(result -> verifyResult(result, assets.assets(), new CircularFifoQueue<>(), awsRepoURL, repositoryId));
     }
 
+    /**
+     * Uploads a generic-proxy asset streamed from Indy, see {@link GenericProxyStreamer}.
+     *
+     * @param content opens the content of the asset (or returns the error of Indy), it's opened again on every attempt
+     *                before the attempt takes its AWS permits
+     */
+    public CompletableFuture<Results<GPAsset>> uploadProjectGPStreaming(GPNPVAssets assets,
+                                                                        Supplier<CompletableFuture<Either<UploadResult.Error<GPAsset>, HttpClientResponse>>> content,
+                                                                        String awsRepoURL,
+                                                                        String repositoryId) {
+        GPAsset asset = assets.assets().getFirst();
+        String deployedUrl = asset.generateDeployUrlFrom(awsRepoURL, config.domain(), repositoryId);
+
+        if (config.dryRun()) {
+            log.info("Would stream {} into url={} and repoId={} with these params: namespace={} packageName={} packageVersion={} sha256={}",
+                    asset.getFilename(), awsRepoURL, repositoryId, asset.getNamespace(), asset.getPackageName(), asset.getPackageVersion(), asset.getSha256());
+            var results = new Results<GPAsset>();
+            results.addSuccess(new Success<>(new AssetUpload<>(asset, deployedUrl, repositoryId, ZonedDateTime.now())));
+            return CompletableFuture.completedFuture(results);
+        }
+
+        // Indy is waited for before the AWS permits are taken, the opened response stays paused until published
+        return publishGenericExecutor.wrapAsync(1, content, opened -> {
+                var results = new Results<GPAsset>();
+                if (opened.isLeft()) {
+                    results.addError(opened.getLeft());
+                    return CompletableFuture.completedFuture(results);
+                }
+                return genericProxyStreamer.publish(asset, opened.get(), repositoryId)
+                    .thenApply(ign -> {
+                        results.addSuccess(new Success<>(new AssetUpload<>(asset, deployedUrl, repositoryId, ZonedDateTime.now())));
+                        return results;
+                    })
+                    .exceptionally(error -> handleAWSUploadErrors(error, results, asset, repositoryId, deployedUrl));
+            }, opened -> {
+                if (opened.isRight()) {
+                    opened.get().request().reset();
+                }
+            })
+            .thenApply(result -> verifyResult(result, assets.assets(), new CircularFifoQueue<>(), awsRepoURL, repositoryId));
+    }
+
     <T extends Asset> Results<T> handleAWSUploadErrors(Throwable error, Results<T> results, T asset, String repositoryId, String deployedUrl) {
         results.addError(getAWSError(error, results, asset, repositoryId, deployedUrl));
         return results;
@@ -386,6 +463,9 @@ public class AWSClient {
             // base
             case SdkClientException proc -> new GenericError.UncaughtException<>(asset, proc);
 
+            // streamed content didn't match PNC
+            case GenericProxyStreamer.DigestMismatchException mismatch -> new GenericError.CorruptedData<>(asset, mismatch.getMessage());
+
             // base exception to all above
             case SdkException dunno -> new AWSError.ConnectionError<>(asset, dunno.getMessage());
 
@@ -429,6 +509,43 @@ public class AWSClient {
             .thenApply((result) -> verifyResult(result, gav.assets(), new CircularFifoQueue<>(), awsRepoURL, repositoryId));
     }
 
+    /**
+     * Uploads files of the GAV, see {@link MavenUploader#uploadFiles}. The version has to be published by
+     * {@link #publishMvnNative} afterward.
+     */
+    public CompletableFuture<Results<MavenAsset>> uploadFilesMvnNative(MvnGAVAssets gav,
+                                                                       Path assetDir,
+                                                                       String awsRepoURL,
+                                                                       String repositoryId) {
+        if (config.dryRun()) {
+            log.info("Would upload {} into url={} and repoId={}", gav.assets(), awsRepoURL, repositoryId);
+            var results = new Results<MavenAsset>();
+            gav.assets().forEach(ass -> results.addSuccess(new Success<>(new AssetUpload<>(ass, awsRepoURL + "?", repositoryId, ZonedDateTime.now()))));
+            return CompletableFuture.completedFuture(results);
+        }
+
+        return executor.wrapAsync(MavenUploader.fileRequestCount(gav),
+                () -> mavenUploader.uploadFiles(gav, assetDir, awsRepoURL, repositoryId, tokenService.getToken()));
+    }
+
+    /**
+     * Publishes the GAV in maven-metadata.xml of its GA, see {@link MavenUploader#publish}.
+     *
+     * @param files results of {@link #uploadFilesMvnNative}
+     */
+    public CompletableFuture<Results<MavenAsset>> publishMvnNative(MvnGAVAssets gav,
+                                                                   Results<MavenAsset> files,
+                                                                   String awsRepoURL,
+                                                                   String repositoryId) {
+        if (config.dryRun() || files.haveErrors()) {
+            return CompletableFuture.completedFuture(files);
+        }
+
+        return executor.wrapAsync(MavenUploader.METADATA_REQUESTS,
+                () -> mavenUploader.publish(gav, files, awsRepoURL, repositoryId, tokenService.getToken()))
+            .thenApply((result) -> verifyResult(result, gav.assets(), new CircularFifoQueue<>(), awsRepoURL, repositoryId));
+    }
+
     private static CompletableFuture<Results<MavenAsset>> mockResult(MvnGAVAssets gav, String awsRepoURL, String repositoryId, DeployRequest request, Results<MavenAsset> results) {
         log.info("Would deploy with this request: {}", request);
         gav.assets().forEach(ass -> {
@@ -514,15 +631,19 @@ public class AWSClient {
     }
 
     private static UploadResult.Error<MavenAsset> handleStatusCode(String repositoryId, String deployedUrl, MavenAsset ass, HttpResponseException res) {
-        return switch (res.getStatusCode()) {
-            case 400 -> new GenericError.CorruptedData<>(ass, res.getReasonPhrase());
+        return statusError(res.getStatusCode(), res.getReasonPhrase(), repositoryId, deployedUrl, ass);
+    }
+
+    static UploadResult.Error<MavenAsset> statusError(int status, String reason, String repositoryId, String deployedUrl, MavenAsset ass) {
+        return switch (status) {
+            case 400 -> new GenericError.CorruptedData<>(ass, reason);
             case 402 -> new AWSError.QuotaExceeded<>(ass);
             // should happen just on metadata
-            case 404 -> new UploadResult.Error.IndyError.NotFound<>(ass, res.getReasonPhrase());
+            case 404 -> new UploadResult.Error.IndyError.NotFound<>(ass, reason);
             case 409 -> new AWSError.Conflict<>(ass, deployedUrl, repositoryId, ZonedDateTime.now());
             case 429 -> new AWSError.RateLimitExceeded<>(ass);
-            case 500 -> new AWSError.ServerError<>(ass, res.getReasonPhrase());
-            default -> new GenericError.UnknownError<>(ass, res.getReasonPhrase());
+            case 500 -> new AWSError.ServerError<>(ass, reason);
+            default -> new GenericError.UnknownError<>(ass, reason);
         };
     }
 
@@ -744,6 +865,41 @@ public class AWSClient {
         return results;
     }
 
+    public CompletableFuture<Results<NpmAsset>> uploadProjectNpmNative(NpmNVAssets nv,
+                                                                       Path assetDir,
+                                                                       String awsRepoURL,
+                                                                       String repositoryId) {
+        if (config.dryRun()) {
+            log.info("Would publish {} into url={} and repoId={}", nv.prettyPrint(), awsRepoURL, repositoryId);
+            var results = new Results<NpmAsset>();
+            nv.assets().forEach(ass -> results.addSuccess(new Success<>(new AssetUpload<>(ass, awsRepoURL + "?", repositoryId, ZonedDateTime.now()))));
+            return CompletableFuture.completedFuture(results);
+        }
+
+        log.info("Publishing NPM project: {}. Assets size {}.", nv.versionIdentifier(), nv.assets());
+
+        // the publish blocks while streaming the tarball, it runs on a virtual thread instead of the managed pool
+        return executor.wrapAsync(1, () -> CompletableFuture.supplyAsync(
+                () -> npmPublisher.publish(nv, assetDir, awsRepoURL, repositoryId, tokenService.getToken()),
+                regularExecutor))
+            .thenApply((result) -> verifyResult(result, nv.assets(), new CircularFifoQueue<>(), awsRepoURL, repositoryId));
+    }
+
+    /**
+     * Moves the "latest" dist-tag to a version published by {@link #uploadProjectNpmNative} if it's newer, see
+     * {@link NpmPublisher#tagLatest}.
+     */
+    public CompletableFuture<Results<NpmAsset>> tagNpmLatest(NpmNVAssets nv,
+                                                             Results<NpmAsset> published,
+                                                             String awsRepoURL,
+                                                             String repositoryId) {
+        if (config.dryRun() || published.haveErrors()) {
+            return CompletableFuture.completedFuture(published);
+        }
+
+        return executor.wrapAsync(NpmPublisher.TAG_REQUESTS, () -> npmPublisher.tagLatest(nv, published, awsRepoURL, repositoryId, tokenService.getToken()));
+    }
+
     public CompletableFuture<Results<NpmAsset>> uploadProject(NpmNVAssets nv,
                                                               Path assetDir,
                                                               String awsRepoURL,
@@ -835,17 +991,35 @@ public class AWSClient {
             return false;
         }
 
-        assets.forEach(ass -> agg.addError(switch (statusCode) {
-            case "E400" -> new GenericError.CorruptedData<>(ass, joinBuffer(contextBuffer));
+        assets.forEach(ass -> agg.addError(npmError(statusCode, joinBuffer(contextBuffer), repositoryId, awsRepoUrl, ass)));
+        return true;
+    }
+
+    static UploadResult.Error<NpmAsset> npmError(String statusCode, String context, String repositoryId, String awsRepoUrl, NpmAsset ass) {
+        return switch (statusCode) {
+            case "E400" -> new GenericError.CorruptedData<>(ass, context);
             case "E402" -> new AWSError.QuotaExceeded<>(ass);
             case "ENEEDAUTH" -> new AWSError.InvalidToken<>(ass);
             // Has its own pattern
             case "E409" -> new AWSError.Conflict<>(ass, awsRepoUrl, repositoryId, ZonedDateTime.now());
             case "E429" -> new AWSError.RateLimitExceeded<>(ass);
-            case "E500" -> new AWSError.ServerError<>(ass, joinBuffer(contextBuffer));
-            default -> new GenericError.UnknownError<>(ass, joinBuffer(contextBuffer));
-        }));
-        return true;
+            case "E500" -> new AWSError.ServerError<>(ass, context);
+            default -> new GenericError.UnknownError<>(ass, context);
+        };
+    }
+
+    /**
+     * Classifies failures of HTTP requests made directly (without the AWS SDK or Aether).
+     */
+    static <T extends Asset> UploadResult.Error<T> transportError(Throwable error, T asset) {
+        return switch (error) {
+            case CompletionException e when e.getCause() != null -> transportError(e.getCause(), asset);
+            case TimeoutException timeout -> new GenericError.Timeout<>(asset);
+            case io.netty.channel.ConnectTimeoutException timeout -> new GenericError.Timeout<>(asset);
+            case ConnectException connect -> new AWSError.ConnectionError<>(asset, connect.toString());
+            case HttpClosedException closed -> new AWSError.ConnectionError<>(asset, closed.toString());
+            default -> new GenericError.UncaughtException<>(asset, error);
+        };
     }
 
     private static String joinBuffer(Queue<String> buffer) {
@@ -1,5 +1,7 @@
 package org.jboss.pnc.artsync.aws;
 
+import io.github.resilience4j.core.functions.Either;
+import io.vertx.core.http.HttpClientResponse;
 import jakarta.enterprise.context.ApplicationScoped;
 import org.jboss.pnc.artsync.config.ArtsyncConfig;
 import org.jboss.pnc.artsync.model.Asset;
@@ -10,6 +12,7 @@ import org.jboss.pnc.artsync.model.MvnGAVAssets;
 import org.jboss.pnc.artsync.model.NpmAsset;
 import org.jboss.pnc.artsync.model.NpmNVAssets;
 import org.jboss.pnc.artsync.model.Results;
+import org.jboss.pnc.artsync.model.UploadResult;
 import org.jboss.pnc.artsync.model.UploadResult.Error.GenericError;
 import org.jboss.pnc.artsync.model.VersionAssets;
 import org.jboss.pnc.artsync.pnc.Result;
@@ -20,6 +23,7 @@ import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
 
 import static org.jboss.pnc.artsync.config.RepositoryMapping.parseIndyRepository;
 import static software.amazon.awssdk.services.codeartifact.model.PackageFormat.GENERIC;
@@ -35,10 +39,13 @@ public class AWSService {
 
     private final ArtsyncConfig config;
 
-    public AWSService(AWSClient client, SettingsGenerator settingsProvider, ArtsyncConfig config) {
+    private final AWSApplicationConfig awsConfig;
+
+    public AWSService(AWSClient client, SettingsGenerator settingsProvider, ArtsyncConfig config, AWSApplicationConfig awsConfig) {
         this.client = client;
         this.settingsProvider = settingsProvider;
         this.config = config;
+        this.awsConfig = awsConfig;
     }
 
     public Result<Boolean> validateRepositories(Collection<String> repositories) {
@@ -73,10 +80,42 @@ public class AWSService {
 
     public CompletableFuture<? extends Results<? extends Asset>> uploadVersion(VersionAssets<? extends Asset> versionAssets,
                                                                                  Path assetDir) {
-        return (switch (versionAssets) {
-            case MvnGAVAssets gav -> uploadMavenGAV(gav, assetDir);
-            case NpmNVAssets nv -> uploadNpmNV(nv, assetDir);
+        return uploadVersionFiles(versionAssets, assetDir)
+            .thenCompose(files -> publishVersion(versionAssets, assetDir, files));
+    }
+
+    /**
+     * Uploads files of a version. Maven and NPM versions uploaded natively are not complete until they're
+     * {@link #publishVersion published}, uploads through mvn/npm processes do all the work when they're published.
+     * Files of several versions of a project can be uploaded concurrently.
+     */
+    public CompletableFuture<? extends Results<? extends Asset>> uploadVersionFiles(VersionAssets<? extends Asset> versionAssets,
+                                                                                      Path assetDir) {
+        return switch (versionAssets) {
+            case MvnGAVAssets gav -> uploadMavenFiles(gav, assetDir);
+            case NpmNVAssets nv -> uploadNpmFiles(nv, assetDir);
             case GPNPVAssets gp -> uploadGenericProxyNPV(gp, assetDir);
+        };
+    }
+
+    /**
+     * Publishes a version updating project-wide data (maven-metadata.xml, npm dist-tag "latest"), versions of a
+     * project have to be published one at a time in version order.
+     *
+     * @param files results of {@link #uploadVersionFiles}
+     */
+    @SuppressWarnings("unchecked")
+    public CompletableFuture<? extends Results<? extends Asset>> publishVersion(VersionAssets<? extends Asset> versionAssets,
+                                                                                  Path assetDir,
+                                                                                  Results<? extends Asset> files) {
+        if (files.haveErrors()) {
+            return CompletableFuture.completedFuture(invalidateOnErrors(files));
+        }
+
+        return (switch (versionAssets) {
+            case MvnGAVAssets gav -> publishMavenGAV(gav, assetDir, (Results<MavenAsset>) files);
+            case NpmNVAssets nv -> publishNpmNV(nv, assetDir, (Results<NpmAsset>) files);
+            case GPNPVAssets gp -> CompletableFuture.completedFuture(files);
         }).thenApply(this::invalidateOnErrors);
     }
 
@@ -99,7 +138,7 @@ public class AWSService {
         return invalidatedResults;
     }
 
-    private CompletableFuture<Results<NpmAsset>> uploadNpmNV(NpmNVAssets nv, Path assetDir) {
+    private CompletableFuture<Results<NpmAsset>> uploadNpmFiles(NpmNVAssets nv, Path assetDir) {
         String awsRepo = config.repositoryMapping().mapToAws(nv.getSourceRepository());
         if (awsRepo == null) {
             var result = new Results<NpmAsset>();
@@ -108,6 +147,26 @@ public class AWSService {
             return CompletableFuture.completedFuture(result);
         }
 
+        if (awsConfig.nativeNpmPublish()) {
+            return client.uploadProjectNpmNative(nv,
+                assetDir,
+                settingsProvider.getRepoUrl(awsRepo, NPM),
+                awsRepo);
+        }
+
+        // npm publish does everything at once
+        return CompletableFuture.completedFuture(new Results<>());
+    }
+
+    private CompletableFuture<Results<NpmAsset>> publishNpmNV(NpmNVAssets nv, Path assetDir, Results<NpmAsset> files) {
+        String awsRepo = config.repositoryMapping().mapToAws(nv.getSourceRepository());
+        if (awsConfig.nativeNpmPublish()) {
+            return client.tagNpmLatest(nv,
+                files,
+                settingsProvider.getRepoUrl(awsRepo, NPM),
+                awsRepo);
+        }
+
         return client.uploadProject(nv,
             assetDir,
             settingsProvider.getRepoUrl(awsRepo, NPM),
@@ -115,7 +174,7 @@ public class AWSService {
             settingsProvider.getSettings(awsRepo, NPM).toPath().toString());
     }
 
-    public CompletableFuture<Results<MavenAsset>> uploadMavenGAV(MvnGAVAssets gav, Path assetDir) {
+    private CompletableFuture<Results<MavenAsset>> uploadMavenFiles(MvnGAVAssets gav, Path assetDir) {
         String awsRepo = config.repositoryMapping().mapToAws(gav.getSourceRepository());
         if (awsRepo == null) {
             var result = new Results<MavenAsset>();
@@ -124,6 +183,26 @@ public class AWSService {
             return CompletableFuture.completedFuture(result);
         }
 
+        if (awsConfig.nativeMavenUpload()) {
+            return client.uploadFilesMvnNative(gav,
+                assetDir,
+                settingsProvider.getRepoUrl(awsRepo, MAVEN),
+                awsRepo);
+        }
+
+        // Aether deploys artifacts and metadata at once
+        return CompletableFuture.completedFuture(new Results<>());
+    }
+
+    private CompletableFuture<Results<MavenAsset>> publishMavenGAV(MvnGAVAssets gav, Path assetDir, Results<MavenAsset> files) {
+        String awsRepo = config.repositoryMapping().mapToAws(gav.getSourceRepository());
+        if (awsConfig.nativeMavenUpload()) {
+            return client.publishMvnNative(gav,
+                files,
+                settingsProvider.getRepoUrl(awsRepo, MAVEN),
+                awsRepo);
+        }
+
         return client.uploadProjectMvn2(gav,
             assetDir,
             settingsProvider.getRepoUrl(awsRepo, MAVEN),
@@ -146,4 +225,26 @@ public class AWSService {
                 awsRepo);
     }
 
+    /**
+     * Uploads a generic-proxy version streamed from Indy instead of from the download directory.
+     *
+     * @param content opens the content of the asset (or returns the error of Indy)
+     */
+    public CompletableFuture<Results<GPAsset>> uploadGenericProxyStreaming(GPNPVAssets npv,
+                                                                           Supplier<CompletableFuture<Either<UploadResult.Error<GPAsset>, HttpClientResponse>>> content) {
+        String awsRepo = config.repositoryMapping().mapToAws(npv.getSourceRepository());
+        if (awsRepo == null) {
+            var result = new Results<GPAsset>();
+            npv.assets().forEach(ass -> result.addError(new GenericError.MissingRepositoryMapping<>(ass, parseIndyRepository(npv.getSourceRepository()))));
+
+            return CompletableFuture.completedFuture(result);
+        }
+
+        return client.uploadProjectGPStreaming(npv,
+                content,
+                settingsProvider.getRepoUrl(awsRepo, GENERIC),
+                awsRepo)
+            .thenApply(this::invalidateOnErrors);
+    }
+
 }
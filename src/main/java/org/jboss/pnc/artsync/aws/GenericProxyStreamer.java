@@ -0,0 +1,238 @@
+package org.jboss.pnc.artsync.aws;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.vertx.core.MultiMap;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.RequestOptions;
+import io.vertx.ext.web.client.WebClientOptions;
+import jakarta.enterprise.context.ApplicationScoped;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.jboss.pnc.artsync.indy.DigestingWriteStream;
+import org.jboss.pnc.artsync.model.GPAsset;
+import software.amazon.awssdk.awscore.exception.AwsErrorDetails;
+import software.amazon.awssdk.identity.spi.AwsCredentialsIdentity;
+import software.amazon.awssdk.identity.spi.AwsSessionCredentialsIdentity;
+import software.amazon.awssdk.identity.spi.IdentityProvider;
+import software.amazon.awssdk.services.codeartifact.CodeartifactAsyncClient;
+import software.amazon.awssdk.services.codeartifact.model.AccessDeniedException;
+import software.amazon.awssdk.services.codeartifact.model.CodeartifactException;
+import software.amazon.awssdk.services.codeartifact.model.ConflictException;
+import software.amazon.awssdk.services.codeartifact.model.InternalServerException;
+import software.amazon.awssdk.services.codeartifact.model.ServiceQuotaExceededException;
+import software.amazon.awssdk.services.codeartifact.model.ThrottlingException;
+
+import java.io.IOException;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes a generic-proxy asset streamed straight from Indy (publish-package-version API), nothing is written to
+ * disk.
+ *
+ * The AWS SDK signs a request by digesting its body before sending it, which needs a body that can be read twice.
+ * The request is therefore signed ({@link SigV4}) with the SHA-256 known from PNC, which is also the asset SHA-256 of
+ * the API. The digest of the streamed content is verified on the fly, a mismatch aborts the upload before its end.
+ *
+ * Failures are the exceptions of the AWS SDK, so they're classified the same way as uploads of downloaded files.
+ */
+@Slf4j
+@ApplicationScoped
+public class GenericProxyStreamer {
+
+    private static final String SERVICE = "codeartifact";
+
+    private static final String PUBLISH_PATH = "/v1/package/version/publish";
+
+    private final HttpClient httpClient;
+
+    private final ObjectMapper mapper;
+
+    private final AWSApplicationConfig config;
+
+    private final IdentityProvider<? extends AwsCredentialsIdentity> credentials;
+
+    private final SigV4 signer;
+
+    private final URI endpoint;
+
+    /**
+     * The streamed content doesn't match its size or SHA-256.
+     */
+    public static class DigestMismatchException extends IOException {
+        public DigestMismatchException(String message) {
+            super(message);
+        }
+    }
+
+    public GenericProxyStreamer(Vertx vertx,
+                                WebClientOptions httpConfig,
+                                ObjectMapper mapper,
+                                AWSApplicationConfig config,
+                                CodeartifactAsyncClient nativeClient) {
+        this.httpClient = vertx.createHttpClient(httpConfig);
+        this.mapper = mapper;
+        this.config = config;
+        this.credentials = nativeClient.serviceClientConfiguration().credentialsProvider();
+        String region = nativeClient.serviceClientConfiguration().region().id();
+        this.signer = new SigV4(region, SERVICE);
+        this.endpoint = nativeClient.serviceClientConfiguration().endpointOverride()
+            .orElseGet(() -> URI.create("https://" + SERVICE + "." + region + ".amazonaws.com"));
+    }
+
+    /**
+     * @param content paused response of Indy, it's consumed (or reset on failure)
+     * @return future failed with an exception of the AWS SDK (or {@link DigestMismatchException}) if not published
+     */
+    public CompletableFuture<Void> publish(GPAsset asset, HttpClientResponse content, String repositoryId) {
+        Map<String, String> query = new TreeMap<>();
+        query.put("asset", asset.getFilename());
+        query.put("domain", config.domain());
+        query.put("domain-owner", config.owner());
+        query.put("format", "generic");
+        query.put("namespace", asset.getNamespace());
+        query.put("package", asset.getPackageName());
+        query.put("repository", repositoryId);
+        query.put("version", asset.getPackageVersion());
+
+        return credentials.resolveIdentity()
+            .thenCompose(identity -> httpClient.request(signedRequest(identity, query, asset))
+                .toCompletionStage().toCompletableFuture())
+            .thenCompose(request -> send(request, content, asset))
+            .thenCompose(this::handleResponse)
+            .whenComplete((ign, t) -> {
+                if (t != null) {
+                    // content may not have been consumed, don't keep the Indy connection
+                    content.request().reset();
+                }
+            });
+    }
+
+    private CompletableFuture<HttpClientResponse> send(HttpClientRequest request, HttpClientResponse content, GPAsset asset) {
+        CompletableFuture<HttpClientResponse> done = new CompletableFuture<>();
+        MessageDigest sha256 = DigestUtils.getSha256Digest();
+        AtomicLong size = new AtomicLong();
+        AtomicBoolean ended = new AtomicBoolean(false);
+
+        content.handler(buffer -> {
+            DigestingWriteStream.update(sha256, buffer);
+            size.addAndGet(buffer.length());
+            request.write(buffer);
+            if (request.writeQueueFull()) {
+                content.pause();
+                request.drainHandler(ign -> content.resume());
+            }
+        });
+        content.exceptionHandler(t -> {
+            request.reset(0, t);
+            done.completeExceptionally(t);
+        });
+        content.endHandler(ign -> {
+            ended.set(true);
+            String actual = Hex.encodeHexString(sha256.digest());
+            if (size.get() != asset.getSize() || !actual.equals(asset.getSha256())) {
+                var mismatch = new DigestMismatchException("Streamed " + asset.getFilename() + " has size " + size.get()
+                    + " and sha256 '" + actual + "' when expected " + asset.getSize() + " and '" + asset.getSha256() + "'");
+                log.error("AWS: {}", mismatch.getMessage());
+                // the incomplete request is never accepted
+                request.reset(0, mismatch);
+                done.completeExceptionally(mismatch);
+            } else {
+                request.end();
+            }
+        });
+        request.response()
+            .onSuccess(response -> {
+                if (!ended.get()) {
+                    // AWS refused the upload before its end
+                    content.request().reset();
+                }
+                done.complete(response);
+            })
+            .onFailure(done::completeExceptionally);
+
+        content.resume();
+        return done;
+    }
+
+    private CompletableFuture<Void> handleResponse(HttpClientResponse response) {
+        return response.body().toCompletionStage().toCompletableFuture()
+            .thenAccept(body -> {
+                if (response.statusCode() >= 200 && response.statusCode() < 300) {
+                    return;
+                }
+                throw toException(response, body);
+            });
+    }
+
+    /**
+     * Recreates the exception the AWS SDK would throw for the error response.
+     */
+    private CodeartifactException toException(HttpClientResponse response, Buffer body) {
+        String type = String.valueOf(response.getHeader("x-amzn-ErrorType")).split(":")[0];
+        String message;
+        try {
+            message = mapper.readTree(body.getBytes()).path("message").asText(body.toString());
+        } catch (IOException e) {
+            message = body.toString();
+        }
+
+        AwsErrorDetails details = AwsErrorDetails.builder()
+            .errorCode(type)
+            .errorMessage(message)
+            .serviceName(SERVICE)
+            .build();
+        CodeartifactException.Builder builder = switch (type) {
+            case "ConflictException" -> ConflictException.builder();
+            case "ServiceQuotaExceededException" -> ServiceQuotaExceededException.builder();
+            case "AccessDeniedException" -> AccessDeniedException.builder();
+            case "ThrottlingException" -> ThrottlingException.builder();
+            case "InternalServerException" -> InternalServerException.builder();
+            default -> CodeartifactException.builder();
+        };
+        return (CodeartifactException) builder
+            .awsErrorDetails(details)
+            .message(type + ": " + message)
+            .statusCode(response.statusCode())
+            .build();
+    }
+
+    private RequestOptions signedRequest(AwsCredentialsIdentity identity, Map<String, String> query, GPAsset asset) {
+        String host = endpoint.getPort() == -1 ? endpoint.getHost() : endpoint.getHost() + ":" + endpoint.getPort();
+
+        // the SigV4 payload hash is the asset SHA-256 of the API
+        Map<String, String> signed = new TreeMap<>();
+        signed.put("host", host);
+        signed.put("x-amz-content-sha256", asset.getSha256());
+        signed.put("x-amz-date", SigV4.AMZ_DATE.format(ZonedDateTime.now(ZoneOffset.UTC)));
+        if (identity instanceof AwsSessionCredentialsIdentity session) {
+            signed.put("x-amz-security-token", session.sessionToken());
+        }
+
+        MultiMap headers = MultiMap.caseInsensitiveMultiMap();
+        signed.forEach(headers::add);
+        headers.add(HttpHeaders.AUTHORIZATION,
+            signer.authorization(identity, "POST", PUBLISH_PATH, query, signed, asset.getSha256()));
+        headers.add(HttpHeaders.CONTENT_TYPE, "application/octet-stream");
+        headers.add(HttpHeaders.CONTENT_LENGTH, String.valueOf(asset.getSize()));
+
+        return new RequestOptions()
+            .setMethod(HttpMethod.POST)
+            .setAbsoluteURI(endpoint.resolve(PUBLISH_PATH) + "?" + SigV4.canonicalQuery(query))
+            .setHeaders(headers);
+    }
+}
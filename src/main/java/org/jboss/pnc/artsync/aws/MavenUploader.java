@@ -0,0 +1,373 @@
+package org.jboss.pnc.artsync.aws;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.FileSystem;
+import io.vertx.core.file.OpenOptions;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.ext.web.client.HttpRequest;
+import io.vertx.ext.web.client.HttpResponse;
+import io.vertx.ext.web.client.WebClient;
+import io.vertx.ext.web.client.WebClientOptions;
+import jakarta.enterprise.context.ApplicationScoped;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.maven.artifact.repository.metadata.Metadata;
+import org.apache.maven.artifact.repository.metadata.Versioning;
+import org.apache.maven.artifact.repository.metadata.io.xpp3.MetadataXpp3Reader;
+import org.apache.maven.artifact.repository.metadata.io.xpp3.MetadataXpp3Writer;
+import org.commonjava.atlas.maven.ident.ref.SimpleArtifactRef;
+import org.jboss.da.common.version.VersionComparator;
+import org.jboss.pnc.artsync.model.AssetUpload;
+import org.jboss.pnc.artsync.model.Label;
+import org.jboss.pnc.artsync.model.MavenAsset;
+import org.jboss.pnc.artsync.model.MvnGAVAssets;
+import org.jboss.pnc.artsync.model.Results;
+import org.jboss.pnc.artsync.model.UploadResult;
+import org.jboss.pnc.artsync.model.UploadResult.Error.GenericError;
+import org.jboss.pnc.artsync.model.UploadResult.Success;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Uploads a Maven GAV straight to the Maven endpoint of a CodeArtifact repository, without Aether or a mvn process.
+ *
+ * All files of the GAV are PUT concurrently and streamed from disk. Checksum files are sent from the checksums known
+ * from PNC instead of re-reading the files. Once all files are uploaded, maven-metadata.xml of the GA is merged with
+ * the new version and uploaded, which publishes the version in CodeArtifact. The two steps are separate
+ * ({@link #uploadFiles} and {@link #publish}), so that files of several versions of a GA can be uploaded concurrently
+ * while their metadata is published in version order.
+ *
+ * Versions of a GA are published in order by a node, but other nodes can merge maven-metadata.xml of the same GA at
+ * the same time. CodeArtifact has no conditional PUT, so the merged metadata are read back and the merge is redone if
+ * a concurrent PUT dropped the version.
+ *
+ * Results (and their errors) are the same as of the Aether deploy in {@link AWSClient#uploadProjectMvn2}.
+ */
+@Slf4j
+@ApplicationScoped
+public class MavenUploader {
+
+    private static final String METADATA = "maven-metadata.xml";
+
+    // merges of maven-metadata.xml before the version is reported as not published
+    private static final int METADATA_ATTEMPTS = 3;
+
+    // upper bound of the random delay before a merge is redone, so that the conflicting nodes don't collide again
+    private static final long METADATA_RETRY_DELAY_MILLIS = 2000;
+
+    private final Vertx vertx;
+
+    private final WebClient webClient;
+
+    private final FileSystem fs;
+
+    private final VersionComparator vc;
+
+    public MavenUploader(Vertx vertx, WebClientOptions httpConfig, VersionComparator vc) {
+        this.vertx = vertx;
+        this.webClient = WebClient.create(vertx, httpConfig);
+        this.fs = vertx.fileSystem();
+        this.vc = vc;
+    }
+
+    // GET and PUT of maven-metadata.xml, PUT of its two checksums and the GET verifying the merge
+    public static final int METADATA_REQUESTS = 5;
+
+    /**
+     * @return number of HTTP requests of uploading files of the GAV (files and their checksums)
+     */
+    public static int fileRequestCount(MvnGAVAssets gav) {
+        return gav.assets().stream().mapToInt(asset -> 1 + checksums(asset).size()).sum();
+    }
+
+    /**
+     * Uploads files of the GAV, the version is not visible in CodeArtifact until it's {@link #publish published}.
+     */
+    public CompletableFuture<Results<MavenAsset>> uploadFiles(MvnGAVAssets gav,
+                                                              Path assetDir,
+                                                              String awsRepoURL,
+                                                              String repositoryId,
+                                                              String token) {
+        List<MavenAsset> assets = gav.assets();
+        String gaUrl = gaUrl(awsRepoURL, assets.getFirst().getMvnIdentifier());
+
+        List<CompletableFuture<UploadResult.Error<MavenAsset>>> uploads = new ArrayList<>();
+        for (MavenAsset asset : assets) {
+            uploads.add(uploadAsset(asset, assetDir.resolve(asset.getFilename()), fileUrl(gaUrl, asset), repositoryId, token));
+        }
+
+        return CompletableFuture.allOf(uploads.toArray(new CompletableFuture[0]))
+            .thenApply(ign -> {
+                Results<MavenAsset> results = new Results<>();
+                for (int i = 0; i < assets.size(); i++) {
+                    MavenAsset asset = assets.get(i);
+                    UploadResult.Error<MavenAsset> error = uploads.get(i).join();
+                    if (error == null) {
+                        results.addSuccess(new Success<>(new AssetUpload<>(asset, fileUrl(gaUrl, asset), repositoryId, ZonedDateTime.now())));
+                    } else {
+                        results.addError(error);
+                    }
+                }
+                return results;
+            });
+    }
+
+    /**
+     * Publishes the GAV by adding it to maven-metadata.xml of the GA. Versions of a GA have to be published one at a
+     * time.
+     *
+     * @param files results of {@link #uploadFiles}, a version with a missing file is not published
+     * @return results of the version, the main asset carries the error if the metadata couldn't be published
+     */
+    public CompletableFuture<Results<MavenAsset>> publish(MvnGAVAssets gav,
+                                                          Results<MavenAsset> files,
+                                                          String awsRepoURL,
+                                                          String repositoryId,
+                                                          String token) {
+        if (files.haveErrors()) {
+            return CompletableFuture.completedFuture(files);
+        }
+
+        MavenAsset main = main(gav.assets());
+        return uploadMetadata(main, gaUrl(awsRepoURL, main.getMvnIdentifier()), repositoryId, token)
+            .thenApply(metadataError -> {
+                if (metadataError == null) {
+                    return files;
+                }
+
+                // all files were uploaded but the version wasn't published, the main asset carries the error
+                Results<MavenAsset> results = new Results<>();
+                files.successes().stream()
+                    .filter(success -> !success.result().asset().equals(main))
+                    .forEach(results::addSuccess);
+                results.addError(metadataError);
+                return results;
+            });
+    }
+
+    /**
+     * @return null if the file and its checksums were uploaded
+     */
+    private CompletableFuture<UploadResult.Error<MavenAsset>> uploadAsset(MavenAsset asset,
+                                                                          Path file,
+                                                                          String url,
+                                                                          String repositoryId,
+                                                                          String token) {
+        return fs.open(file.toString(), new OpenOptions().setRead(true))
+            .compose(openFile -> request(HttpMethod.PUT, url, token)
+                .putHeader(HttpHeaders.CONTENT_LENGTH.toString(), String.valueOf(asset.getSize()))
+                .sendStream(openFile)
+                .andThen(ign -> openFile.close()))
+            .toCompletionStage()
+            .thenCompose(response -> {
+                if (!isSuccess(response)) {
+                    return CompletableFuture.completedFuture(statusError(response, repositoryId, url, asset));
+                }
+                return uploadChecksums(checksums(asset), url, repositoryId, token, asset);
+            })
+            .exceptionally(t -> AWSClient.transportError(t, asset))
+            .toCompletableFuture();
+    }
+
+    private CompletionStage<UploadResult.Error<MavenAsset>> uploadChecksums(Map<String, String> checksums,
+                                                                            String url,
+                                                                            String repositoryId,
+                                                                            String token,
+                                                                            MavenAsset asset) {
+        List<CompletableFuture<UploadResult.Error<MavenAsset>>> uploads = new ArrayList<>();
+        checksums.forEach((extension, checksum) -> {
+            String checksumUrl = url + "." + extension;
+            uploads.add(request(HttpMethod.PUT, checksumUrl, token)
+                .sendBuffer(Buffer.buffer(checksum))
+                .toCompletionStage()
+                .thenApply(response -> isSuccess(response) ? null : statusError(response, repositoryId, checksumUrl, asset))
+                .toCompletableFuture());
+        });
+
+        return CompletableFuture.allOf(uploads.toArray(new CompletableFuture[0]))
+            .thenApply(ign -> uploads.stream().map(CompletableFuture::join).filter(err -> err != null).findFirst().orElse(null));
+    }
+
+    /**
+     * Adds the version to maven-metadata.xml of the GA (the same way as Aether does), uploads it and reads it back. If
+     * the version is missing, a concurrent merge overwrote the metadata and the merge is redone.
+     *
+     * @return null if the metadata were uploaded
+     */
+    private CompletableFuture<UploadResult.Error<MavenAsset>> uploadMetadata(MavenAsset main,
+                                                                             String gaUrl,
+                                                                             String repositoryId,
+                                                                             String token) {
+        return uploadMetadata(main, gaUrl + METADATA, repositoryId, token, 1)
+            .exceptionally(t -> AWSClient.transportError(t, main))
+            .toCompletableFuture();
+    }
+
+    private CompletionStage<UploadResult.Error<MavenAsset>> uploadMetadata(MavenAsset main,
+                                                                           String url,
+                                                                           String repositoryId,
+                                                                           String token,
+                                                                           int attempt) {
+        String version = main.getMvnIdentifier().getVersionString();
+        return mergeMetadata(main, url, repositoryId, token)
+            .thenCompose(error -> error != null
+                ? CompletableFuture.completedFuture(new ReadMetadata(null, error))
+                : readMetadata(main, url, repositoryId, token))
+            .thenCompose(read -> {
+                if (read.error() != null) {
+                    return CompletableFuture.completedFuture(read.error());
+                }
+                Versioning versioning = read.metadata().getVersioning();
+                if (versioning != null && versioning.getVersions().contains(version)) {
+                    return CompletableFuture.completedFuture(null);
+                }
+                if (attempt >= METADATA_ATTEMPTS) {
+                    return CompletableFuture.completedFuture(new GenericError.MissingUpload<>(main,
+                        "Version " + version + " kept being dropped from " + url + " by concurrent merges after "
+                            + attempt + " attempts"));
+                }
+                log.warn("Version {} was dropped from {} by a concurrent merge, merging again.", version, url);
+                long delay = 1 + ThreadLocalRandom.current().nextLong(METADATA_RETRY_DELAY_MILLIS);
+                return vertx.timer(delay).toCompletionStage()
+                    .thenCompose(ign -> uploadMetadata(main, url, repositoryId, token, attempt + 1));
+            });
+    }
+
+    /**
+     * @return null if the merged metadata and their checksums were uploaded
+     */
+    private CompletionStage<UploadResult.Error<MavenAsset>> mergeMetadata(MavenAsset main,
+                                                                          String url,
+                                                                          String repositoryId,
+                                                                          String token) {
+        return readMetadata(main, url, repositoryId, token)
+            .thenCompose(read -> {
+                if (read.error() != null) {
+                    return CompletableFuture.completedFuture(read.error());
+                }
+
+                byte[] metadata;
+                try {
+                    metadata = write(addVersion(read.metadata(), main.getMvnIdentifier()));
+                } catch (IOException e) {
+                    return CompletableFuture.completedFuture(new GenericError.UncaughtException<>(main, e));
+                }
+
+                Map<String, String> checksums = new LinkedHashMap<>();
+                checksums.put("md5", DigestUtils.md5Hex(metadata));
+                checksums.put("sha1", DigestUtils.sha1Hex(metadata));
+                return request(HttpMethod.PUT, url, token)
+                    .sendBuffer(Buffer.buffer(metadata))
+                    .toCompletionStage()
+                    .thenCompose(put -> isSuccess(put)
+                        ? uploadChecksums(checksums, url, repositoryId, token, main)
+                        : CompletableFuture.completedFuture(statusError(put, repositoryId, url, main)));
+            });
+    }
+
+    /**
+     * @param metadata metadata of the GA, empty if there are none yet
+     * @param error set if the metadata couldn't be read
+     */
+    private record ReadMetadata(Metadata metadata, UploadResult.Error<MavenAsset> error) {
+    }
+
+    private CompletionStage<ReadMetadata> readMetadata(MavenAsset main, String url, String repositoryId, String token) {
+        return request(HttpMethod.GET, url, token)
+            .send()
+            .toCompletionStage()
+            .thenApply(response -> switch (response.statusCode()) {
+                case 200 -> {
+                    try {
+                        yield new ReadMetadata(new MetadataXpp3Reader().read(new ByteArrayInputStream(response.bodyAsBuffer().getBytes()), false), null);
+                    } catch (Exception e) {
+                        log.error("Cannot parse {}", url, e);
+                        yield new ReadMetadata(null, new GenericError.CorruptedData<>(main, e.getMessage()));
+                    }
+                }
+                case 404 -> new ReadMetadata(new Metadata(), null);
+                default -> new ReadMetadata(null, statusError(response, repositoryId, url, main));
+            });
+    }
+
+    /**
+     * latest and release only move forward (by {@link VersionComparator}), so that publishing an older version doesn't
+     * make it the newest one. Snapshots are never a release.
+     */
+    private Metadata addVersion(Metadata metadata, SimpleArtifactRef gav) {
+        String version = gav.getVersionString();
+        metadata.setGroupId(gav.getGroupId());
+        metadata.setArtifactId(gav.getArtifactId());
+
+        Versioning versioning = metadata.getVersioning() != null ? metadata.getVersioning() : new Versioning();
+        if (!versioning.getVersions().contains(version)) {
+            versioning.addVersion(version);
+        }
+        if (isNewer(version, versioning.getLatest())) {
+            versioning.setLatest(version);
+        }
+        if (!gav.isSnapshot() && isNewer(version, versioning.getRelease())) {
+            versioning.setRelease(version);
+        }
+        versioning.updateTimestamp();
+        metadata.setVersioning(versioning);
+
+        return metadata;
+    }
+
+    private boolean isNewer(String version, String current) {
+        return current == null || current.isBlank() || vc.compare(version, current) > 0;
+    }
+
+    private static byte[] write(Metadata metadata) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new MetadataXpp3Writer().write(out, metadata);
+        return out.toByteArray();
+    }
+
+    private HttpRequest<Buffer> request(HttpMethod method, String url, String token) {
+        return webClient.requestAbs(method, url).basicAuthentication("aws", token);
+    }
+
+    private static Map<String, String> checksums(MavenAsset asset) {
+        Map<String, String> checksums = new LinkedHashMap<>();
+        if (asset.getMd5() != null) checksums.put("md5", asset.getMd5());
+        if (asset.getSha1() != null) checksums.put("sha1", asset.getSha1());
+        if (asset.getSha256() != null) checksums.put("sha256", asset.getSha256());
+        return checksums;
+    }
+
+    private static MavenAsset main(List<MavenAsset> assets) {
+        return assets.stream().filter(asset -> asset.getLabel() == Label.TOP_JAR).findFirst().orElse(assets.getLast());
+    }
+
+    private static String gaUrl(String awsRepoURL, SimpleArtifactRef gav) {
+        String base = awsRepoURL.endsWith("/") ? awsRepoURL : awsRepoURL + "/";
+        return base + gav.getGroupId().replace('.', '/') + "/" + gav.getArtifactId() + "/";
+    }
+
+    private static String fileUrl(String gaUrl, MavenAsset asset) {
+        return gaUrl + asset.getMvnIdentifier().getVersionString() + "/" + asset.getFilename();
+    }
+
+    private static boolean isSuccess(HttpResponse<?> response) {
+        return response.statusCode() >= 200 && response.statusCode() < 300;
+    }
+
+    private static UploadResult.Error<MavenAsset> statusError(HttpResponse<?> response, String repositoryId, String url, MavenAsset asset) {
+        return AWSClient.statusError(response.statusCode(), response.statusMessage(), repositoryId, url, asset);
+    }
+}
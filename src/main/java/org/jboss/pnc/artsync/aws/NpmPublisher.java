@@ -0,0 +1,355 @@
+package org.jboss.pnc.artsync.aws;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.RequestOptions;
+import io.vertx.ext.web.client.WebClientOptions;
+import jakarta.enterprise.context.ApplicationScoped;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.codec.binary.Base64InputStream;
+import org.apache.commons.codec.binary.Hex;
+import org.jboss.da.common.version.VersionComparator;
+import org.jboss.pnc.artsync.model.AssetUpload;
+import org.jboss.pnc.artsync.model.NpmAsset;
+import org.jboss.pnc.artsync.model.NpmNVAssets;
+import org.jboss.pnc.artsync.model.Results;
+import org.jboss.pnc.artsync.model.UploadResult;
+import org.jboss.pnc.artsync.model.UploadResult.Error.GenericError;
+import org.jboss.pnc.artsync.model.UploadResult.Success;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.ZonedDateTime;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Publishes an npm package version to the npm endpoint of a CodeArtifact repository without the npm CLI.
+ *
+ * The tarball is downloaded from Indy like any other asset. Its package.json and integrity are read in one pass, the
+ * publish document (as `npm publish` sends it) is then PUT with the tarball streamed into it as a base64
+ * attachment, so the tarball is never held in memory.
+ *
+ * A version is published under the {@value #PUBLISH_TAG} dist-tag. The "latest" dist-tag is project-wide, so it's
+ * moved separately by {@link #tagLatest}, which has to be called in version order, while the versions themselves can
+ * be published concurrently. "latest" only moves forward (by {@link VersionComparator}, the order versions are
+ * published in), publishing an older version (f.e. a patch of an older line) keeps it. The {@value #PUBLISH_TAG}
+ * dist-tag is deleted afterwards, it isn't left on the packages.
+ *
+ * Errors are classified the same way as the output of `npm publish` in {@link AWSClient}.
+ */
+@Slf4j
+@ApplicationScoped
+public class NpmPublisher {
+
+    private static final int TAR_BLOCK = 512;
+
+    private static final int WRITE_CHUNK = 65536;
+
+    // a publish has to carry a dist-tag, "latest" is left to tagLatest
+    static final String PUBLISH_TAG = "artsync";
+
+    // GET and PUT of the dist-tags, DELETE of the publish tag
+    public static final int TAG_REQUESTS = 3;
+
+    private record PublishResponse(int status, String body) {}
+
+    private final HttpClient httpClient;
+
+    private final ObjectMapper mapper;
+
+    private final VersionComparator vc;
+
+    public NpmPublisher(Vertx vertx, WebClientOptions httpConfig, ObjectMapper mapper, VersionComparator vc) {
+        this.httpClient = vertx.createHttpClient(httpConfig);
+        this.mapper = mapper;
+        this.vc = vc;
+    }
+
+    /**
+     * Blocks until the package version is published, has to be called from a virtual thread.
+     */
+    public Results<NpmAsset> publish(NpmNVAssets nv, Path assetDir, String awsRepoURL, String repositoryId, String token) {
+        Results<NpmAsset> results = new Results<>();
+        if (nv.assets().size() != 1) {
+            // should be just 1 tar:gz per package version
+            log.error("Encountered NPM N:V with more than one asset. THIS CAN RESULT IN MISSING UPLOADS. NV:" + nv);
+        }
+        NpmAsset asset = nv.assets().getFirst();
+        Path tarball = assetDir.resolve(asset.getFilename());
+
+        Function<NpmAsset, UploadResult.Error<NpmAsset>> error;
+        try {
+            error = publish(asset, tarball, awsRepoURL, repositoryId, token);
+        } catch (IOException | RuntimeException e) {
+            error = ass -> AWSClient.transportError(e, ass);
+        }
+
+        for (NpmAsset ass : nv.assets()) {
+            if (error == null) {
+                results.addSuccess(new Success<>(new AssetUpload<>(ass, ass.generateDeployUrlFrom(awsRepoURL), repositoryId, ZonedDateTime.now())));
+            } else {
+                results.addError(error.apply(ass));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * @return null if the package version was published, otherwise error of an asset of the version
+     */
+    private Function<NpmAsset, UploadResult.Error<NpmAsset>> publish(NpmAsset asset, Path tarball, String awsRepoURL, String repositoryId, String token) throws IOException {
+        String name = asset.getNpmIdentifier().getName();
+        String version = asset.getNpmIdentifier().getVersionString();
+
+        MessageDigest sha1 = digest("SHA-1");
+        MessageDigest sha512 = digest("SHA-512");
+        JsonNode packageJson;
+        try (InputStream in = new DigestInputStream(new DigestInputStream(Files.newInputStream(tarball), sha1), sha512)) {
+            packageJson = readPackageJson(in);
+            // rest of the tarball for the digests
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+        if (packageJson == null
+            || !name.equals(packageJson.path("name").asText())
+            || !version.equals(packageJson.path("version").asText())) {
+            String message = "package.json of " + tarball + " doesn't match " + name + "@" + version;
+            return ass -> new GenericError.CorruptedData<>(ass, message);
+        }
+
+        long size = Files.size(tarball);
+        String registry = awsRepoURL.endsWith("/") ? awsRepoURL : awsRepoURL + "/";
+        String attachmentName = asset.getUnscopedName() + "-" + version + ".tgz";
+
+        ObjectNode manifest = ((ObjectNode) packageJson).deepCopy();
+        manifest.put("_id", name + "@" + version);
+        ObjectNode dist = manifest.putObject("dist");
+        dist.put("shasum", Hex.encodeHexString(sha1.digest()));
+        dist.put("integrity", "sha512-" + Base64.getEncoder().encodeToString(sha512.digest()));
+        dist.put("tarball", registry + name + "/-/" + attachmentName);
+
+        ObjectNode document = mapper.createObjectNode();
+        document.put("_id", name);
+        document.put("name", name);
+        if (packageJson.has("description")) {
+            document.set("description", packageJson.get("description"));
+        }
+        document.putObject("dist-tags").put(PUBLISH_TAG, version);
+        document.putObject("versions").set(version, manifest);
+        document.putNull("access");
+
+        // the attachment closes the document, its base64 data is streamed between the two parts
+        String json = mapper.writeValueAsString(document);
+        byte[] head = (json.substring(0, json.length() - 1)
+            + ",\"_attachments\":{" + mapper.writeValueAsString(attachmentName)
+            + ":{\"content_type\":\"application/octet-stream\",\"length\":" + size + ",\"data\":\"")
+            .getBytes(StandardCharsets.UTF_8);
+        byte[] tail = "\"}}}".getBytes(StandardCharsets.UTF_8);
+        long contentLength = head.length + 4 * ((size + 2) / 3) + tail.length;
+
+        String url = registry + name.replace("/", "%2f");
+        PublishResponse response;
+        try (InputStream body = new SequenceInputStream(Collections.enumeration(List.of(
+            new ByteArrayInputStream(head),
+            new Base64InputStream(Files.newInputStream(tarball), true, 0, null),
+            new ByteArrayInputStream(tail))))) {
+            response = put(url, token, contentLength, body);
+        }
+
+        if (response.status() >= 200 && response.status() < 300) {
+            return null;
+        }
+        log.info("Error publishing {}: {} {}", asset.getIdentifier(), response.status(), response.body());
+        return ass -> AWSClient.npmError("E" + response.status(), response.body(), repositoryId, awsRepoURL, ass);
+    }
+
+    /**
+     * Points the "latest" dist-tag of the package to the version, unless it already points to a newer (or the same)
+     * version, and deletes the {@value #PUBLISH_TAG} dist-tag the version was published with.
+     *
+     * @param published results of {@link #publish}
+     * @return results of the version, errors if the dist-tag couldn't be moved
+     */
+    public CompletableFuture<Results<NpmAsset>> tagLatest(NpmNVAssets nv,
+                                                          Results<NpmAsset> published,
+                                                          String awsRepoURL,
+                                                          String repositoryId,
+                                                          String token) {
+        if (published.haveErrors()) {
+            return CompletableFuture.completedFuture(published);
+        }
+
+        NpmAsset asset = nv.assets().getFirst();
+        String name = asset.getNpmIdentifier().getName();
+        String version = asset.getNpmIdentifier().getVersionString();
+        String registry = awsRepoURL.endsWith("/") ? awsRepoURL : awsRepoURL + "/";
+        String tagsUrl = registry + "-/package/" + name.replace("/", "%2f") + "/dist-tags";
+
+        Buffer body;
+        try {
+            body = Buffer.buffer(mapper.writeValueAsString(version));
+        } catch (IOException e) {
+            return CompletableFuture.completedFuture(errors(nv, ass -> new GenericError.UncaughtException<>(ass, e)));
+        }
+
+        return send(HttpMethod.GET, tagsUrl, token, null)
+            .thenCompose(tags -> {
+                if (tags.status() != 404 && (tags.status() < 200 || tags.status() >= 300)) {
+                    return CompletableFuture.completedFuture(tags);
+                }
+                String latest = tags.status() == 404 ? null : latestTag(tags.body());
+                if (!isNewer(version, latest)) {
+                    log.debug("Keeping latest {} of {}, {} is not newer.", latest, name, version);
+                    return CompletableFuture.completedFuture(new PublishResponse(200, tags.body()));
+                }
+                return send(HttpMethod.PUT, tagsUrl + "/latest", token, body);
+            })
+            .thenCompose(response -> {
+                if (response.status() < 200 || response.status() >= 300) {
+                    return CompletableFuture.completedFuture(response);
+                }
+                return send(HttpMethod.DELETE, tagsUrl + "/" + PUBLISH_TAG, token, null)
+                    .thenApply(deleted -> {
+                        // a leftover tag is deleted by the next published version of the package
+                        if (deleted.status() != 404 && (deleted.status() < 200 || deleted.status() >= 300)) {
+                            log.warn("Cannot delete dist-tag {} of {}: {} {}", PUBLISH_TAG, name, deleted.status(), deleted.body());
+                        }
+                        return response;
+                    });
+            })
+            .thenApply(response -> {
+                if (response.status() >= 200 && response.status() < 300) {
+                    return published;
+                }
+                log.info("Error tagging {} as latest: {} {}", asset.getIdentifier(), response.status(), response.body());
+                return errors(nv, ass -> AWSClient.npmError("E" + response.status(), response.body(), repositoryId, awsRepoURL, ass));
+            })
+            .exceptionally(t -> errors(nv, ass -> AWSClient.transportError(t, ass)));
+    }
+
+    /**
+     * @param body JSON body, null for none
+     */
+    private CompletableFuture<PublishResponse> send(HttpMethod method, String url, String token, Buffer body) {
+        RequestOptions options = new RequestOptions()
+            .setMethod(method)
+            .setAbsoluteURI(url)
+            .putHeader(HttpHeaders.AUTHORIZATION, "Bearer " + token);
+        if (body != null) {
+            options.putHeader(HttpHeaders.CONTENT_TYPE, "application/json");
+        }
+        return httpClient.request(options)
+            .compose(request -> body == null ? request.send() : request.send(body))
+            .compose(response -> response.body().map(content -> new PublishResponse(response.statusCode(), content.toString())))
+            .toCompletionStage().toCompletableFuture();
+    }
+
+    // null if the package has no (readable) latest dist-tag
+    private String latestTag(String distTags) {
+        try {
+            JsonNode latest = mapper.readTree(distTags).path("latest");
+            return latest.isTextual() ? latest.asText() : null;
+        } catch (IOException e) {
+            log.warn("Cannot parse dist-tags {}", distTags, e);
+            return null;
+        }
+    }
+
+    private boolean isNewer(String version, String current) {
+        return current == null || current.isBlank() || vc.compare(version, current) > 0;
+    }
+
+    private static Results<NpmAsset> errors(NpmNVAssets nv, Function<NpmAsset, UploadResult.Error<NpmAsset>> error) {
+        Results<NpmAsset> results = new Results<>();
+        nv.assets().forEach(ass -> results.addError(error.apply(ass)));
+        return results;
+    }
+
+    private PublishResponse put(String url, String token, long contentLength, InputStream body) throws IOException {
+        RequestOptions options = new RequestOptions()
+            .setMethod(HttpMethod.PUT)
+            .setAbsoluteURI(url)
+            .putHeader(HttpHeaders.AUTHORIZATION, "Bearer " + token)
+            .putHeader(HttpHeaders.CONTENT_TYPE, "application/json")
+            .putHeader(HttpHeaders.CONTENT_LENGTH, String.valueOf(contentLength));
+
+        HttpClientRequest request = httpClient.request(options).toCompletionStage().toCompletableFuture().join();
+        byte[] chunk = new byte[WRITE_CHUNK];
+        int read;
+        while ((read = body.readNBytes(chunk, 0, chunk.length)) > 0) {
+            // waits for the chunk to be written, the connection applies the back-pressure
+            request.write(Buffer.buffer(Arrays.copyOf(chunk, read)))
+                .toCompletionStage().toCompletableFuture().join();
+        }
+        return request.end()
+            .compose(ign -> request.response())
+            .compose(response -> response.body().map(content -> new PublishResponse(response.statusCode(), content.toString())))
+            .toCompletionStage().toCompletableFuture().join();
+    }
+
+    /**
+     * Reads package.json in the root directory of a gzipped tarball (the root is 'package/' by convention, but not
+     * always).
+     *
+     * @return null if there is none
+     */
+    private JsonNode readPackageJson(InputStream tarball) throws IOException {
+        InputStream tar = new GZIPInputStream(tarball);
+        byte[] header = new byte[TAR_BLOCK];
+        while (tar.readNBytes(header, 0, TAR_BLOCK) == TAR_BLOCK && header[0] != 0) {
+            String entryName = tarString(header, 345, 155).isEmpty()
+                ? tarString(header, 0, 100)
+                : tarString(header, 345, 155) + "/" + tarString(header, 0, 100);
+            String octalSize = tarString(header, 124, 12).trim();
+            long entrySize = octalSize.isEmpty() ? 0 : Long.parseLong(octalSize, 8);
+            byte type = header[156];
+            long padded = (entrySize + TAR_BLOCK - 1) / TAR_BLOCK * TAR_BLOCK;
+
+            String[] path = entryName.split("/");
+            if ((type == '0' || type == 0) && path.length == 2 && path[1].equals("package.json")) {
+                byte[] content = tar.readNBytes((int) entrySize);
+                tar.skipNBytes(padded - entrySize);
+                return mapper.readTree(content);
+            }
+            tar.skipNBytes(padded);
+        }
+        return null;
+    }
+
+    private static String tarString(byte[] header, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && header[end] != 0) {
+            end++;
+        }
+        return new String(header, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    private static MessageDigest digest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
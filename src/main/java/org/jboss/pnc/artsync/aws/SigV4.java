@@ -0,0 +1,99 @@
+package org.jboss.pnc.artsync.aws;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.codec.digest.HmacAlgorithms;
+import org.apache.commons.codec.digest.HmacUtils;
+import software.amazon.awssdk.identity.spi.AwsCredentialsIdentity;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+/**
+ * Signature Version 4 of AWS requests with a payload hash given by the caller (the SDK signers digest the payload
+ * themselves). Only what {@link GenericProxyStreamer} needs, the path is expected to be already normalized.
+ */
+class SigV4 {
+
+    static final String ALGORITHM = "AWS4-HMAC-SHA256";
+
+    static final DateTimeFormatter AMZ_DATE = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'");
+
+    private final String region;
+
+    private final String service;
+
+    SigV4(String region, String service) {
+        this.region = region;
+        this.service = service;
+    }
+
+    /**
+     * @param headers signed headers with lower-case names, they have to include host and x-amz-date
+     * @param payloadHash hex SHA-256 of the payload
+     * @return value of the Authorization header
+     */
+    String authorization(AwsCredentialsIdentity identity,
+                         String method,
+                         String path,
+                         Map<String, String> query,
+                         Map<String, String> headers,
+                         String payloadHash) {
+        Map<String, String> sorted = new TreeMap<>(headers);
+        String amzDate = sorted.get("x-amz-date");
+        String date = amzDate.substring(0, 8);
+        String signedHeaders = String.join(";", sorted.keySet());
+
+        String canonicalRequest = String.join("\n",
+            method,
+            path,
+            canonicalQuery(query),
+            sorted.entrySet().stream()
+                .map(header -> header.getKey() + ":" + header.getValue().trim().replaceAll(" +", " ") + "\n")
+                .collect(Collectors.joining()),
+            signedHeaders,
+            payloadHash);
+        String scope = date + "/" + region + "/" + service + "/aws4_request";
+        String stringToSign = String.join("\n",
+            ALGORITHM,
+            amzDate,
+            scope,
+            DigestUtils.sha256Hex(canonicalRequest));
+
+        byte[] key = hmac(("AWS4" + identity.secretAccessKey()).getBytes(StandardCharsets.UTF_8), date);
+        key = hmac(key, region);
+        key = hmac(key, service);
+        key = hmac(key, "aws4_request");
+        String signature = Hex.encodeHexString(hmac(key, stringToSign));
+
+        return ALGORITHM + " Credential=" + identity.accessKeyId() + "/" + scope
+            + ", SignedHeaders=" + signedHeaders + ", Signature=" + signature;
+    }
+
+    /**
+     * @return query string with encoded parameters sorted by name (and value)
+     */
+    static String canonicalQuery(Map<String, String> query) {
+        return query.entrySet().stream()
+            .map(param -> Map.entry(encode(param.getKey()), encode(param.getValue())))
+            .sorted(Map.Entry.<String, String>comparingByKey().thenComparing(Map.Entry.comparingByValue()))
+            .map(param -> param.getKey() + "=" + param.getValue())
+            .collect(Collectors.joining("&"));
+    }
+
+    private static byte[] hmac(byte[] key, String data) {
+        return new HmacUtils(HmacAlgorithms.HMAC_SHA_256, key).hmac(data);
+    }
+
+    // URI encoding of SigV4 (RFC 3986 unreserved characters are kept)
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8)
+            .replace("+", "%20")
+            .replace("*", "%2A")
+            .replace("%7E", "~");
+    }
+}
@@ -0,0 +1,85 @@
+package org.jboss.pnc.artsync.concurrency;
+
+import java.time.Duration;
+
+/**
+ * Additive-increase/multiplicative-decrease control of the rate of a {@link TokenBucket}.
+ *
+ * The rate starts at the floor. Every successful call raises it by increase/rate, so it grows by about
+ * {@code increase} each period of successes. When the service throttles, the rate is multiplied by {@code decrease},
+ * at most once per period (concurrent calls report the same throttling). The rate never leaves [floor, ceiling].
+ */
+public class AimdRateController {
+
+    private final TokenBucket bucket;
+
+    private final Duration period;
+
+    private final double floor;
+
+    private final double ceiling;
+
+    private final double increase;
+
+    private final double decrease;
+
+    private double rate;
+
+    private long lastDecrease;
+
+    /**
+     * @param bucket controlled token bucket
+     * @param period period of the rate
+     * @param floor minimal rate per period
+     * @param ceiling maximal rate per period
+     * @param increase additive increase per period of successful calls
+     * @param decrease multiplicative decrease on throttling (0, 1)
+     */
+    public AimdRateController(TokenBucket bucket, Duration period, double floor, double ceiling, double increase, double decrease) {
+        if (floor <= 0 || ceiling < floor || increase < 0 || decrease <= 0 || decrease >= 1) {
+            throw new IllegalArgumentException("Invalid AIMD parameters: floor=" + floor + ", ceiling=" + ceiling
+                + ", increase=" + increase + ", decrease=" + decrease);
+        }
+        this.bucket = bucket;
+        this.period = period;
+        this.floor = floor;
+        this.ceiling = ceiling;
+        this.increase = increase;
+        this.decrease = decrease;
+        this.rate = floor;
+        this.lastDecrease = System.nanoTime() - period.toNanos();
+        bucket.setRate(rate, period);
+    }
+
+    public synchronized void onSuccess() {
+        if (rate >= ceiling) {
+            return;
+        }
+        rate = Math.min(ceiling, rate + increase / rate);
+        bucket.setRate(rate, period);
+    }
+
+    public synchronized void onThrottled() {
+        long now = System.nanoTime();
+        if (now - lastDecrease < period.toNanos()) {
+            return;
+        }
+        lastDecrease = now;
+        rate = Math.max(floor, rate * decrease);
+        bucket.setRate(rate, period);
+    }
+
+    /**
+     * @return current rate per period
+     */
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    /**
+     * @return current rate per second
+     */
+    public double getRatePerSecond() {
+        return getRate() * 1_000_000_000d / period.toNanos();
+    }
+}
@@ -0,0 +1,99 @@
+package org.jboss.pnc.artsync.concurrency;
+
+import org.apache.commons.codec.digest.MurmurHash3;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter with all bits of a key in a single block of 512 bits (a cache line), so that a lookup touches one
+ * cache line instead of one per bit. Blocks need slightly more bits than a classic filter for the same false positive
+ * rate, which is accounted for in the sizing.
+ *
+ * Keys can be added concurrently with lookups, neither of them locks.
+ */
+public class BlockedBloomFilter {
+
+    private static final int BLOCK_BITS = 512;
+
+    private static final int BLOCK_LONGS = BLOCK_BITS / Long.SIZE;
+
+    // blocks are filled unevenly, they need more bits to keep the false positive rate
+    private static final double BLOCK_OVERHEAD = 1.15;
+
+    private static final int MAX_HASHES = 16;
+
+    private final AtomicLongArray bits;
+
+    private final int blocks;
+
+    private final int hashes;
+
+    /**
+     * @param expectedKeys number of keys the filter is sized for, more keys raise the false positive rate
+     * @param falsePositiveRate between 0 and 1
+     */
+    public BlockedBloomFilter(long expectedKeys, double falsePositiveRate) {
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("False positive rate has to be between 0 and 1, was " + falsePositiveRate);
+        }
+        long keys = Math.max(1, expectedKeys);
+        double bitsPerKey = -Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+        long totalBits = (long) Math.ceil(keys * bitsPerKey * BLOCK_OVERHEAD);
+        long blockCount = (totalBits + BLOCK_BITS - 1) / BLOCK_BITS;
+        if (blockCount * BLOCK_LONGS > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Bloom filter for " + expectedKeys + " keys would be too big");
+        }
+        this.blocks = (int) blockCount;
+        this.bits = new AtomicLongArray(blocks * BLOCK_LONGS);
+        this.hashes = Math.clamp(Math.round(bitsPerKey * Math.log(2)), 1, MAX_HASHES);
+    }
+
+    public void put(byte[] key) {
+        long[] hash = MurmurHash3.hash128x64(key);
+        int block = block(hash[0]);
+        long probe = hash[1];
+        for (int i = 0; i < hashes; i++) {
+            int bit = bit(probe);
+            int index = block + (bit >>> 6);
+            long mask = 1L << bit;
+            if ((bits.get(index) & mask) == 0) {
+                bits.getAndAccumulate(index, mask, (current, set) -> current | set);
+            }
+            probe += hash[0];
+        }
+    }
+
+    /**
+     * @return false if the key was certainly not added, true if it probably was
+     */
+    public boolean mightContain(byte[] key) {
+        long[] hash = MurmurHash3.hash128x64(key);
+        int block = block(hash[0]);
+        long probe = hash[1];
+        for (int i = 0; i < hashes; i++) {
+            int bit = bit(probe);
+            if ((bits.get(block + (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+            probe += hash[0];
+        }
+        return true;
+    }
+
+    /**
+     * @return bytes taken by the bits of the filter
+     */
+    public long sizeInBytes() {
+        return (long) bits.length() * Long.BYTES;
+    }
+
+    // index of the first long of the block
+    private int block(long hash) {
+        return (int) Math.floorMod(hash, (long) blocks) * BLOCK_LONGS;
+    }
+
+    // bit within the block, from the top bits of the probe which are mixed best
+    private static int bit(long probe) {
+        return (int) (probe >>> (Long.SIZE - 9));
+    }
+}
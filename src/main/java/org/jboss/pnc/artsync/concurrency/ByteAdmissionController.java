@@ -0,0 +1,144 @@
+package org.jboss.pnc.artsync.concurrency;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.LongSupplier;
+
+/**
+ * Fair admission control of work by its size in bytes (e.g. artifacts downloaded to disk).
+ *
+ * Reservations are admitted strictly in FIFO order. A small reservation never overtakes a bigger one waiting in
+ * front of it, so big reservations don't starve. A reservation bigger than the whole budget is clamped to the budget,
+ * meaning it runs alone. When nothing is in flight, the head of the queue is always admitted so that the pipeline
+ * can't deadlock on a full disk it can't free.
+ *
+ * Waiting doesn't block any thread, admission completes the returned future.
+ */
+public class ByteAdmissionController {
+
+    private final long budget;
+
+    private final LongSupplier freeSpace;
+
+    private final Deque<Reservation> waiting = new ArrayDeque<>();
+
+    private long bytesInFlight = 0;
+
+    private long bytesWaiting = 0;
+
+    private record Reservation(long bytes, CompletableFuture<Long> admitted) {}
+
+    /**
+     * @param budget maximum of bytes in flight
+     * @param freeSpace probe of bytes that can be still used (f.e. free disk space minus a safety margin), bytes in
+     *                  flight are subtracted from it
+     */
+    public ByteAdmissionController(long budget, LongSupplier freeSpace) {
+        if (budget <= 0) {
+            throw new IllegalArgumentException("Byte budget has to be positive, was " + budget);
+        }
+        this.budget = budget;
+        this.freeSpace = freeSpace;
+    }
+
+    /**
+     * @param bytes size of the work
+     * @return future completed with number of reserved bytes once the work is admitted, the same number has to be
+     * {@link #release(long) released} afterward
+     */
+    public CompletableFuture<Long> reserve(long bytes) {
+        if (clamp(bytes) == 0) {
+            // takes nothing, no reason to queue
+            return CompletableFuture.completedFuture(0L);
+        }
+
+        Reservation reservation = new Reservation(clamp(bytes), new CompletableFuture<>());
+        List<Reservation> admitted;
+        synchronized (this) {
+            waiting.add(reservation);
+            bytesWaiting += reservation.bytes();
+            admitted = admit();
+        }
+        complete(admitted);
+
+        return reservation.admitted();
+    }
+
+    /**
+     * Reserves the bytes only if they are admitted right away, an optional piece of work doesn't queue for them (and
+     * doesn't overtake the waiting reservations).
+     *
+     * @param bytes size of the work, it's not clamped
+     * @return true if the bytes were reserved, they have to be {@link #release(long) released} afterward
+     */
+    public synchronized boolean tryReserve(long bytes) {
+        if (bytes <= 0) {
+            return true;
+        }
+        if (!waiting.isEmpty() || bytesInFlight + bytes > budget || bytes > freeSpace.getAsLong() - bytesInFlight) {
+            return false;
+        }
+        bytesInFlight += bytes;
+        return true;
+    }
+
+    public void release(long bytes) {
+        List<Reservation> admitted;
+        synchronized (this) {
+            bytesInFlight -= clamp(bytes);
+            admitted = admit();
+        }
+        complete(admitted);
+    }
+
+    public synchronized long getBytesInFlight() {
+        return bytesInFlight;
+    }
+
+    public synchronized long getBytesWaiting() {
+        return bytesWaiting;
+    }
+
+    public synchronized int getNumberOfWaiting() {
+        return waiting.size();
+    }
+
+    private long clamp(long bytes) {
+        return Math.clamp(bytes, 0, budget);
+    }
+
+    // has to be called while holding the lock
+    private List<Reservation> admit() {
+        List<Reservation> admitted = new ArrayList<>();
+        if (waiting.isEmpty()) {
+            return admitted;
+        }
+
+        // bytes in flight are reserved but mostly not written yet, the probe doesn't see them
+        long free = freeSpace.getAsLong() - bytesInFlight;
+        while (!waiting.isEmpty()) {
+            Reservation head = waiting.peek();
+            boolean fits = bytesInFlight + head.bytes() <= budget && head.bytes() <= free;
+            if (!fits && bytesInFlight > 0) {
+                // FIFO, nobody can overtake the head
+                break;
+            }
+
+            waiting.poll();
+            bytesWaiting -= head.bytes();
+            bytesInFlight += head.bytes();
+            free -= head.bytes();
+            admitted.add(head);
+        }
+
+        return admitted;
+    }
+
+    private static void complete(List<Reservation> admitted) {
+        // outside the lock, dependant stages can run in the completing thread
+        admitted.forEach(reservation -> reservation.admitted().complete(reservation.bytes()));
+    }
+}
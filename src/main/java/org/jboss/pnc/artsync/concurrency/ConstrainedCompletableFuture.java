@@ -1,6 +1,9 @@
 package org.jboss.pnc.artsync.concurrency;
 
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.function.Supplier;
 
 public interface ConstrainedCompletableFuture {
@@ -15,5 +18,23 @@ public interface ConstrainedCompletableFuture {
 
     <T> CompletableFuture<T> supplyAsync(int permits, Supplier<T> supplier);
 
+    <T> CompletableFuture<T> supplyAsync(Lane lane, int permits, Supplier<T> supplier);
+
     <T> CompletableFuture<T> supplyAsync(Supplier<T> supplier);
+
+    /**
+     * Limits an asynchronous call, permits are held until the returned stage completes.
+     */
+    <T> CompletableFuture<T> wrapAsync(int permits, Supplier<? extends CompletionStage<T>> stage);
+
+    /**
+     * Limits an asynchronous call on a resource opened before the permits are taken (e.g. a response of another
+     * backend), so that the permits aren't held while waiting for it. Every attempt opens its own resource, a resource
+     * that didn't get to the call (the limits or an open circuit breaker failed the attempt, or the call threw before
+     * returning its stage) is discarded.
+     */
+    <R, T> CompletableFuture<T> wrapAsync(int permits,
+                                          Supplier<? extends CompletionStage<R>> open,
+                                          Function<R, ? extends CompletionStage<T>> stage,
+                                          Consumer<R> discard);
 }
@@ -1,26 +1,42 @@
 package org.jboss.pnc.artsync.concurrency;
 
 
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerConfig;
 import io.github.resilience4j.core.IntervalFunction;
 import io.github.resilience4j.core.functions.Either;
 import io.github.resilience4j.decorators.Decorators;
-import io.github.resilience4j.ratelimiter.RateLimiter;
-import io.github.resilience4j.ratelimiter.RateLimiterConfig;
 import io.github.resilience4j.retry.Retry;
 import io.github.resilience4j.retry.RetryConfig;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import org.jboss.pnc.artsync.config.FaultToleranceConfig;
+import org.jboss.pnc.artsync.config.RateLimitApplicationConfig;
+import org.jboss.pnc.artsync.config.RetryApplicationConfig;
 import org.jboss.pnc.artsync.config.ServiceApplicationConfig;
 
+import java.time.Duration;
 import java.util.Collection;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
@@ -31,63 +47,203 @@ public class ConstrainedExecutor implements ConstrainedExecutorService, Constrai
 
     private final ScheduledExecutorService scheduler;
 
-    private final RateLimiter rateLimiter;
+    private final TokenBucket rateLimiter;
 
-    private final Retry retry;
+    // null if the rate is static
+    private final AimdRateController rateController;
+
+    private final Predicate<Either<? extends Throwable, ?>> isRateLimited;
+
+    // null if retries are disabled, every call gets its own Retry counting its attempts
+    private final RetryConfig retryTemplate;
+
+    private final Predicate<Throwable> retriedException;
+
+    // null if results are never retried
+    private final Predicate<Object> retriedResult;
+
+    private final Function<Object, String> retryErrorClass;
+
+    private final CircuitBreaker circuitBreaker;
+
+    // caps calls in flight, independently of the rate
+    private final FairPermits bulkhead;
+
+    // null if retries are disabled
+    private final RetryBudget retryBudget;
+
+    private final MeterRegistry registry;
+
+    private final String serviceName;
 
     public ConstrainedExecutor(ExecutorService delegate,
                                ScheduledExecutorService scheduler,
                                ServiceApplicationConfig applicationConfig,
+                               MeterRegistry registry,
                                Predicate<Either<? extends Throwable, ?>> isRateLimited,
                                Predicate<? extends Throwable> retryOnException,
-                               Predicate<Object> retryOnResult) {
+                               Predicate<Object> retryOnResult,
+                               Function<Object, String> retryErrorClass) {
         this.delegate = delegate;
         this.scheduler = scheduler;
-        RateLimiterConfig.Builder config = RateLimiterConfig.custom()
-            .limitRefreshPeriod(applicationConfig.rateLimit().timeConstraint().dividedBy(2))
-            .limitForPeriod(applicationConfig.rateLimit().rateOfRequests() / 2)
-            .timeoutDuration(applicationConfig.rateLimit().requestTimeout());
-        if (isRateLimited != null) {
-            config.drainPermissionsOnResult(isRateLimited);
+        this.registry = registry;
+        this.serviceName = applicationConfig.serviceName();
+        Map<Lane, Timer> laneWaits = new EnumMap<>(Lane.class);
+        for (Lane lane : Lane.values()) {
+            laneWaits.put(lane, Timer.builder("artsync.executor.lane.wait")
+                .tags("service", serviceName, "lane", lane.name().toLowerCase())
+                .publishPercentileHistogram()
+                .register(registry));
+        }
+        // burst of half of the rate, like the former limit for half of the period
+        this.rateLimiter = new TokenBucket(scheduler,
+            Math.max(1, applicationConfig.rateLimit().rateOfRequests() / 2),
+            applicationConfig.rateLimit().rateOfRequests(),
+            applicationConfig.rateLimit().timeConstraint(),
+            applicationConfig.rateLimit().requestTimeout(),
+            applicationConfig.rateLimit().laneStarvationLimit(),
+            (lane, waited) -> laneWaits.get(lane).record(waited, TimeUnit.NANOSECONDS));
+        this.isRateLimited = isRateLimited;
+
+        RateLimitApplicationConfig rateLimit = applicationConfig.rateLimit();
+        int ceiling = rateLimit.maxRateOfRequests().orElse(rateLimit.rateOfRequests());
+        if (ceiling > rateLimit.rateOfRequests() && isRateLimited != null) {
+            this.rateController = new AimdRateController(rateLimiter,
+                rateLimit.timeConstraint(),
+                rateLimit.rateOfRequests(),
+                ceiling,
+                rateLimit.rateIncrease(),
+                rateLimit.rateDecrease());
+            registry.gauge("artsync.executor.rate", Tags.of("service", applicationConfig.serviceName()),
+                rateController, AimdRateController::getRatePerSecond);
+        } else {
+            this.rateController = null;
         }
-        this.rateLimiter = RateLimiter.of(applicationConfig.serviceName(), config.build());
 
-        if (applicationConfig.retry().enabled()) {
-            RetryConfig.Builder retryConf = RetryConfig.custom().maxAttempts(applicationConfig.retry().maxAttempts());
-            if (retryOnException != null) {
-                retryConf.retryOnException(retryOnException);
-            }
-            if (retryOnResult != null) {
-                retryConf.retryOnResult(retryOnResult);
-            }
-            if (applicationConfig.retry().exponentialBackoff()) {
-                retryConf.intervalFunction(IntervalFunction.ofExponentialBackoff(applicationConfig.retry().interval()));
+        FaultToleranceConfig faultTolerance = applicationConfig.faultTolerance();
+        @SuppressWarnings("unchecked")
+        Predicate<Throwable> failedOnException = (Predicate<Throwable>) retryOnException;
+        this.circuitBreaker = CircuitBreaker.of(serviceName, CircuitBreakerConfig.custom()
+            .failureRateThreshold(faultTolerance.failureRateThreshold())
+            .slidingWindowSize(faultTolerance.slidingWindowSize())
+            .minimumNumberOfCalls(faultTolerance.minimumNumberOfCalls())
+            .waitDurationInOpenState(faultTolerance.waitDurationInOpenState())
+            .permittedNumberOfCallsInHalfOpenState(faultTolerance.permittedCallsInHalfOpenState())
+            .automaticTransitionFromOpenToHalfOpenEnabled(true)
+            // throttling is handled by the rate, it doesn't mean the service is down
+            .recordException(throwable -> (failedOnException == null || failedOnException.test(throwable))
+                && (isRateLimited == null || !isRateLimited.test(Either.left(throwable))))
+            .recordResult(result -> retryOnResult != null && retryOnResult.test(result)
+                && (isRateLimited == null || !isRateLimited.test(Either.right(result))))
+            .build());
+        // lanes waiting for a slot take turns
+        this.bulkhead = new FairPermits(faultTolerance.maxConcurrentCalls(), ign -> 1);
+        registry.gauge("artsync.executor.inflight", Tags.of("service", serviceName),
+            bulkhead, FairPermits::getInUse);
+
+        RetryApplicationConfig retryConfig = applicationConfig.retry();
+        if (retryConfig.enabled()) {
+            this.retryBudget = new RetryBudget(retryConfig.budgetRatio(), retryConfig.budgetMinPerSecond());
+            registry.gauge("artsync.executor.retry.budget", Tags.of("service", serviceName),
+                retryBudget, RetryBudget::getBalance);
+
+            @SuppressWarnings("unchecked")
+            Predicate<Throwable> onException = (Predicate<Throwable>) retryOnException;
+            this.retriedException = throwable -> !(unwrap(throwable) instanceof CallNotPermittedException)
+                && (onException == null || onException.test(throwable));
+            this.retriedResult = retryOnResult;
+            this.retryErrorClass = retryErrorClass != null
+                ? retryErrorClass
+                : result -> result.getClass().getSimpleName();
+            RetryConfig.Builder<Object> retryConf = RetryConfig.custom()
+                .maxAttempts(retryConfig.maxAttempts());
+            if (retryConfig.exponentialBackoff() && retryConfig.jitter()) {
+                retryConf.intervalFunction(decorrelatedJitter(retryConfig.interval(), retryConfig.maxInterval()));
+            } else if (retryConfig.exponentialBackoff()) {
+                retryConf.intervalFunction(IntervalFunction.ofExponentialBackoff(retryConfig.interval(),
+                    IntervalFunction.DEFAULT_MULTIPLIER,
+                    retryConfig.maxInterval()));
             } else {
-                retryConf.waitDuration(applicationConfig.retry().interval());
+                retryConf.waitDuration(retryConfig.interval());
             }
-            this.retry = Retry.of(applicationConfig.serviceName(), retryConf.build());
+            this.retryTemplate = retryConf.build();
         } else {
-            this.retry = null;
+            this.retryTemplate = null;
+            this.retriedException = null;
+            this.retriedResult = null;
+            this.retryErrorClass = null;
+            this.retryBudget = null;
+        }
+    }
+
+    /**
+     * Decorrelated jitter (sleep = random(base, previous sleep * 3), capped). Interval functions of resilience4j
+     * don't know the previous sleep of the call, its upper bound (base * 3^attempt) is used instead, so the first
+     * retry sleeps within [base, 3 * base).
+     */
+    private static IntervalFunction decorrelatedJitter(Duration base, Duration cap) {
+        long baseMillis = base.toMillis();
+        long capMillis = cap.toMillis();
+        return attempt -> {
+            double upper = Math.min(capMillis, baseMillis * Math.pow(3, Math.max(1, attempt)));
+            if (upper <= baseMillis) {
+                return Math.min(capMillis, baseMillis);
+            }
+            return (long) ThreadLocalRandom.current().nextDouble(baseMillis, upper);
+        };
+    }
+
+    /**
+     * Resilience4j asks the retry predicates about the outcome of the last attempt too, a retry is only granted (and
+     * charged to the shared budget) when the call has an attempt left.
+     *
+     * @param attempts attempts of the call started so far
+     */
+    private Retry newRetry(AtomicInteger attempts) {
+        int maxAttempts = retryTemplate.getMaxAttempts();
+        RetryConfig.Builder<Object> config = RetryConfig.<Object>from(retryTemplate)
+            .retryOnException(throwable -> retriedException.test(throwable)
+                && attempts.get() < maxAttempts
+                && grantRetry(unwrap(throwable).getClass().getSimpleName()));
+        if (retriedResult != null) {
+            config.retryOnResult(result -> retriedResult.test(result)
+                && attempts.get() < maxAttempts
+                && grantRetry(retryErrorClass.apply(result)));
         }
+        return Retry.of(serviceName, config.build());
+    }
+
+    private boolean grantRetry(String errorClass) {
+        boolean granted = retryBudget.tryWithdraw();
+        registry.counter("artsync.executor.retries",
+                "service", serviceName,
+                "error", errorClass == null ? "unknown" : errorClass,
+                "outcome", granted ? "granted" : "denied")
+            .increment();
+        return granted;
+    }
+
+    private static Throwable unwrap(Throwable throwable) {
+        return (throwable instanceof CompletionException || throwable instanceof ExecutionException)
+            && throwable.getCause() != null ? throwable.getCause() : throwable;
     }
 
-    public int getNumberOfWaitingThreads() {
-        return rateLimiter.getMetrics().getNumberOfWaitingThreads();
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
     }
 
-    public int getNumberOfPermissions() {
-        return rateLimiter.getMetrics().getAvailablePermissions();
+    public int getNumberOfWaiting() {
+        return rateLimiter.getNumberOfWaiting();
+    }
+
+    public long getNumberOfPermissions() {
+        return rateLimiter.getAvailableTokens();
     }
 
     @Override
     public <T> CompletableFuture<T> runAsync(int permits, Runnable task, T result) {
-        Supplier<CompletionStage<T>> future = () -> CompletableFuture.runAsync(task, delegate).thenApply((ign) -> result);
-
-        Decorators.DecorateCompletionStage<T> decorator = Decorators.ofCompletionStage(future);
-        if (retry != null) {
-            decorator.withRetry(retry, scheduler);
-        }
-        return decorator.withRateLimiter(rateLimiter, permits).get().toCompletableFuture();
+        return limitCompletionStage(Lane.DATA, permits, () -> CompletableFuture.runAsync(task, delegate).thenApply((ign) -> result))
+            .toCompletableFuture();
     }
 
     @Override
@@ -97,16 +253,28 @@ public class ConstrainedExecutor implements ConstrainedExecutorService, Constrai
 
     @Override
     public CompletableFuture<Void> runAsync(int permits, Runnable task) {
-        return limitCompletionStage(permits, () -> CompletableFuture.runAsync(task, delegate)).toCompletableFuture();
+        return limitCompletionStage(Lane.DATA, permits, () -> CompletableFuture.runAsync(task, delegate)).toCompletableFuture();
     }
 
-//    public <T> CompletableFuture<T> wrapAsync(int permits, Supplier<CompletionStage<T>> stage) {
-//
-//        return limitCompletionStage(permits,CompletableFuture.supplyAsync(stage, delegate).handle((cs, t) ->
-//            switch (t) {
-//                case null -> cs.
-//            });
-//    }
+    @Override
+    public <T> CompletableFuture<T> wrapAsync(int permits, Supplier<? extends CompletionStage<T>> stage) {
+        // the stage is only started in the delegate, the call holds its slot until the stage completes
+        return limitCompletionStage(Lane.DATA, permits, () -> CompletableFuture.supplyAsync(stage, delegate)
+                .thenCompose(started -> started))
+            .toCompletableFuture();
+    }
+
+    @Override
+    public <R, T> CompletableFuture<T> wrapAsync(int permits,
+                                                 Supplier<? extends CompletionStage<R>> open,
+                                                 Function<R, ? extends CompletionStage<T>> stage,
+                                                 Consumer<R> discard) {
+        return limitCompletionStage(Lane.DATA, permits, open,
+                resource -> CompletableFuture.supplyAsync(() -> applyOwning(stage, resource, discard), delegate)
+                    .thenCompose(started -> started),
+                discard)
+            .toCompletableFuture();
+    }
 
     @Override
     public <T> CompletableFuture<Void> runAsync(Runnable task) {
@@ -115,7 +283,12 @@ public class ConstrainedExecutor implements ConstrainedExecutorService, Constrai
 
     @Override
     public <T> CompletableFuture<T> supplyAsync(int permits, Supplier<T> supplier) {
-        return CompletableFuture.supplyAsync(limitSupplier(permits, supplier), delegate);
+        return supplyAsync(Lane.DATA, permits, supplier);
+    }
+
+    @Override
+    public <T> CompletableFuture<T> supplyAsync(Lane lane, int permits, Supplier<T> supplier) {
+        return limitCompletionStage(lane, permits, () -> CompletableFuture.supplyAsync(supplier, delegate)).toCompletableFuture();
     }
 
     @Override
@@ -123,37 +296,154 @@ public class ConstrainedExecutor implements ConstrainedExecutorService, Constrai
         return supplyAsync(1, supplier);
     }
 
-    private <T> Supplier<T> limitSupplier(int permits, Supplier<T> supplier) {
-        Decorators.DecorateSupplier<T> decorator = Decorators.ofSupplier(supplier);
-        decorator.withRateLimiter(rateLimiter, permits);
-        if (retry != null) {
-            decorator.withRetry(retry);
+    private <T> CompletionStage<T> limitCompletionStage(Lane lane, int permits, Supplier<CompletionStage<T>> stage) {
+        return limitCompletionStage(lane, permits, () -> CompletableFuture.completedFuture(null), ign -> stage.get(), ign -> {});
+    }
+
+    /**
+     * Every attempt (including retries) opens its resource, then waits for its permits and for a free slot of the
+     * bulkhead without blocking a thread. An open circuit breaker fails the attempt fast. The resource is discarded if
+     * the attempt fails before the stage took it over.
+     */
+    private <R, T> CompletionStage<T> limitCompletionStage(Lane lane,
+                                                           int permits,
+                                                           Supplier<? extends CompletionStage<R>> open,
+                                                           Function<R, ? extends CompletionStage<T>> stage,
+                                                           Consumer<R> discard) {
+        AtomicInteger attempts = new AtomicInteger();
+        Supplier<CompletionStage<T>> limited = () -> {
+            attempts.incrementAndGet();
+            CompletionStage<R> opened;
+            try {
+                opened = open.get();
+            } catch (RuntimeException e) {
+                opened = CompletableFuture.failedFuture(e);
+            }
+            return opened.thenCompose(resource -> rateLimiter.acquire(lane, permits)
+                .thenCompose(ign -> reserveSlot(lane))
+                .whenComplete((slot, t) -> {
+                    if (t != null) {
+                        discard.accept(resource);
+                    }
+                })
+                .thenCompose(slot -> {
+                    long start;
+                    try {
+                        // the breaker may have opened since the attempt was admitted
+                        start = startCall(slot);
+                    } catch (RuntimeException e) {
+                        discard.accept(resource);
+                        return CompletableFuture.<T>failedFuture(e);
+                    }
+                    return applyOwning(stage, resource, discard)
+                        .whenComplete((result, t) -> endCall(slot, start, result, t));
+                }));
+        };
+
+        Decorators.DecorateCompletionStage<T> decorator = Decorators.ofCompletionStage(limited);
+        if (retryTemplate != null) {
+            decorator.withRetry(newRetry(attempts), scheduler);
+            retryBudget.deposit();
         }
 
-        return decorator.decorate();
+        return decorator.get();
     }
 
-    private <T> Supplier<T> limitSupplier(Supplier<T> supplier) {
-        return limitSupplier(1, supplier);
+    /**
+     * The stage owns the resource once it returned, a stage failing before that discards it.
+     */
+    private static <R, T> CompletionStage<T> applyOwning(Function<R, ? extends CompletionStage<T>> stage,
+                                                         R resource,
+                                                         Consumer<R> discard) {
+        try {
+            return stage.apply(resource);
+        } catch (RuntimeException e) {
+            discard.accept(resource);
+            return CompletableFuture.failedFuture(e);
+        }
     }
 
-    private <T> CompletionStage<T> limitCompletionStage(int permits, Supplier<CompletionStage<T>> stage) {
-        Decorators.DecorateCompletionStage<T> decorator = Decorators.ofCompletionStage(stage);
-        decorator.withRateLimiter(rateLimiter, permits);
-        if (retry != null) {
-            decorator.withRetry(retry, scheduler);
+    /**
+     * Control calls are few and everything waits on them, they don't queue behind bulk calls in the bulkhead.
+     *
+     * @return future completed with true once a slot of the bulkhead is held, with false for control calls
+     */
+    private CompletableFuture<Boolean> reserveSlot(Lane lane) {
+        return lane == Lane.CONTROL
+            ? CompletableFuture.completedFuture(false)
+            : bulkhead.acquire("", lane.name(), 1).thenApply(ign -> true);
+    }
+
+    private void releaseSlot(boolean slot) {
+        if (slot) {
+            bulkhead.release();
         }
+    }
 
-        return decorator.get();
+    /**
+     * Has to be called with the slot of the bulkhead reserved, the slot is released if the call isn't permitted.
+     *
+     * @return start of the call
+     */
+    private long startCall(boolean slot) {
+        try {
+            circuitBreaker.acquirePermission();
+        } catch (CallNotPermittedException e) {
+            releaseSlot(slot);
+            throw e;
+        }
+        return System.nanoTime();
     }
 
-    private Runnable limitRunnable(int permits, Runnable runnable) {
-        Decorators.DecorateRunnable decorator = Decorators.ofRunnable(runnable);
-        decorator.withRateLimiter(rateLimiter, permits);
-        if (retry != null) {
-            decorator.withRetry(retry);
+    private void endCall(boolean slot, long start, Object result, Throwable throwable) {
+        releaseSlot(slot);
+
+        long duration = System.nanoTime() - start;
+        if (throwable == null) {
+            circuitBreaker.onResult(duration, TimeUnit.NANOSECONDS, result);
+        } else {
+            circuitBreaker.onError(duration, TimeUnit.NANOSECONDS, unwrap(throwable));
+        }
+
+        if (isRateLimited == null) {
+            return;
+        }
+
+        Either<? extends Throwable, ?> either = throwable == null
+            ? Either.right(result)
+            : Either.left(unwrap(throwable));
+        if (isRateLimited.test(either)) {
+            rateLimiter.drain();
+            if (rateController != null) {
+                rateController.onThrottled();
+            }
+        } else if (throwable == null && rateController != null) {
+            rateController.onSuccess();
         }
-        return decorator.decorate();
+    }
+
+    // ExecutorService methods run the task on the delegate anyway, the (virtual) thread can wait for the permits
+    private boolean acquire(int permits) {
+        try {
+            return rateLimiter.acquire(permits)
+                .thenCompose(ign -> reserveSlot(Lane.DATA))
+                .join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException re ? re : e;
+        }
+    }
+
+    private Runnable limitRunnable(int permits, Runnable runnable) {
+        Callable<Object> callable = limitCallable(permits, Executors.callable(runnable));
+        return () -> {
+            try {
+                callable.call();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        };
     }
 
     private Runnable limitRunnable(Runnable runnable) {
@@ -161,10 +451,28 @@ public class ConstrainedExecutor implements ConstrainedExecutorService, Constrai
     }
 
     private <T> Callable<T> limitCallable(int permits, Callable<T> callable) {
-        Decorators.DecorateCallable<T> decorator = Decorators.ofCallable(callable);
-        decorator.withRateLimiter(rateLimiter, permits);
-        if (retry != null) {
-            decorator.withRetry(retry);
+        AtomicInteger attempts = new AtomicInteger();
+        Decorators.DecorateCallable<T> decorator = Decorators.ofCallable(() -> {
+            attempts.incrementAndGet();
+            boolean slot = acquire(permits);
+            long start = startCall(slot);
+            T result;
+            try {
+                result = callable.call();
+            } catch (Exception e) {
+                endCall(slot, start, null, e);
+                throw e;
+            }
+            endCall(slot, start, result, null);
+            return result;
+        });
+        if (retryTemplate != null) {
+            decorator.withRetry(newRetry(attempts));
+            Callable<T> decorated = decorator.decorate();
+            return () -> {
+                retryBudget.deposit();
+                return decorated.call();
+            };
         }
         return decorator.decorate();
     }
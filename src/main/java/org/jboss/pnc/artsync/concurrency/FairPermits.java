@@ -0,0 +1,144 @@
+package org.jboss.pnc.artsync.concurrency;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Non-blocking permits shared fairly by weighted groups (f.e. target repositories) and flows within a group
+ * (f.e. projects).
+ *
+ * Groups are served by start-time fair queueing: every grant advances the virtual time of its group by
+ * cost/weight and the waiting group with the lowest virtual time is served next. A group with twice the weight gets
+ * twice the permits while both are busy, an idle group can't save up credit for later. Flows of a group are served
+ * round-robin and every flow is FIFO, so one huge project doesn't starve the others of its group.
+ */
+public class FairPermits {
+
+    private final int permits;
+
+    private final ToDoubleFunction<String> weights;
+
+    private final Map<String, Group> groups = new HashMap<>();
+
+    private final PriorityQueue<Group> active = new PriorityQueue<>(Comparator.comparingDouble(group -> group.start));
+
+    private int inUse = 0;
+
+    private int waiting = 0;
+
+    private double virtualTime = 0;
+
+    private record Waiter(double cost, CompletableFuture<Void> granted) {}
+
+    private static class Group {
+        private final double weight;
+        private final Map<String, Deque<Waiter>> flows = new LinkedHashMap<>();
+        private final Deque<String> rotation = new ArrayDeque<>();
+        private double start;
+        private double lastFinish;
+
+        private Group(double weight) {
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * @param permits number of permits
+     * @param weights weight of a group, has to be positive
+     */
+    public FairPermits(int permits, ToDoubleFunction<String> weights) {
+        if (permits <= 0) {
+            throw new IllegalArgumentException("Number of permits has to be positive, was " + permits);
+        }
+        this.permits = permits;
+        this.weights = weights;
+    }
+
+    /**
+     * @param group group of the request
+     * @param flow flow of the request within the group
+     * @param cost cost of the request (f.e. number of assets)
+     * @return future completed once the permit is granted, it has to be {@link #release() released} afterward
+     */
+    public CompletableFuture<Void> acquire(String group, String flow, double cost) {
+        Waiter waiter = new Waiter(Math.max(cost, 1), new CompletableFuture<>());
+        List<Waiter> granted;
+        synchronized (this) {
+            Group g = groups.computeIfAbsent(group, name -> new Group(Math.max(weights.applyAsDouble(name), Double.MIN_VALUE)));
+            if (g.flows.isEmpty()) {
+                // idle group joins at the current virtual time
+                g.start = Math.max(virtualTime, g.lastFinish);
+                active.add(g);
+            }
+            g.flows.computeIfAbsent(flow, f -> {
+                g.rotation.add(f);
+                return new ArrayDeque<>();
+            }).add(waiter);
+            waiting++;
+
+            granted = grant();
+        }
+        complete(granted);
+
+        return waiter.granted();
+    }
+
+    public void release() {
+        List<Waiter> granted;
+        synchronized (this) {
+            inUse--;
+            granted = grant();
+        }
+        complete(granted);
+    }
+
+    public synchronized int getInUse() {
+        return inUse;
+    }
+
+    public synchronized int getNumberOfWaiting() {
+        return waiting;
+    }
+
+    // has to be called while holding the lock
+    private List<Waiter> grant() {
+        List<Waiter> granted = new ArrayList<>();
+        while (inUse < permits && !active.isEmpty()) {
+            Group group = active.poll();
+            String flow = group.rotation.poll();
+            Deque<Waiter> queue = group.flows.get(flow);
+            Waiter waiter = queue.poll();
+            if (queue.isEmpty()) {
+                group.flows.remove(flow);
+            } else {
+                group.rotation.add(flow);
+            }
+
+            virtualTime = group.start;
+            group.lastFinish = group.start + waiter.cost() / group.weight;
+            if (!group.flows.isEmpty()) {
+                group.start = group.lastFinish;
+                active.add(group);
+            }
+
+            inUse++;
+            waiting--;
+            granted.add(waiter);
+        }
+        return granted;
+    }
+
+    private static void complete(List<Waiter> granted) {
+        // outside the lock, dependant stages can run in the completing thread
+        granted.forEach(waiter -> waiter.granted().complete(null));
+    }
+}
@@ -0,0 +1,823 @@
+package org.jboss.pnc.artsync.concurrency;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Compact set of identifiers which only grows.
+ *
+ * Most identifiers live in an immutable base segment: their UTF-8 bytes sorted and front-coded in buckets of
+ * {@value #BUCKET_SIZE}, every entry of a bucket storing only what differs from the previous one. Identifiers sharing
+ * long prefixes (URLs, purls) take a fraction of their size, compared to a String or a tree node each. The segment is
+ * a sequence of byte buffers of 1GB (a single buffer can't pass 2GB), either on heap or memory-mapped from a file
+ * outside the heap. A bucket never spans two buffers, the rest of a buffer it doesn't fit into is left empty.
+ *
+ * Added identifiers go to a small concurrent delta, which is merged into a new base segment once it grows past a
+ * fraction of the base. Merges run on the given executor, one at a time, so that the thread adding the identifier
+ * that triggered one doesn't pay for it. The new segment is published before its identifiers leave the delta. Lookups
+ * only read the delta and the current segment, they never lock nor wait for a merge. After a failed merge (f.e. a full disk), additions don't merge again
+ * until the delta doubles, so that they don't all pay for a merge bound to fail.
+ *
+ * A blocked Bloom filter in front of the lookups answers most lookups of identifiers not in the set without touching
+ * the delta or the segment. It's rebuilt with every merge (and after loading a snapshot), sized for the grown set.
+ *
+ * The identifiers can be written into a {@link #writeSnapshot(Path, long, long, Instant) snapshot} file (the segment with
+ * its bucket offsets) and {@link #loadSnapshot(Path, long) loaded} from it without decoding them.
+ */
+@Slf4j
+public class IdentifierSet {
+
+    private static final int BUCKET_SIZE = 16;
+
+    // buffers of the segment have 1GB
+    private static final int CHUNK_SHIFT = 30;
+
+    private static final int SNAPSHOT_MAGIC = 0x41534944; // "ASID"
+
+    // bump on any change of the snapshot layout, snapshots of other versions are ignored
+    private static final int SNAPSHOT_VERSION = 4;
+
+    // magic, version, source, max ID, time, buffer size
+    private static final int SNAPSHOT_HEADER = 36;
+
+    // data bytes, size
+    private static final int SNAPSHOT_TRAILER = 12;
+
+    // the delta may grow to this fraction of the base, so that merges stay rare however big the base is
+    private static final int MERGE_RATIO = 8;
+
+    private final Set<String> delta = ConcurrentHashMap.newKeySet();
+
+    private final AtomicBoolean merging = new AtomicBoolean(false);
+
+    // a merge was handed to the executor and didn't start yet
+    private final AtomicBoolean mergeScheduled = new AtomicBoolean(false);
+
+    private final Executor mergeExecutor;
+
+    private final int mergeThreshold;
+
+    // size of the delta the last merge failed with, 0 if it didn't fail
+    private volatile int failedMerge = 0;
+
+    private final int chunkShift;
+
+    // null to keep segments on heap
+    private final Path mappedDir;
+
+    private volatile Segment base = Segment.EMPTY;
+
+    // 0 if lookups aren't filtered
+    private final double falsePositiveRate;
+
+    private volatile BlockedBloomFilter filter;
+
+    // guards additions against the swap of a rebuilt filter, lookups don't take it
+    private final ReadWriteLock filterLock = new ReentrantReadWriteLock();
+
+    // filter being rebuilt by a merge, receives identifiers added in the meantime
+    private BlockedBloomFilter rebuilt;
+
+    private final LongAdder filterNegatives = new LongAdder();
+
+    private final LongAdder filterPositives = new LongAdder();
+
+    private final LongAdder filterFalsePositives = new LongAdder();
+
+    /**
+     * @param mergeThreshold minimal size of the delta to be merged
+     * @param mappedDir directory for memory-mapped segments, null to keep them on heap
+     * @param falsePositiveRate of the Bloom filter in front of the lookups, 0 to look up without a filter
+     * @param mergeExecutor runs the merges triggered by additions
+     */
+    public IdentifierSet(int mergeThreshold, Path mappedDir, double falsePositiveRate, Executor mergeExecutor) {
+        this(mergeThreshold, mappedDir, falsePositiveRate, mergeExecutor, CHUNK_SHIFT);
+    }
+
+    /**
+     * @param chunkShift buffers of segments have 2^chunkShift bytes, small ones exercise entries spanning buffers
+     */
+    IdentifierSet(int mergeThreshold, Path mappedDir, double falsePositiveRate, Executor mergeExecutor, int chunkShift) {
+        if (mergeThreshold <= 0) {
+            throw new IllegalArgumentException("Merge threshold has to be positive, was " + mergeThreshold);
+        }
+        if (chunkShift < 4 || chunkShift > CHUNK_SHIFT) {
+            throw new IllegalArgumentException("Chunks have to have between 2^4 and 2^" + CHUNK_SHIFT + " bytes, was 2^" + chunkShift);
+        }
+        this.mergeThreshold = mergeThreshold;
+        this.chunkShift = chunkShift;
+        this.mappedDir = mappedDir;
+        this.falsePositiveRate = falsePositiveRate;
+        this.mergeExecutor = mergeExecutor;
+        this.filter = falsePositiveRate == 0 ? null : new BlockedBloomFilter(filterCapacity(), falsePositiveRate);
+    }
+
+    public boolean contains(String identifier) {
+        byte[] bytes = identifier.getBytes(UTF_8);
+        BlockedBloomFilter current = filter;
+        if (current != null && !current.mightContain(bytes)) {
+            filterNegatives.increment();
+            return false;
+        }
+        boolean contained = delta.contains(identifier) || base.contains(bytes);
+        if (current != null) {
+            (contained ? filterPositives : filterFalsePositives).increment();
+        }
+        return contained;
+    }
+
+    public void add(String identifier) {
+        // not counted in the filter lookups, they measure the lookups of callers
+        byte[] bytes = identifier.getBytes(UTF_8);
+        BlockedBloomFilter current = filter;
+        if ((current == null || current.mightContain(bytes)) && (delta.contains(identifier) || base.contains(bytes))) {
+            return;
+        }
+        filterLock.readLock().lock();
+        try {
+            if (filter != null) {
+                filter.put(bytes);
+            }
+            if (rebuilt != null) {
+                rebuilt.put(bytes);
+            }
+            delta.add(identifier);
+        } finally {
+            filterLock.readLock().unlock();
+        }
+        if (delta.size() >= Math.max(Math.max(mergeThreshold, base.size() / MERGE_RATIO), 2 * failedMerge)
+            && !merging.get() && mergeScheduled.compareAndSet(false, true)) {
+            mergeExecutor.execute(() -> {
+                mergeScheduled.set(false);
+                merge();
+            });
+        }
+    }
+
+    public long size() {
+        return base.size() + delta.size();
+    }
+
+    /**
+     * @return bytes taken by the base segment
+     */
+    public long segmentBytes() {
+        return base.bytes;
+    }
+
+    /**
+     * @return bytes taken by the Bloom filter, 0 without a filter
+     */
+    public long filterBytes() {
+        BlockedBloomFilter current = filter;
+        return current == null ? 0 : current.sizeInBytes();
+    }
+
+    /**
+     * @return lookups answered by the Bloom filter alone
+     */
+    public long filterNegatives() {
+        return filterNegatives.sum();
+    }
+
+    /**
+     * @return lookups passed by the Bloom filter for identifiers in the set
+     */
+    public long filterPositives() {
+        return filterPositives.sum();
+    }
+
+    /**
+     * @return lookups passed by the Bloom filter for identifiers not in the set
+     */
+    public long filterFalsePositives() {
+        return filterFalsePositives.sum();
+    }
+
+    /**
+     * Merges the delta into a new base segment on the calling thread, unless another merge is running. The Bloom filter
+     * is rebuilt for the new size on the way. Failures are only logged, the identifiers stay in the delta and additions
+     * don't merge again until it doubles.
+     */
+    public void merge() {
+        if (delta.isEmpty() || !merging.compareAndSet(false, true)) {
+            return;
+        }
+        int attempted = delta.size();
+        try {
+            // installed before reading the delta, so that it gets every identifier added afterwards
+            BlockedBloomFilter next = startRebuild();
+            List<String> merged = new ArrayList<>(delta);
+            byte[][] added = sorted(merged);
+
+            base = Segment.merge(base, added, mappedDir, chunkShift, next);
+            finishRebuild(next);
+            merged.forEach(delta::remove);
+            failedMerge = 0;
+            log.debug("Merged {} identifiers into a segment of {} identifiers and {} bytes",
+                added.length, base.size(), base.bytes);
+        } catch (IOException | UncheckedIOException e) {
+            finishRebuild(null);
+            failedMerge = attempted;
+            log.warn("Couldn't merge identifiers, keeping {} of them in the delta until it doubles", delta.size(), e);
+        } finally {
+            merging.set(false);
+        }
+    }
+
+    /**
+     * Rebuilds the Bloom filter from all identifiers, f.e. after loading a snapshot.
+     */
+    private void rebuildFilter() {
+        BlockedBloomFilter next = startRebuild();
+        if (next == null) {
+            return;
+        }
+        List<String> current = new ArrayList<>(delta);
+        Segment.Cursor cursor = base.new Cursor();
+        while (cursor.hasNext()) {
+            next.put(cursor.next());
+        }
+        current.forEach(identifier -> next.put(identifier.getBytes(UTF_8)));
+        finishRebuild(next);
+    }
+
+    /**
+     * @return empty filter sized for the set after the next merges, null without filtering
+     */
+    private BlockedBloomFilter startRebuild() {
+        if (falsePositiveRate == 0) {
+            return null;
+        }
+        BlockedBloomFilter next = new BlockedBloomFilter(filterCapacity(), falsePositiveRate);
+        filterLock.writeLock().lock();
+        try {
+            rebuilt = next;
+        } finally {
+            filterLock.writeLock().unlock();
+        }
+        return next;
+    }
+
+    /**
+     * @param next complete filter to use for lookups, null to abandon the rebuild
+     */
+    private void finishRebuild(BlockedBloomFilter next) {
+        filterLock.writeLock().lock();
+        try {
+            if (next != null) {
+                filter = next;
+            }
+            rebuilt = null;
+        } finally {
+            filterLock.writeLock().unlock();
+        }
+    }
+
+    // the set grows by up to a merge until the next rebuild, the filter has room for two
+    private long filterCapacity() {
+        return size() + 2L * Math.max(mergeThreshold, base.size() / MERGE_RATIO);
+    }
+
+    /**
+     * Writes all identifiers into a single segment in the file, replaced atomically. Identifiers added while writing
+     * may be missing.
+     *
+     * @param source marker of the source of the records (f.e. its DB), a snapshot is loaded only for the same source
+     * @param maxId highest ID of the source records covered by the snapshot
+     * @param taken time of the snapshot, records committed after it may be missing
+     */
+    public void writeSnapshot(Path file, long source, long maxId, Instant taken) throws IOException {
+        // the delta first, identifiers merged in the meantime are in the base read afterwards
+        byte[][] added = sorted(new ArrayList<>(delta));
+        Segment current = base;
+
+        Path temp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeInt(SNAPSHOT_VERSION);
+                out.writeLong(source);
+                out.writeLong(maxId);
+                out.writeLong(taken.toEpochMilli());
+                out.writeInt(chunkShift);
+                Builder builder = Segment.merge(current, added, out, chunkShift, null);
+                for (int i = 0; i < builder.bucketCount(); i++) {
+                    out.writeLong(builder.buckets[i]);
+                }
+                out.writeLong(builder.offset);
+                out.writeInt(builder.size);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Replaces the base segment by the one of the snapshot, identifiers in the delta are kept. The segment is mapped
+     * straight from the file if segments live outside the heap. Meant for startup, it must not run during a merge.
+     *
+     * @param source marker of the source the snapshot has to be taken from
+     * @return what the snapshot covers
+     * @throws IOException if the snapshot can't be read, is incomplete, of another version or of another source
+     */
+    public Snapshot loadSnapshot(Path file, long source) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            if (fileSize < SNAPSHOT_HEADER + SNAPSHOT_TRAILER) {
+                throw new IOException("Snapshot " + file + " is truncated");
+            }
+            ByteBuffer header = read(channel, 0, SNAPSHOT_HEADER);
+            if (header.getInt() != SNAPSHOT_MAGIC || header.getInt() != SNAPSHOT_VERSION) {
+                throw new IOException("Snapshot " + file + " is not a snapshot of version " + SNAPSHOT_VERSION);
+            }
+            long snapshotSource = header.getLong();
+            if (snapshotSource != source) {
+                throw new IOException("Snapshot " + file + " is of another source " + Long.toHexString(snapshotSource)
+                    + ", expected " + Long.toHexString(source));
+            }
+            Snapshot snapshot = new Snapshot(header.getLong(), Instant.ofEpochMilli(header.getLong()));
+            // the segment keeps the buffers it was written with, merges re-encode it with the ones of the set
+            int chunkShift = header.getInt();
+            if (chunkShift < 4 || chunkShift > CHUNK_SHIFT) {
+                throw new IOException("Snapshot " + file + " has buffers of 2^" + chunkShift + " bytes");
+            }
+
+            ByteBuffer trailer = read(channel, fileSize - SNAPSHOT_TRAILER, SNAPSHOT_TRAILER);
+            long dataBytes = trailer.getLong();
+            int size = trailer.getInt();
+            int bucketCount = (size + BUCKET_SIZE - 1) / BUCKET_SIZE;
+            if (dataBytes < 0 || size < 0
+                || SNAPSHOT_HEADER + dataBytes + (long) Long.BYTES * bucketCount + SNAPSHOT_TRAILER != fileSize) {
+                throw new IOException("Snapshot " + file + " is truncated");
+            }
+
+            long[] buckets = new long[bucketCount];
+            long bucketsAt = SNAPSHOT_HEADER + dataBytes;
+            for (int from = 0; from < bucketCount; from += 1 << (chunkShift - 3)) {
+                int count = Math.min(bucketCount - from, 1 << (chunkShift - 3));
+                read(channel, bucketsAt + (long) Long.BYTES * from, Long.BYTES * count).asLongBuffer().get(buckets, from, count);
+            }
+            ByteBuffer[] data = new ByteBuffer[chunkCount(dataBytes, chunkShift)];
+            for (int i = 0; i < data.length; i++) {
+                long from = (long) i << chunkShift;
+                int length = (int) Math.min(dataBytes - from, 1L << chunkShift);
+                data[i] = mappedDir != null
+                    ? channel.map(FileChannel.MapMode.READ_ONLY, SNAPSHOT_HEADER + from, length)
+                    : read(channel, SNAPSHOT_HEADER + from, length);
+            }
+
+            base = new Segment(data, dataBytes, chunkShift, buckets, size);
+            rebuildFilter();
+            return snapshot;
+        }
+    }
+
+    /**
+     * @param maxId highest ID of the source records covered by the snapshot
+     * @param taken time of the snapshot
+     */
+    public record Snapshot(long maxId, Instant taken) {
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        return buffer.flip();
+    }
+
+    private static int chunkCount(long bytes, int chunkShift) {
+        return (int) ((bytes + (1L << chunkShift) - 1) >>> chunkShift);
+    }
+
+    private static byte[][] sorted(List<String> identifiers) {
+        return identifiers.stream()
+            .map(identifier -> identifier.getBytes(UTF_8))
+            .sorted(Arrays::compareUnsigned)
+            .toArray(byte[][]::new);
+    }
+
+    /**
+     * Immutable sorted identifiers, front-coded in buckets. Every bucket starts with a complete entry
+     * (length, bytes), the following entries are (shared prefix length, suffix length, suffix bytes). Lengths are
+     * variable-length ints. Positions are offsets into the whole segment, spread over buffers of 2^chunkShift bytes.
+     * A bucket never spans two buffers (the rest of a buffer is padded), so a lookup reads a single one.
+     */
+    private static final class Segment {
+
+        private static final Segment EMPTY = new Segment(new ByteBuffer[0], 0, CHUNK_SHIFT, new long[0], 0);
+
+        private final ByteBuffer[] data;
+
+        private final long bytes;
+
+        private final int chunkShift;
+
+        private final long[] buckets;
+
+        private final int size;
+
+        /**
+         * @param data buffers of 2^chunkShift bytes, only the last one may be smaller
+         */
+        private Segment(ByteBuffer[] data, long bytes, int chunkShift, long[] buckets, int size) {
+            this.data = data;
+            this.bytes = bytes;
+            this.chunkShift = chunkShift;
+            this.buckets = buckets;
+            this.size = size;
+        }
+
+        private int size() {
+            return size;
+        }
+
+        private ByteBuffer chunk(int bucket) {
+            return data[(int) (buckets[bucket] >>> chunkShift)];
+        }
+
+        // position of the bucket within its buffer
+        private int start(int bucket) {
+            return (int) (buckets[bucket] & ((1L << chunkShift) - 1));
+        }
+
+        private boolean contains(byte[] key) {
+            // the last bucket starting with a key not greater than the searched one
+            int low = 0;
+            int high = buckets.length - 1;
+            int bucket = -1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int cmp = compareHead(chunk(middle), start(middle), key);
+                if (cmp == 0) {
+                    return true;
+                } else if (cmp < 0) {
+                    bucket = middle;
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            if (bucket == -1) {
+                return false;
+            }
+
+            // entries of the bucket are compared without decoding them: the head is smaller than the key, every
+            // entry sharing fewer bytes with the previous one than the previous one matched of the key is greater
+            ByteBuffer chunk = chunk(bucket);
+            int[] position = {start(bucket)};
+            int length = readVarInt(chunk, position);
+            int matched = mismatch(chunk, position[0], length, key, 0);
+            position[0] += length;
+            int entries = Math.min(BUCKET_SIZE, size - bucket * BUCKET_SIZE);
+            for (int i = 1; i < entries; i++) {
+                int shared = readVarInt(chunk, position);
+                int suffix = readVarInt(chunk, position);
+                if (shared < matched) {
+                    return false;
+                }
+                if (shared == matched) {
+                    int more = mismatch(chunk, position[0], suffix, key, matched);
+                    matched += more;
+                    if (more < suffix) {
+                        // the key ends or is smaller at the first differing byte
+                        if (matched == key.length || Byte.compareUnsigned(chunk.get(position[0] + more), key[matched]) > 0) {
+                            return false;
+                        }
+                    } else if (matched == key.length) {
+                        return true;
+                    }
+                }
+                // a greater shared prefix compares like the previous entry
+                position[0] += suffix;
+            }
+            return false;
+        }
+
+        /**
+         * @return number of equal bytes of the entry bytes at the offset and of the key from keyFrom
+         */
+        private static int mismatch(ByteBuffer chunk, int offset, int length, byte[] key, int keyFrom) {
+            int common = Math.min(length, key.length - keyFrom);
+            for (int i = 0; i < common; i++) {
+                if (chunk.get(offset + i) != key[keyFrom + i]) {
+                    return i;
+                }
+            }
+            return common;
+        }
+
+        private static int compareHead(ByteBuffer chunk, int offset, byte[] key) {
+            int[] position = {offset};
+            int length = readVarInt(chunk, position);
+            int common = Math.min(length, key.length);
+            for (int i = 0; i < common; i++) {
+                int cmp = Byte.compareUnsigned(chunk.get(position[0] + i), key[i]);
+                if (cmp != 0) {
+                    return cmp;
+                }
+            }
+            return Integer.compare(length, key.length);
+        }
+
+        private static int readVarInt(ByteBuffer chunk, int[] position) {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = chunk.get(position[0]++);
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            return value;
+        }
+
+        /**
+         * Decodes the identifiers in their order, used by merges.
+         */
+        private final class Cursor {
+            private ByteBuffer chunk;
+
+            private final int[] position = {0};
+
+            private int index = 0;
+
+            private byte[] previous = new byte[0];
+
+            private boolean hasNext() {
+                return index < size;
+            }
+
+            private byte[] next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                byte[] entry;
+                if (index % BUCKET_SIZE == 0) {
+                    // buckets start after the padding of the previous buffer
+                    chunk = chunk(index / BUCKET_SIZE);
+                    position[0] = start(index / BUCKET_SIZE);
+                    entry = new byte[readVarInt(chunk, position)];
+                    chunk.get(position[0], entry);
+                    position[0] += entry.length;
+                } else {
+                    int shared = readVarInt(chunk, position);
+                    int suffix = readVarInt(chunk, position);
+                    entry = Arrays.copyOf(previous, shared + suffix);
+                    chunk.get(position[0], entry, shared, suffix);
+                    position[0] += suffix;
+                }
+                index++;
+                previous = entry;
+                return entry;
+            }
+        }
+
+        /**
+         * @param added sorted identifiers, duplicates of the base are skipped
+         * @param filter receives the merged identifiers, may be null
+         */
+        private static Segment merge(Segment base, byte[][] added, Path mappedDir, int chunkShift, BlockedBloomFilter filter) throws IOException {
+            if (mappedDir == null) {
+                ChunkedOutputStream out = new ChunkedOutputStream(chunkShift);
+                Builder builder = merge(base, added, out, chunkShift, filter);
+                return builder.build(out.toBuffers());
+            }
+
+            Path file = Files.createTempFile(mappedDir, "identifiers", ".seg");
+            try {
+                Builder builder;
+                try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+                    builder = merge(base, added, out, chunkShift, filter);
+                }
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    // the mappings stay valid after the channel is closed and the file deleted
+                    ByteBuffer[] data = new ByteBuffer[chunkCount(builder.offset, chunkShift)];
+                    for (int i = 0; i < data.length; i++) {
+                        long from = (long) i << chunkShift;
+                        data[i] = channel.map(FileChannel.MapMode.READ_ONLY, from, Math.min(builder.offset - from, 1L << chunkShift));
+                    }
+                    return builder.build(data);
+                }
+            } finally {
+                Files.deleteIfExists(file);
+            }
+        }
+
+        /**
+         * Writes the merged identifiers into the stream.
+         *
+         * @return builder describing what was written
+         */
+        private static Builder merge(Segment base, byte[][] added, OutputStream out, int chunkShift, BlockedBloomFilter filter) throws IOException {
+            Builder builder = new Builder(out, chunkShift, filter);
+            Segment.Cursor cursor = base.new Cursor();
+            byte[] fromBase = cursor.hasNext() ? cursor.next() : null;
+            int i = 0;
+            while (fromBase != null || i < added.length) {
+                int cmp = fromBase == null ? 1 : i == added.length ? -1 : Arrays.compareUnsigned(fromBase, added[i]);
+                if (cmp <= 0) {
+                    builder.add(fromBase);
+                    fromBase = cursor.hasNext() ? cursor.next() : null;
+                    if (cmp == 0) {
+                        i++;
+                    }
+                } else {
+                    builder.add(added[i++]);
+                }
+            }
+            builder.finish();
+            out.flush();
+            return builder;
+        }
+    }
+
+    /**
+     * Front-codes sorted identifiers into the stream. A bucket is collected first and written whole, at the start of
+     * the next buffer if it doesn't fit into the rest of the current one.
+     */
+    private static final class Builder {
+        private final OutputStream out;
+
+        private final int chunkShift;
+
+        private final ByteArrayOutputStream bucket = new ByteArrayOutputStream();
+
+        private long[] buckets = new long[1024];
+
+        private int size = 0;
+
+        // bytes written into the stream
+        private long offset = 0;
+
+        private byte[] previous;
+
+        // null if not rebuilding a filter
+        private final BlockedBloomFilter filter;
+
+        private Builder(OutputStream out, int chunkShift, BlockedBloomFilter filter) {
+            this.out = out;
+            this.chunkShift = chunkShift;
+            this.filter = filter;
+        }
+
+        private void add(byte[] entry) throws IOException {
+            if (size % BUCKET_SIZE == 0) {
+                finish();
+                writeVarInt(entry.length);
+                bucket.write(entry, 0, entry.length);
+            } else {
+                int shared = Arrays.mismatch(previous, entry);
+                if (shared == -1) {
+                    shared = entry.length;
+                }
+                writeVarInt(shared);
+                writeVarInt(entry.length - shared);
+                bucket.write(entry, shared, entry.length - shared);
+            }
+            if (filter != null) {
+                filter.put(entry);
+            }
+            previous = entry;
+            size++;
+        }
+
+        /**
+         * Writes the collected bucket, has to be called after the last identifier.
+         */
+        private void finish() throws IOException {
+            if (bucket.size() == 0) {
+                return;
+            }
+            long chunkBytes = 1L << chunkShift;
+            if (bucket.size() > chunkBytes) {
+                throw new IOException("Bucket of " + bucket.size() + " bytes doesn't fit into a buffer of " + chunkBytes);
+            }
+            long rest = chunkBytes - (offset & (chunkBytes - 1));
+            if (bucket.size() > rest) {
+                out.write(new byte[(int) rest]);
+                offset += rest;
+            }
+
+            int index = (size - 1) / BUCKET_SIZE;
+            if (index == buckets.length) {
+                buckets = Arrays.copyOf(buckets, buckets.length * 2);
+            }
+            buckets[index] = offset;
+            bucket.writeTo(out);
+            offset += bucket.size();
+            bucket.reset();
+        }
+
+        private int bucketCount() {
+            return (size + BUCKET_SIZE - 1) / BUCKET_SIZE;
+        }
+
+        private Segment build(ByteBuffer[] data) {
+            ByteBuffer[] readOnly = Arrays.stream(data).map(ByteBuffer::asReadOnlyBuffer).toArray(ByteBuffer[]::new);
+            return new Segment(readOnly, offset, chunkShift, Arrays.copyOf(buckets, bucketCount()), size);
+        }
+
+        private void writeVarInt(int value) {
+            while ((value & ~0x7F) != 0) {
+                bucket.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bucket.write(value);
+        }
+    }
+
+    /**
+     * Collects a segment on heap in arrays of 2^chunkShift bytes, the last one is grown as needed.
+     */
+    private static final class ChunkedOutputStream extends OutputStream {
+
+        private static final int INITIAL = 4096;
+
+        private final int chunkBytes;
+
+        private final List<byte[]> full = new ArrayList<>();
+
+        private byte[] current;
+
+        private int position = 0;
+
+        private ChunkedOutputStream(int chunkShift) {
+            this.chunkBytes = 1 << chunkShift;
+            this.current = new byte[Math.min(INITIAL, chunkBytes)];
+        }
+
+        @Override
+        public void write(int b) {
+            if (position == current.length) {
+                grow();
+            }
+            current[position++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] bytes, int from, int length) {
+            while (length > 0) {
+                if (position == current.length) {
+                    grow();
+                }
+                int part = Math.min(length, current.length - position);
+                System.arraycopy(bytes, from, current, position, part);
+                position += part;
+                from += part;
+                length -= part;
+            }
+        }
+
+        private void grow() {
+            if (current.length < chunkBytes) {
+                current = Arrays.copyOf(current, Math.min(chunkBytes, current.length * 2));
+            } else {
+                full.add(current);
+                current = new byte[Math.min(INITIAL, chunkBytes)];
+                position = 0;
+            }
+        }
+
+        private ByteBuffer[] toBuffers() {
+            List<ByteBuffer> buffers = new ArrayList<>();
+            full.forEach(chunk -> buffers.add(ByteBuffer.wrap(chunk)));
+            if (position > 0) {
+                buffers.add(ByteBuffer.wrap(Arrays.copyOf(current, position)));
+            }
+            return buffers.toArray(ByteBuffer[]::new);
+        }
+    }
+}
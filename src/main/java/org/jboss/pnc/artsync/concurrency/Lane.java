@@ -0,0 +1,10 @@
+package org.jboss.pnc.artsync.concurrency;
+
+/**
+ * Priority lanes of a {@link TokenBucket}, in the order of priority.
+ */
+public enum Lane {
+    CONTROL, // calls everything else waits on (auth tokens, repository endpoints)
+    VERIFICATION, // cheap checks of finished work (listing uploaded assets)
+    DATA // bulk work (uploads, downloads)
+}
@@ -0,0 +1,50 @@
+package org.jboss.pnc.artsync.concurrency;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Optional;
+
+/**
+ * Sliding window of the most recent latencies, answering their percentiles.
+ *
+ * Samples overwrite the oldest ones once the window is full. A percentile is computed from a sorted copy of the
+ * window, which is cheap for windows of a few hundred samples.
+ */
+public class LatencyWindow {
+
+    private final long[] samples;
+
+    private int next = 0;
+
+    private int count = 0;
+
+    public LatencyWindow(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Size of a latency window has to be positive, was " + size);
+        }
+        this.samples = new long[size];
+    }
+
+    public synchronized void record(Duration latency) {
+        samples[next] = latency.toNanos();
+        next = (next + 1) % samples.length;
+        count = Math.min(count + 1, samples.length);
+    }
+
+    /**
+     * @param percentile between 0 and 1
+     * @return latency not exceeded by the percentile of samples, empty until the window is full
+     */
+    public Optional<Duration> percentile(double percentile) {
+        long[] sorted;
+        synchronized (this) {
+            if (count < samples.length) {
+                return Optional.empty();
+            }
+            sorted = samples.clone();
+        }
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return Optional.of(Duration.ofNanos(sorted[Math.clamp(index, 0, sorted.length - 1)]));
+    }
+}
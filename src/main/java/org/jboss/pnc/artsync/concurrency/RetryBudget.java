@@ -0,0 +1,66 @@
+package org.jboss.pnc.artsync.concurrency;
+
+/**
+ * Budget of retries shared by all calls of an executor.
+ *
+ * Every call deposits {@code ratio} of a retry, every retry withdraws a whole one, so retries stay a bounded fraction
+ * of the traffic no matter how many calls fail at once. To let a service with little traffic retry at all, the budget
+ * also refills by {@code minPerSecond} retries every second. The balance is capped, so a quiet period doesn't save up
+ * for a retry storm.
+ */
+public class RetryBudget {
+
+    private final double ratio;
+
+    private final double minPerSecond;
+
+    private final double max;
+
+    private double balance;
+
+    private long lastRefill;
+
+    /**
+     * @param ratio retries per call
+     * @param minPerSecond retries per second allowed regardless of the traffic
+     */
+    public RetryBudget(double ratio, double minPerSecond) {
+        if (ratio < 0 || minPerSecond < 0) {
+            throw new IllegalArgumentException("Retry budget can't be negative.");
+        }
+        this.ratio = ratio;
+        this.minPerSecond = minPerSecond;
+        // about ten seconds of the minimal budget
+        this.max = Math.max(10, minPerSecond * 10);
+        this.balance = max;
+        this.lastRefill = System.nanoTime();
+    }
+
+    public synchronized void deposit() {
+        refill();
+        balance = Math.min(max, balance + ratio);
+    }
+
+    /**
+     * @return true if a retry can be made
+     */
+    public synchronized boolean tryWithdraw() {
+        refill();
+        if (balance < 1) {
+            return false;
+        }
+        balance -= 1;
+        return true;
+    }
+
+    public synchronized double getBalance() {
+        refill();
+        return balance;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        balance = Math.min(max, balance + (now - lastRefill) / 1_000_000_000d * minPerSecond);
+        lastRefill = now;
+    }
+}
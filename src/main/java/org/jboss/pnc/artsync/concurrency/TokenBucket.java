@@ -0,0 +1,233 @@
+package org.jboss.pnc.artsync.concurrency;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Non-blocking weighted token bucket with priority lanes.
+ *
+ * Tokens refill continuously at the configured rate up to the capacity of the bucket. Waiters are queued in
+ * {@link Lane lanes}, the head of the highest-priority non-empty lane is served first and every lane is FIFO, so
+ * a heavy request is never overtaken by lighter ones of the same lane. A head of a lower lane waiting longer than
+ * the starvation limit is served before the higher lanes.
+ *
+ * A request bigger than the capacity is granted once the bucket is full and borrows tokens of the following periods
+ * (the balance goes negative), it waits until the debt is paid off instead of never getting admitted.
+ *
+ * Waiting doesn't park any thread, the returned future is completed by the scheduler.
+ */
+public class TokenBucket {
+
+    private final ScheduledExecutorService scheduler;
+
+    private final long capacity;
+
+    private final long maxWaitNanos;
+
+    private final long starvationNanos;
+
+    // lane and nanos waited of every granted request
+    private final ObjLongConsumer<Lane> onGranted;
+
+    private final Map<Lane, Deque<Waiter>> lanes = new EnumMap<>(Lane.class);
+
+    private long nanosPerToken;
+
+    // can be negative when tokens are borrowed
+    private double balance;
+
+    private long lastRefill;
+
+    private long queuedTokens = 0;
+
+    private ScheduledFuture<?> dispatch;
+
+    private long dispatchAt;
+
+    private record Waiter(Lane lane, int tokens, long enqueued, CompletableFuture<Void> granted) {}
+
+    /**
+     * @param scheduler scheduler completing reservations
+     * @param capacity maximum of tokens that can be taken at once without waiting (burst)
+     * @param rate tokens refilled per period
+     * @param period refill period
+     * @param maxWait requests which would wait longer are rejected
+     * @param starvationLimit a lower lane waiting longer is served before the higher ones
+     * @param onGranted listener of granted requests (lane, nanos waited), can be null
+     */
+    public TokenBucket(ScheduledExecutorService scheduler,
+                       long capacity,
+                       int rate,
+                       Duration period,
+                       Duration maxWait,
+                       Duration starvationLimit,
+                       ObjLongConsumer<Lane> onGranted) {
+        if (capacity <= 0 || rate <= 0 || period.isNegative() || period.isZero()) {
+            throw new IllegalArgumentException("Capacity, rate and period of a token bucket have to be positive.");
+        }
+        this.scheduler = scheduler;
+        this.capacity = capacity;
+        this.maxWaitNanos = maxWait.toNanos();
+        this.starvationNanos = starvationLimit.toNanos();
+        this.onGranted = onGranted;
+        this.nanosPerToken = Math.max(1, period.toNanos() / rate);
+        this.balance = capacity;
+        this.lastRefill = System.nanoTime();
+        for (Lane lane : Lane.values()) {
+            lanes.put(lane, new ArrayDeque<>());
+        }
+    }
+
+    public CompletableFuture<Void> acquire(int tokens) {
+        return acquire(Lane.DATA, tokens);
+    }
+
+    /**
+     * @param lane priority of the request
+     * @param tokens weight of the request
+     * @return future completed once the tokens are granted, or failed with {@link RejectedExecutionException} if it
+     * would wait longer than max-wait
+     */
+    public CompletableFuture<Void> acquire(Lane lane, int tokens) {
+        Waiter waiter = new Waiter(lane, Math.max(0, tokens), System.nanoTime(), new CompletableFuture<>());
+        List<Waiter> granted;
+        synchronized (this) {
+            refill();
+            // estimate, queued tokens of lower lanes can be overtaken
+            double deficit = queuedTokens + Math.min(waiter.tokens(), capacity) - balance;
+            if (deficit * nanosPerToken > maxWaitNanos) {
+                return CompletableFuture.failedFuture(new RejectedExecutionException(
+                    "Request for " + tokens + " tokens would wait longer than " + Duration.ofNanos(maxWaitNanos)));
+            }
+
+            lanes.get(lane).add(waiter);
+            queuedTokens += waiter.tokens();
+            granted = dispatch();
+        }
+        complete(granted);
+
+        return waiter.granted();
+    }
+
+    /**
+     * Takes all tokens available at the moment, f.e. when the remote service signals it's being overloaded.
+     */
+    public synchronized void drain() {
+        refill();
+        balance = Math.min(balance, 0);
+    }
+
+    /**
+     * Changes the refill rate, tokens refilled so far are kept.
+     */
+    public void setRate(double rate, Duration period) {
+        if (rate <= 0) {
+            throw new IllegalArgumentException("Rate of a token bucket has to be positive, was " + rate);
+        }
+        List<Waiter> granted;
+        synchronized (this) {
+            refill();
+            nanosPerToken = Math.max(1, (long) (period.toNanos() / rate));
+            granted = dispatch();
+        }
+        complete(granted);
+    }
+
+    public synchronized long getAvailableTokens() {
+        refill();
+        return Math.max(0, (long) balance);
+    }
+
+    public synchronized int getNumberOfWaiting() {
+        return lanes.values().stream().mapToInt(Deque::size).sum();
+    }
+
+    private void dispatchScheduled() {
+        List<Waiter> granted;
+        synchronized (this) {
+            dispatch = null;
+            granted = dispatch();
+        }
+        complete(granted);
+    }
+
+    // has to be called while holding the lock
+    private List<Waiter> dispatch() {
+        refill();
+        List<Waiter> granted = new ArrayList<>();
+        Waiter next;
+        while ((next = next()) != null) {
+            double needed = Math.min(next.tokens(), capacity);
+            if (balance < needed) {
+                schedule(lastRefill + (long) Math.ceil((needed - balance) * nanosPerToken));
+                break;
+            }
+
+            lanes.get(next.lane()).poll();
+            queuedTokens -= next.tokens();
+            balance -= next.tokens();
+            granted.add(next);
+        }
+        return granted;
+    }
+
+    // has to be called while holding the lock
+    private Waiter next() {
+        Waiter starving = null;
+        Waiter prioritized = null;
+        for (Lane lane : Lane.values()) {
+            Waiter head = lanes.get(lane).peek();
+            if (head == null) {
+                continue;
+            }
+            if (prioritized == null) {
+                prioritized = head;
+            } else if (lastRefill - head.enqueued() > starvationNanos
+                && (starving == null || head.enqueued() < starving.enqueued())) {
+                starving = head;
+            }
+        }
+        return starving != null ? starving : prioritized;
+    }
+
+    // has to be called while holding the lock
+    private void schedule(long at) {
+        if (dispatch != null) {
+            if (dispatchAt <= at) {
+                return;
+            }
+            dispatch.cancel(false);
+        }
+        dispatchAt = at;
+        dispatch = scheduler.schedule(this::dispatchScheduled, Math.max(0, at - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    // has to be called while holding the lock
+    private void refill() {
+        long now = System.nanoTime();
+        balance = Math.min(capacity, balance + (double) (now - lastRefill) / nanosPerToken);
+        lastRefill = now;
+    }
+
+    private void complete(List<Waiter> granted) {
+        // outside the lock, dependant stages can run in the completing thread
+        long now = System.nanoTime();
+        granted.forEach(waiter -> {
+            if (onGranted != null) {
+                onGranted.accept(waiter.lane(), now - waiter.enqueued());
+            }
+            waiter.granted().complete(null);
+        });
+    }
+}
@@ -1,11 +1,14 @@
 package org.jboss.pnc.artsync.config;
 
+import io.quarkus.runtime.configuration.MemorySize;
 import io.smallrye.config.ConfigMapping;
 import io.smallrye.config.WithDefault;
 import io.smallrye.config.WithName;
 import jakarta.persistence.criteria.CriteriaBuilder;
 
 import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Optional;
 
 @ConfigMapping(prefix = "artsync")
 public interface ArtsyncConfig {
@@ -34,8 +37,188 @@ public interface ArtsyncConfig {
     @WithDefault("2147483647") //Integer.MAX_VALUE for practically full concurrency
     int pipelineConcurrencyLimit();
 
+    /**
+     * How many grouped projects of a partition can be in download/upload at the same time. Further projects wait
+     * (without blocking a thread) until one of them is persisted.
+     * @return limit of released projects that did not finish uploading yet
+     */
+    @WithDefault("1000")
+    int pipelineQueueLimit();
+
+    /**
+     * How many bytes of artifacts can be downloaded in {@link #downloadRootDir()} at the same time. Project versions
+     * reserve the sum of their asset sizes before downloading and wait (in FIFO order) if the budget is depleted.
+     * A version bigger than the budget is processed alone.
+     * @return limit of bytes of concurrently processed project versions
+     */
+    @WithDefault("20G")
+    MemorySize pipelineDiskBudget();
+
+    /**
+     * Free space that has to be left in {@link #downloadRootDir()}, project versions wait if downloading them would
+     * get below it.
+     * @return minimal free disk space
+     */
+    @WithDefault("1G")
+    MemorySize pipelineMinFreeSpace();
+
+    /**
+     * Generic-proxy assets are streamed from Indy straight into CodeArtifact, their SHA-256 verified on the fly,
+     * instead of being downloaded into {@link #downloadRootDir()} first. They don't count against the disk budget.
+     * Opt-in, the publish requests are signed by artsync instead of the AWS SDK.
+     * @return whether generic-proxy assets are uploaded without touching the disk
+     */
+    @WithDefault("false")
+    boolean streamGenericProxy();
+
     CronConfig cron();
 
+    PersistenceConfig persistence();
+
+    ContentStoreConfig contentStore();
+
+    ProcessedCacheConfig processedCache();
+
+    interface ProcessedCacheConfig {
+        /**
+         * Newly processed identifiers are kept aside until there are this many of them (or an eighth of the cached
+         * ones, if more), then merged into the compact sorted segment.
+         * @return minimal number of identifiers merged at once
+         */
+        @WithDefault("100000")
+        int mergeThreshold();
+
+        /**
+         * The sorted segment is memory-mapped from a file in {@link #downloadRootDir()} instead of living on heap.
+         * @return whether processed identifiers are kept outside the heap
+         */
+        @WithDefault("false")
+        boolean offHeap();
+
+        /**
+         * Lookups go through a Bloom filter first, which answers most lookups of unprocessed identifiers on its own.
+         * Lower rates take more memory (about 10 bits per identifier at 0.01), 0 disables the filter.
+         * @return false positive rate of the filter
+         */
+        @WithDefault("0.01")
+        double filterFalsePositiveRate();
+
+        /**
+         * Identifiers are read from DB in pages of this size at startup, each in its own transaction. The next page
+         * is read while the previous one is added to the cache.
+         * @return number of identifiers read at once
+         */
+        @WithDefault("20000")
+        int loadPageSize();
+
+        /**
+         * Processed identifiers are written into a snapshot in {@link #downloadRootDir()} periodically and on
+         * shutdown. Startup loads the snapshot and reads only AssetEntries added since from DB, instead of all of them.
+         * @return whether snapshots are written and loaded
+         */
+        @WithDefault("true")
+        boolean snapshot();
+
+        /**
+         * @return interval of snapshots in the format of Scheduled#every
+         */
+        @WithDefault("15m")
+        String snapshotInterval();
+
+        FailureBackoffConfig failureBackoff();
+    }
+
+    /**
+     * Identifiers failing with an UNRECOVERABLE or MANUAL_INTERVENTION error are not processed again until their
+     * backoff elapses. The backoff starts at the delay of the category and doubles with every failure.
+     */
+    interface FailureBackoffConfig {
+        @WithDefault("true")
+        boolean enabled();
+
+        /**
+         * @return backoff after the first UNRECOVERABLE failure
+         */
+        @WithDefault("PT6H")
+        Duration unrecoverableDelay();
+
+        /**
+         * @return backoff after the first MANUAL_INTERVENTION failure
+         */
+        @WithDefault("PT1H")
+        Duration manualInterventionDelay();
+
+        /**
+         * @return limit of the doubled backoff
+         */
+        @WithDefault("P7D")
+        Duration maxDelay();
+
+        /**
+         * Failures are forgotten (with their count) this long after the last one. Failures within this time are
+         * loaded from DB at startup.
+         * @return how long failures are remembered
+         */
+        @WithDefault("P30D")
+        Duration ttl();
+
+        /**
+         * Failures marked fixed on another node sharing the DB are forgotten with the next sync.
+         * @return how often backed-off failures are checked against DB
+         */
+        @WithDefault("PT5M")
+        Duration syncInterval();
+    }
+
+    interface ContentStoreConfig {
+        /**
+         * Verified downloads are kept in a content-addressable store (by SHA-256) in {@link #downloadRootDir()}, so
+         * that the same content isn't downloaded from Indy again.
+         * @return whether the content store is used
+         */
+        @WithDefault("true")
+        boolean enabled();
+
+        /**
+         * The least recently used content is evicted when the store grows bigger. The store comes on top of
+         * {@link #pipelineDiskBudget()}, only content not linked from a version directory takes additional space.
+         * @return maximal size of the content store
+         */
+        @WithDefault("10G")
+        MemorySize maxSize();
+    }
+
+    interface PersistenceConfig {
+        /**
+         * Results are persisted in batches of at least this many AssetEntries (if there are enough of them waiting).
+         * Keep it close to quarkus.hibernate-orm.jdbc.statement-batch-size.
+         * @return preferred number of AssetEntries persisted in a single transaction
+         */
+        @WithDefault("1000")
+        int batchSize();
+
+        /**
+         * How many uploaded projects can wait for persistence before the pipeline waits for the DB.
+         * @return limit of projects waiting for persistence
+         */
+        @WithDefault("100")
+        int queueLimit();
+
+        /**
+         * A failed batch is split in halves which are persisted separately, a single project is retried this many
+         * times before its results are failed.
+         * @return number of retries of a single project
+         */
+        @WithDefault("3")
+        int retries();
+
+        /**
+         * @return delay before the first retry of a project, every further retry waits longer by the same delay
+         */
+        @WithDefault("1s")
+        Duration retryDelay();
+    }
+
     interface CronConfig {
         String schedule();
         int jobSize();
@@ -43,5 +226,68 @@ public interface ArtsyncConfig {
 
         @WithDefault("false")
         boolean startPaused();
+
+        /**
+         * How many following partitions of a job are analyzed (PNC, Indy reports) while the current one uploads.
+         * 0 disables the look-ahead and partitions are processed strictly one after another.
+         * @return number of partitions analyzed ahead of the uploading one
+         */
+        @WithDefault("1")
+        int partitionPrefetch();
+
+        /**
+         * How often progress of planned project versions is written to DB (besides the end of every partition).
+         * Versions whose progress wasn't written before a restart are redone when the job resumes.
+         * @return interval in the format of Scheduled#every
+         */
+        @WithDefault("10s")
+        String workFlushInterval();
+
+        /**
+         * An interrupted (or failed) Job is resumed by the next run. A Job that fails this many resumes is marked as
+         * failed and a new Job is planned from the last build before its first unfinished one. A Job shared by nodes
+         * is given up once it failed this many times on any of them.
+         * @return number of resumes of a Job before it's given up
+         */
+        @WithDefault("3")
+        int maxResumeAttempts();
+
+        ShardingConfig sharding();
+    }
+
+    interface ShardingConfig {
+        /**
+         * Several nodes work on the same Job. Builds of the Job are leased (SELECT ... FOR UPDATE SKIP LOCKED) a
+         * partition at a time, so the nodes process disjoint parts of it.
+         * @return true if Jobs are shared by all nodes connected to the same DB
+         */
+        @WithDefault("false")
+        boolean enabled();
+
+        /**
+         * @return unique name of this node, defaults to HOSTNAME (or a random UUID)
+         */
+        Optional<String> nodeName();
+
+        /**
+         * A lease which isn't extended by the node's heartbeat within this duration can be taken by another node.
+         * @return duration of a build lease
+         */
+        @WithDefault("PT5M")
+        Duration leaseDuration();
+
+        /**
+         * @return how often leases held by this node are extended, in the format of Scheduled#every
+         */
+        @WithDefault("30s")
+        String heartbeatInterval();
+
+        /**
+         * IDs of AssetEntries are allocated in blocks per node and committed out of order, the processed cache reads
+         * IDs skipped by a refresh again until they are committed or this timeout elapses.
+         * @return how long an ID skipped by a refresh of processed cache is expected to get committed
+         */
+        @WithDefault("PT1H")
+        Duration idGapTimeout();
     }
 }
@@ -1,5 +1,55 @@
 package org.jboss.pnc.artsync.config;
 
+import io.smallrye.config.WithDefault;
+
+import java.time.Duration;
+
 public interface FaultToleranceConfig {
 
+    /**
+     * Circuit breaker opens when this percentage of recent calls failed (throttling doesn't count as a failure).
+     * @return failure rate threshold in percents
+     */
+    @WithDefault("50")
+    float failureRateThreshold();
+
+    /**
+     * @return number of recent calls the failure rate is computed from
+     */
+    @WithDefault("100")
+    int slidingWindowSize();
+
+    /**
+     * @return minimal number of recent calls before the failure rate is evaluated
+     */
+    @WithDefault("20")
+    int minimumNumberOfCalls();
+
+    /**
+     * Open circuit breaker fails calls fast for this long, then lets a few trial calls through (half-open).
+     * @return duration of the open state
+     */
+    @WithDefault("PT30S")
+    Duration waitDurationInOpenState();
+
+    /**
+     * @return number of trial calls in half-open state, their failure rate decides if the breaker closes
+     */
+    @WithDefault("10")
+    int permittedCallsInHalfOpenState();
+
+    /**
+     * Bulkhead, caps calls in flight independently of the rate of requests.
+     * @return limit of concurrent calls to the service
+     */
+    @WithDefault("2147483647")
+    int maxConcurrentCalls();
+
+    /**
+     * Readiness of the node goes DOWN while a critical circuit breaker is open. Open breakers of the other services
+     * only park the pipeline and are reported in the readiness data.
+     * @return true if the node can't do any useful work without the service
+     */
+    @WithDefault("false")
+    boolean critical();
 }
@@ -1,6 +1,9 @@
 package org.jboss.pnc.artsync.config;
 
+import io.smallrye.config.WithDefault;
+
 import java.time.Duration;
+import java.util.Optional;
 
 public interface RateLimitApplicationConfig {
 
@@ -13,4 +16,32 @@ public interface RateLimitApplicationConfig {
     Duration timeConstraint();
 
     Duration requestTimeout();
+
+    /**
+     * Ceiling of the adaptive rate, {@link #rateOfRequests()} is its floor. The rate starts at the floor, raises
+     * additively while calls succeed and is cut multiplicatively when the service throttles. If not set (or not above
+     * the floor), the rate is static.
+     * @return maximal number of requests per {@link #timeConstraint()}
+     */
+    Optional<Integer> maxRateOfRequests();
+
+    /**
+     * @return additive increase of the rate per {@link #timeConstraint()} of successful requests
+     */
+    @WithDefault("1")
+    double rateIncrease();
+
+    /**
+     * @return multiplicative decrease of the rate when the service throttles
+     */
+    @WithDefault("0.5")
+    double rateDecrease();
+
+    /**
+     * Requests of higher-priority lanes (f.e. auth tokens) are served first, a request of a lower lane waiting longer
+     * than this is served before them.
+     * @return maximal wait of a lower lane before it gets served
+     */
+    @WithDefault("PT10S")
+    Duration laneStarvationLimit();
 }
@@ -24,6 +24,18 @@ public interface RepositoryMapping {
 
     String targetGenericProxyRepository();
 
+    /**
+     * Pipeline permits are shared by target AWS repositories in proportion to their weights, so that every mapped
+     * repository progresses. Repositories without a weight have weight 1.
+     * @return weights of AWS repositories
+     */
+    @WithName("aws-repository-weights")
+    Map<String, Integer> awsRepositoryWeights();
+
+    default double weightOf(String awsRepository) {
+        return awsRepositoryWeights().getOrDefault(awsRepository, 1);
+    }
+
     default String mapToAws(TargetRepository pnc) {
         if (forceSingleGenericProxyRepository() && pnc.getRepositoryType() == RepositoryType.GENERIC_PROXY) {
             if (targetGenericProxyRepository() == null || targetGenericProxyRepository().isBlank()) {
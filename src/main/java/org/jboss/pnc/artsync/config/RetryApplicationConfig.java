@@ -17,4 +17,30 @@ public interface RetryApplicationConfig {
 
     @WithDefault("PT0.500s")
     Duration interval();
+
+    /**
+     * Exponential backoff with decorrelated jitter, so that calls failing at the same time don't retry in lockstep.
+     * @return true if the exponential backoff is randomized
+     */
+    @WithDefault("true")
+    boolean jitter();
+
+    /**
+     * @return maximal interval between two attempts
+     */
+    @WithDefault("PT30S")
+    Duration maxInterval();
+
+    /**
+     * Retries of all calls are limited by a shared budget, each call adds this fraction of a retry to it.
+     * @return ratio of retries to calls
+     */
+    @WithDefault("0.2")
+    double budgetRatio();
+
+    /**
+     * @return retries per second allowed by the budget regardless of the traffic
+     */
+    @WithDefault("5")
+    double budgetMinPerSecond();
 }
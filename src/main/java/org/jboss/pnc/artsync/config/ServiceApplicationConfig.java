@@ -7,4 +7,6 @@ public interface ServiceApplicationConfig {
     RateLimitApplicationConfig rateLimit();
 
     RetryApplicationConfig retry();
+
+    FaultToleranceConfig faultTolerance();
 }
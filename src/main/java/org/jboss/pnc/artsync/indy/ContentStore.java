@@ -0,0 +1,217 @@
+package org.jboss.pnc.artsync.indy;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.file.FileSystem;
+import jakarta.enterprise.context.ApplicationScoped;
+import lombok.extern.slf4j.Slf4j;
+import org.jboss.pnc.artsync.config.ArtsyncConfig;
+import org.jboss.pnc.artsync.config.ArtsyncConfig.ContentStoreConfig;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
+/**
+ * Content-addressable store of downloaded artifacts, keyed by their SHA-256.
+ *
+ * Verified downloads are hard-linked into the store, so they outlive the cleanup of their version directory. A later
+ * download of the same content (a retry, another build or AWS repository) is hard-linked from the store into the
+ * version directory instead of being fetched from Indy again. Linking doesn't copy any data, content stored in both
+ * places takes the disk space once.
+ *
+ * The store is bounded by its size, the least recently used content is evicted first. Evicting content still linked
+ * from a version directory doesn't affect the version, the other link keeps the data.
+ */
+@Slf4j
+@ApplicationScoped
+public class ContentStore {
+
+    private static final String STORE_DIR = ".cas";
+
+    private final FileSystem fs;
+
+    private final boolean enabled;
+
+    private final Path root;
+
+    private final long maxBytes;
+
+    // SHA-256 -> size, in the order of access
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long bytes = 0;
+
+    private final Counter hits;
+
+    private final Counter misses;
+
+    private final Counter evictions;
+
+    public ContentStore(Vertx vertx, ArtsyncConfig config, MeterRegistry registry) {
+        ContentStoreConfig storeConfig = config.contentStore();
+        this.fs = vertx.fileSystem();
+        this.enabled = storeConfig.enabled();
+        this.root = config.downloadRootDir().resolve(STORE_DIR).toAbsolutePath();
+        this.maxBytes = storeConfig.maxSize().asLongValue();
+        this.hits = Counter.builder("artsync.content-store.requests").tag("result", "hit").register(registry);
+        this.misses = Counter.builder("artsync.content-store.requests").tag("result", "miss").register(registry);
+        this.evictions = Counter.builder("artsync.content-store.evictions").register(registry);
+        registry.gauge("artsync.content-store.bytes", this, ContentStore::getBytes);
+        registry.gauge("artsync.content-store.entries", this, ContentStore::size);
+
+        if (enabled) {
+            loadExisting();
+        }
+    }
+
+    /**
+     * Links the stored content into the file, replacing it if it exists.
+     *
+     * @return true if the content was in the store, false if it has to be downloaded
+     */
+    public CompletableFuture<Boolean> fetch(FileSize file) {
+        if (!enabled || file.sha256() == null) {
+            return CompletableFuture.completedFuture(false);
+        }
+
+        boolean present;
+        synchronized (this) {
+            Long size = entries.get(file.sha256());
+            present = size != null && size == file.size();
+        }
+        if (!present) {
+            misses.increment();
+            return CompletableFuture.completedFuture(false);
+        }
+
+        String target = file.file().getAbsolutePath();
+        return fs.delete(target)
+            .recover(ign -> Future.succeededFuture()) // file of a previous attempt may not exist
+            .compose(ign -> fs.link(target, contentPath(file.sha256()).toString()))
+            .map(ign -> {
+                hits.increment();
+                return true;
+            })
+            .otherwise(e -> {
+                // evicted in the meantime (or removed behind our back), it's stored again after the download
+                log.debug("Content {} couldn't be linked from the store", file.sha256(), e);
+                forget(file.sha256());
+                misses.increment();
+                return false;
+            })
+            .toCompletionStage().toCompletableFuture();
+    }
+
+    /**
+     * Adds a downloaded and verified file to the store. Failures are only logged, the file is just not stored.
+     */
+    public CompletableFuture<Void> store(FileSize file) {
+        if (!enabled || file.sha256() == null || file.size() > maxBytes) {
+            return CompletableFuture.completedFuture(null);
+        }
+        synchronized (this) {
+            if (entries.containsKey(file.sha256())) {
+                return CompletableFuture.completedFuture(null);
+            }
+        }
+
+        Path content = contentPath(file.sha256());
+        return fs.mkdirs(content.getParent().toString())
+            .compose(ign -> fs.link(content.toString(), file.file().getAbsolutePath()))
+            .compose(ign -> {
+                List<String> evicted;
+                synchronized (this) {
+                    if (entries.putIfAbsent(file.sha256(), file.size()) == null) {
+                        bytes += file.size();
+                    }
+                    evicted = evict();
+                }
+                return deleteAll(evicted);
+            })
+            .otherwise(e -> {
+                // concurrently stored by another download of the same content
+                log.debug("File {} couldn't be added to the store", file.file(), e);
+                return null;
+            })
+            .toCompletionStage().toCompletableFuture();
+    }
+
+    private synchronized void forget(String sha256) {
+        Long size = entries.remove(sha256);
+        if (size != null) {
+            bytes -= size;
+        }
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    // has to be called while holding the lock
+    private List<String> evict() {
+        List<String> evicted = new ArrayList<>();
+        Iterator<Map.Entry<String, Long>> lru = entries.entrySet().iterator();
+        while (bytes > maxBytes && lru.hasNext()) {
+            Map.Entry<String, Long> eldest = lru.next();
+            bytes -= eldest.getValue();
+            evicted.add(eldest.getKey());
+            lru.remove();
+            evictions.increment();
+        }
+        return evicted;
+    }
+
+    private Future<Void> deleteAll(List<String> evicted) {
+        Future<Void> deleted = Future.succeededFuture();
+        for (String sha256 : evicted) {
+            deleted = deleted.compose(ign -> fs.delete(contentPath(sha256).toString())
+                .onFailure(e -> log.warn("Couldn't delete evicted content " + sha256, e))
+                .recover(e -> Future.succeededFuture()));
+        }
+        return deleted;
+    }
+
+    private Path contentPath(String sha256) {
+        // sharded by the first byte, so that a single directory doesn't hold every artifact
+        return root.resolve(sha256.substring(0, 2)).resolve(sha256);
+    }
+
+    /**
+     * Indexes content stored before a restart, the least recently modified first.
+     */
+    private void loadExisting() {
+        if (!Files.isDirectory(root)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(root, 2)) {
+            files.filter(Files::isRegularFile)
+                .sorted(Comparator.comparing(path -> path.toFile().lastModified()))
+                .forEach(path -> {
+                    long size = path.toFile().length();
+                    entries.put(path.getFileName().toString(), size);
+                    bytes += size;
+                });
+            deleteAll(evict());
+            log.info("Content store {} has {} entries with {} bytes", root, entries.size(), bytes);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Couldn't index content store " + root + ", starting empty", e);
+            entries.clear();
+            bytes = 0;
+        }
+    }
+}
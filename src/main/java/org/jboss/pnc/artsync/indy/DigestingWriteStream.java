@@ -0,0 +1,166 @@
+package org.jboss.pnc.artsync.indy;
+
+import io.netty.buffer.ByteBuf;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.streams.WriteStream;
+import org.apache.commons.codec.binary.Hex;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * Counts and digests the bytes written into the delegate, so that a download is verified without reading it again.
+ *
+ * The digest is fed straight from the (direct) Netty buffers of the response, the content is not copied to heap.
+ * Only writes the delegate completed are counted, in the order they were written, so the size is always the length of
+ * the content that reached the delegate. Nothing after a failed write is counted. Writes come from the event-loop of
+ * the response while they complete on the context of the delegate, the state is guarded by the stream.
+ *
+ * A download resumed into a newly opened file {@link #continueInto(WriteStream) continues} with the same size and
+ * digest. Without a digest the stream only counts the bytes.
+ */
+public class DigestingWriteStream implements WriteStream<Buffer> {
+
+    private final WriteStream<Buffer> delegate;
+
+    // null if only counting
+    private final MessageDigest digest;
+
+    private long size = 0;
+
+    // written into the delegate but not completed yet, in the order of writing
+    private final Queue<Pending> pending = new ArrayDeque<>();
+
+    // a write failed, the content after it has a gap
+    private boolean failed = false;
+
+    private static final class Pending {
+        private final Buffer data;
+
+        private Boolean succeeded;
+
+        private Pending(Buffer data) {
+            this.data = data;
+        }
+    }
+
+    public DigestingWriteStream(WriteStream<Buffer> delegate, MessageDigest digest) {
+        this.delegate = delegate;
+        this.digest = digest;
+    }
+
+    /**
+     * Feeds the digest with the readable bytes of the buffer without copying them to a byte[].
+     */
+    public static void update(MessageDigest digest, Buffer buffer) {
+        ByteBuf byteBuf = buffer.getByteBuf();
+        for (ByteBuffer nio : byteBuf.nioBuffers()) {
+            digest.update(nio);
+        }
+    }
+
+    /**
+     * @return stream writing into the next delegate, continuing with the size and digest of this one
+     */
+    public synchronized DigestingWriteStream continueInto(WriteStream<Buffer> next) {
+        DigestingWriteStream continued = new DigestingWriteStream(next, digest);
+        continued.size = size;
+        return continued;
+    }
+
+    /**
+     * Feeds the digest with content that was written by another stream, it's not counted in the size.
+     */
+    public synchronized void digest(Buffer buffer) {
+        if (digest != null) {
+            update(digest, buffer);
+        }
+    }
+
+    /**
+     * @return bytes the delegate completed writing, the prefix of the content without gaps
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Completes the digest, has to be called once all bytes were written.
+     */
+    public synchronized String getHexDigest() {
+        return Hex.encodeHexString(digest.digest());
+    }
+
+    @Override
+    public Future<Void> write(Buffer data) {
+        Pending write = enqueue(data);
+        return delegate.write(data).andThen(result -> completed(write, result.succeeded()));
+    }
+
+    @Override
+    public void write(Buffer data, Handler<AsyncResult<Void>> handler) {
+        Pending write = enqueue(data);
+        delegate.write(data, result -> {
+            completed(write, result.succeeded());
+            if (handler != null) {
+                handler.handle(result);
+            }
+        });
+    }
+
+    private synchronized Pending enqueue(Buffer data) {
+        Pending write = new Pending(data);
+        pending.add(write);
+        return write;
+    }
+
+    /**
+     * Counts the writes completed without a gap before them, a later write may complete before an earlier one.
+     */
+    private synchronized void completed(Pending write, boolean succeeded) {
+        write.succeeded = succeeded;
+        while (!pending.isEmpty() && pending.peek().succeeded != null) {
+            Pending head = pending.poll();
+            if (!head.succeeded) {
+                failed = true;
+            }
+            if (!failed) {
+                size += head.data.length();
+                digest(head.data);
+            }
+        }
+    }
+
+    @Override
+    public void end(Handler<AsyncResult<Void>> handler) {
+        delegate.end(handler);
+    }
+
+    @Override
+    public DigestingWriteStream exceptionHandler(Handler<Throwable> handler) {
+        delegate.exceptionHandler(handler);
+        return this;
+    }
+
+    @Override
+    public DigestingWriteStream setWriteQueueMaxSize(int maxSize) {
+        delegate.setWriteQueueMaxSize(maxSize);
+        return this;
+    }
+
+    @Override
+    public boolean writeQueueFull() {
+        return delegate.writeQueueFull();
+    }
+
+    @Override
+    public DigestingWriteStream drainHandler(Handler<Void> handler) {
+        delegate.drainHandler(handler);
+        return this;
+    }
+}
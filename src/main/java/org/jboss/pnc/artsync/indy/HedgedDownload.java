@@ -0,0 +1,185 @@
+package org.jboss.pnc.artsync.indy;
+
+import io.vertx.core.file.CopyOptions;
+import io.vertx.core.file.FileSystem;
+import lombok.extern.slf4j.Slf4j;
+import org.jboss.pnc.artsync.concurrency.ByteAdmissionController;
+import org.jboss.pnc.artsync.pnc.Result;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Download from Indy raced by the same download from the origin URL once Indy takes longer than the hedge delay.
+ *
+ * The first download that succeeds (with the right size and SHA-256) wins, the other one is cancelled. Both download
+ * into their own temporary file and only the winner is moved to the destination, so a loser still finishing its writes
+ * never touches the result. As without hedging, the origin URL is tried right away if Indy doesn't have the content,
+ * and the error of Indy is reported if neither succeeds.
+ *
+ * The second copy takes disk space the version didn't reserve. The hedge only starts if the disk budget admits it
+ * right away, and the bytes are released once the extra file is deleted.
+ */
+@Slf4j
+class HedgedDownload {
+
+    private final FileSystem fs;
+
+    private final ByteAdmissionController diskBudget;
+
+    private final FileSize destination;
+
+    private final FileSize primaryFile;
+
+    private final FileSize hedgeFile;
+
+    // starts a download of the URL into the file
+    private final Function<FileSize, CompletableFuture<Result<String>>> primaryDownload;
+
+    private final Function<FileSize, CompletableFuture<Result<String>>> hedgeDownload;
+
+    private final CompletableFuture<Result<String>> result = new CompletableFuture<>();
+
+    private CompletableFuture<Result<String>> primary;
+
+    private CompletableFuture<Result<String>> hedge;
+
+    private Result<String> primaryResult;
+
+    private Result<String> hedgeResult;
+
+    private ScheduledFuture<?> timer;
+
+    private boolean decided = false;
+
+    // the second copy got its bytes from the disk budget
+    private boolean reserved = false;
+
+    HedgedDownload(FileSystem fs,
+                   ByteAdmissionController diskBudget,
+                   FileSize destination,
+                   Function<FileSize, CompletableFuture<Result<String>>> primaryDownload,
+                   Function<FileSize, CompletableFuture<Result<String>>> hedgeDownload) {
+        this.fs = fs;
+        this.diskBudget = diskBudget;
+        this.destination = destination;
+        this.primaryFile = sibling(destination, ".indy");
+        this.hedgeFile = sibling(destination, ".origin");
+        this.primaryDownload = primaryDownload;
+        this.hedgeDownload = hedgeDownload;
+    }
+
+    CompletableFuture<Result<String>> start(ScheduledExecutorService scheduler, Duration delay) {
+        synchronized (this) {
+            primary = primaryDownload.apply(primaryFile);
+            timer = scheduler.schedule(() -> startHedge(false), delay.toNanos(), TimeUnit.NANOSECONDS);
+        }
+        primary.whenComplete((r, t) -> {
+            synchronized (this) {
+                primaryResult = r != null ? r : new Result.Error.UncaughtException(t);
+            }
+            decide();
+        });
+        return result;
+    }
+
+    /**
+     * @param fallback Indy has no content, the origin URL replaces the download instead of racing it
+     */
+    private void startHedge(boolean fallback) {
+        CompletableFuture<Result<String>> started;
+        synchronized (this) {
+            if (hedge != null || decided) {
+                return;
+            }
+            if (!fallback) {
+                if (!diskBudget.tryReserve(destination.size())) {
+                    log.debug("Indy: Download of {} is slow but the disk budget has no room for a hedge", destination.file());
+                    return;
+                }
+                reserved = true;
+            }
+            log.info("Indy: Download of {} is slow or missing, hedging with OriginUrl", destination.file());
+            hedge = hedgeDownload.apply(hedgeFile);
+            started = hedge;
+        }
+        started.whenComplete((r, t) -> {
+            synchronized (this) {
+                hedgeResult = r != null ? r : new Result.Error.UncaughtException(t);
+            }
+            decide();
+        });
+    }
+
+    private void decide() {
+        boolean fallback = false;
+        synchronized (this) {
+            if (decided) {
+                return;
+            }
+            if (primaryResult instanceof Result.Success<String>) {
+                win(primaryFile, primaryResult, hedge, hedgeFile);
+            } else if (hedgeResult instanceof Result.Success<String>) {
+                win(hedgeFile, hedgeResult, primary, primaryFile);
+            } else if (primaryResult != null && hedge == null) {
+                timer.cancel(false);
+                if (primaryResult instanceof Result.Error.ClientError.NotFound) {
+                    // no content in Indy, the origin URL is the only option
+                    fallback = true;
+                } else {
+                    decided = true;
+                    result.complete(primaryResult);
+                }
+            } else if (primaryResult != null && hedgeResult != null) {
+                decided = true;
+                fs.delete(hedgeFile.file().getPath()).onComplete(ign -> releaseHedge());
+                result.complete(primaryResult instanceof Result.Error.ClientError.NotFound ? hedgeResult : primaryResult);
+            }
+            // otherwise the running download decides
+        }
+        if (fallback) {
+            startHedge(true);
+        }
+    }
+
+    // has to be called while holding the lock
+    private void win(FileSize winnerFile, Result<String> winner, CompletableFuture<Result<String>> loser, FileSize loserFile) {
+        decided = true;
+        timer.cancel(false);
+        if (loser != null) {
+            loser.cancel(true);
+        }
+        fs.move(winnerFile.file().getPath(), destination.file().getPath(), new CopyOptions().setReplaceExisting(true))
+            .onComplete(moved -> {
+                // the loser may still be writing, its file is removed at the latest with the version directory
+                fs.delete(loserFile.file().getPath()).onComplete(ign -> releaseHedge());
+                if (moved.succeeded()) {
+                    result.complete(winner);
+                } else {
+                    result.complete(new Result.Error.UncaughtException(moved.cause()));
+                }
+            });
+    }
+
+    /**
+     * Releases the bytes of the second copy, once one of the files is gone only one copy stays on disk.
+     */
+    private void releaseHedge() {
+        synchronized (this) {
+            if (!reserved) {
+                return;
+            }
+            reserved = false;
+        }
+        diskBudget.release(destination.size());
+    }
+
+    private static FileSize sibling(FileSize file, String suffix) {
+        return new FileSize(new File(file.file().getPath() + suffix), file.size(), file.sha256());
+    }
+}
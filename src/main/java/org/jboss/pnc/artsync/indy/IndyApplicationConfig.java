@@ -1,14 +1,70 @@
 package org.jboss.pnc.artsync.indy;
 
+import io.quarkus.runtime.configuration.MemorySize;
 import io.smallrye.config.ConfigMapping;
+import io.smallrye.config.WithDefault;
 import io.smallrye.config.WithName;
 import org.jboss.pnc.artsync.config.ServiceApplicationConfig;
 
 import java.net.URI;
+import java.time.Duration;
 
 @ConfigMapping(prefix = "indy")
 public interface IndyApplicationConfig extends ServiceApplicationConfig {
 
     @WithName("endpoint-uri")
     URI indyURI();
+
+    /**
+     * Files at least this big are downloaded as parallel byte ranges into a preallocated file (if Indy accepts ranges).
+     * @return minimal size of a segmented download
+     */
+    @WithDefault("512M")
+    MemorySize segmentedDownloadThreshold();
+
+    /**
+     * @return number of byte ranges of a segmented download (each takes a request permit)
+     */
+    @WithDefault("4")
+    int downloadSegments();
+
+    /**
+     * An interrupted download continues from the last written byte (HTTP Range) instead of starting over.
+     * @return how many times a single download (or its segment) is resumed before it fails
+     */
+    @WithDefault("3")
+    int downloadResumes();
+
+    HedgeConfig hedge();
+
+    interface HedgeConfig {
+        /**
+         * A download from Indy which takes longer than usual is raced by the same download from the origin URL of the
+         * artifact. The first one with the right SHA-256 is kept, the other is cancelled.
+         * @return whether slow Indy downloads are hedged
+         */
+        @WithDefault("false")
+        boolean enabled();
+
+        /**
+         * Durations are measured per MiB (files under 1 MiB count as 1 MiB), the delay of a download is the
+         * percentile scaled by its size.
+         * @return percentile of recent Indy download durations after which the download is hedged
+         */
+        @WithDefault("0.95")
+        double percentile();
+
+        /**
+         * @return shortest delay before hedging, whatever the percentile is
+         */
+        @WithDefault("PT2S")
+        Duration minDelay();
+
+        /**
+         * Downloads aren't hedged until this many Indy downloads were measured.
+         * @return number of recent Indy downloads the percentile is computed from
+         */
+        @WithDefault("200")
+        int window();
+    }
 }
@@ -1,26 +1,24 @@
 package org.jboss.pnc.artsync.indy;
 
+import io.micrometer.core.instrument.MeterRegistry;
 import io.quarkus.virtual.threads.VirtualThreads;
-import io.vertx.core.Future;
-import io.vertx.core.Promise;
 import io.vertx.core.Vertx;
 import io.vertx.core.buffer.Buffer;
-import io.vertx.core.file.AsyncFile;
 import io.vertx.core.file.FileSystem;
-import io.vertx.core.file.OpenOptions;
-import io.vertx.ext.web.client.HttpResponse;
-import io.vertx.ext.web.client.WebClient;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.RequestOptions;
 import io.vertx.ext.web.client.WebClientOptions;
-import io.vertx.ext.web.codec.BodyCodec;
 import jakarta.annotation.Nonnull;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.ws.rs.ProcessingException;
 import jakarta.ws.rs.WebApplicationException;
 import jakarta.ws.rs.core.Response;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.codec.binary.Hex;
 import org.commonjava.indy.folo.dto.TrackedContentDTO;
 import org.eclipse.microprofile.rest.client.inject.RestClient;
+import org.jboss.pnc.artsync.BackendCircuitBreakers;
 import org.jboss.pnc.artsync.concurrency.ConstrainedExecutor;
 import org.jboss.pnc.artsync.pnc.Result;
 import org.jboss.pnc.artsync.pnc.Result.Error.ServerError;
@@ -30,12 +28,11 @@ import javax.net.ssl.SSLException;
 import java.net.URI;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
-import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.atomic.AtomicLong;
 
 import static org.jboss.pnc.artsync.pnc.Result.Error.ClientError.*;
 
@@ -43,11 +40,9 @@ import static org.jboss.pnc.artsync.pnc.Result.Error.ClientError.*;
 @Slf4j
 public class IndyClient {
 
-    public static final int READ_BUFFER = 1048576; // 1MB buffer for a single file
-
     private final IndyRestClient client;
 
-    private final WebClient webClient;
+    private final HttpClient httpClient;
 
     private final FileSystem fs;
 
@@ -60,13 +55,16 @@ public class IndyClient {
                       IndyApplicationConfig config,
                       @VirtualThreads ExecutorService delegate,
                       ScheduledExecutorService scheduler,
-                      WebClientOptions httpConfig) {
+                      WebClientOptions httpConfig,
+                      MeterRegistry registry,
+                      BackendCircuitBreakers breakers) {
         this.client = client;
-        this.webClient = WebClient.create(vertx, httpConfig);
+        this.httpClient = vertx.createHttpClient(httpConfig);
         this.fs = vertx.fileSystem();
         this.config = config;
         // TODO implement retryOn
-        this.executor = new ConstrainedExecutor(delegate, scheduler, config, (ign) -> false, null, this::retryOn);
+        this.executor = new ConstrainedExecutor(delegate, scheduler, config, registry, (ign) -> false, null, this::retryOn, null);
+        breakers.register(executor.getCircuitBreaker(), config.faultTolerance().critical());
     }
 
     private boolean retryOn(Object response) {
@@ -104,31 +102,63 @@ public class IndyClient {
 
         URI uriuri = overrideIndyUrl ? config.indyURI().resolve(asserUri.getRawPath()) : asserUri;
 
-        OpenOptions brandNew = new OpenOptions().setCreate(true).setTruncateExisting(true);
+        // big files are fetched as parallel ranges, each holding a permit
+        int segments = expectedSize >= config.segmentedDownloadThreshold().asLongValue() ? Math.max(1, config.downloadSegments()) : 1;
+
+        // size and digest are computed while writing, the file is never read back. Retries continue where the previous
+        // attempt stopped
+        RangedDownload download = new RangedDownload(httpClient, fs, uriuri, filePath, expectedSize, segments,
+            config.downloadResumes(), (status, body) -> statusResult(status, body, uri));
 
-        return executor.supplyAsync(() -> fs.open(filePath, brandNew)
-                .compose(openFile -> fetchContentIntoOpenFile(openFile, uriuri))
+        CompletableFuture<Result<String>> downloaded = executor.supplyAsync(segments, () -> download.run()
                 .toCompletionStage()
-                .handle((r,e) -> vertxResponseHandler(r, uri, e))
-                .thenCompose((abc) -> verifySizeAndDigest(abc, filePath, expectedSize, expectedSha256))
+                .handle((r, e) -> r != null ? r : IndyClient.<Void>handleError(e))
+                .thenApply((abc) -> verifySizeAndDigest(abc, filePath, expectedSize, expectedSha256, download))
                 .thenApply(response -> convertResult(uri, response))
                 .toCompletableFuture().join()
         );
+        // cancelling the returned future aborts the transfer (f.e. a hedged download that lost)
+        downloaded.whenComplete((ign, t) -> {
+            if (t instanceof CancellationException) {
+                download.cancel();
+            }
+        });
+        return downloaded;
     }
 
-    private CompletionStage<Result<Void>> verifySizeAndDigest(Result<Void> response, String filePath, long expectedSize, String expectedSha256) {
-        MessageDigest digest = getDigest("SHA-256");
-        AtomicLong atomicSize = new AtomicLong();
+    /**
+     * Opens the content of a file for streaming instead of downloading it. The successful response is returned paused,
+     * the caller has to consume it (and verify its size and digest) or reset its request.
+     */
+    public CompletableFuture<Result<HttpClientResponse>> openStream(String uri, boolean overrideIndyUrl) {
+        URI asserUri = URI.create(uri);
 
-        Promise<Void> digestPromise = calculateSizeAndDigest(filePath, atomicSize, digest);
+        URI uriuri = overrideIndyUrl ? config.indyURI().resolve(asserUri.getRawPath()) : asserUri;
 
-        return digestPromise.future().map((ign) -> verifySizeAndDigest(response, filePath, expectedSize, expectedSha256, atomicSize, digest)).toCompletionStage();
+        RequestOptions options = new RequestOptions()
+            .setMethod(HttpMethod.GET)
+            .setHost(uriuri.getHost())
+            .setPort(getPort(uriuri))
+            .setURI(uriuri.getRawPath())
+            .setSsl(uriuri.getScheme().equals("https"));
+
+        return executor.wrapAsync(1, () -> httpClient.request(options)
+                .compose(request -> request.send())
+                // before the event-loop delivers any content
+                .map(HttpClientResponse::pause)
+                .toCompletionStage()
+                .handle((r, e) -> streamResponseHandler(r, uri, e))
+        );
     }
 
-    private static Result<Void> verifySizeAndDigest(Result<Void> response, String filePath, long expectedSize, String expectedSha256, AtomicLong atomicSize, MessageDigest digest) {
+    private static Result<Void> verifySizeAndDigest(Result<Void> response, String filePath, long expectedSize, String expectedSha256, RangedDownload download) {
+        if (!(response instanceof Result.Success<Void>)) {
+            // partially downloaded, kept for a retry
+            return response;
+        }
         Result<Void> result = response;
-        long actualSize = atomicSize.get();
-        if (actualSize != expectedSize && !(response instanceof NotFound)) {
+        long actualSize = download.getSize();
+        if (actualSize != expectedSize) {
             log.error("Indy: File {} has size {} when expected {}", filePath, actualSize, expectedSize);
 
             if (response instanceof Result.Success<Void>) {
@@ -136,30 +166,22 @@ public class IndyClient {
             }
         }
 
-        String sha256 = Hex.encodeHexString(digest.digest());
-        if (!sha256.equals(expectedSha256) && !(response instanceof NotFound)) {
+        String sha256 = download.getHexDigest();
+        if (!sha256.equals(expectedSha256)) {
             log.error("Indy: File {} has sha256 '{}' when expected '{}'", filePath, sha256, expectedSha256);
 
             if (response instanceof Result.Success<Void>) {
                 result = new ServerError.ContentCorrupted(filePath);
             }
         }
+        if (result instanceof ServerError.ContentCorrupted) {
+            // retry starts over
+            download.restart();
+        }
         return result;
     }
 
-    private Promise<Void> calculateSizeAndDigest(String filePath, AtomicLong atomicSize, MessageDigest digest) {
-        Promise<Void> digestPromise = Promise.promise();
-        fs.open(filePath, new OpenOptions().setRead(true))
-                .andThen((res) -> res.result().setReadBufferSize(READ_BUFFER)
-                        .handler((buffer) -> updateDigestAndSize(buffer, atomicSize, digest))
-                        .exceptionHandler(digestPromise::tryFail)
-                        .endHandler(digestPromise::tryComplete)
-                        .resume())
-                .onFailure(digestPromise::tryFail);
-        return digestPromise;
-    }
-
-    private static MessageDigest getDigest(String algorithm) {
+    static MessageDigest getDigest(String algorithm) {
         try {
             return MessageDigest.getInstance(algorithm);
         } catch (NoSuchAlgorithmException e) {
@@ -167,21 +189,6 @@ public class IndyClient {
         }
     }
 
-    private Future<HttpResponse<Void>> fetchContentIntoOpenFile(AsyncFile openFile, URI uriuri) {
-        return webClient.get(getPort(uriuri),
-                        uriuri.getHost(),
-                        uriuri.getRawPath())
-                .as(BodyCodec.pipe(openFile))
-                .ssl(uriuri.getScheme().equals("https"))
-                .send();
-    }
-
-    private static void updateDigestAndSize(Buffer buffer, AtomicLong atomicSize, MessageDigest digest) {
-        atomicSize.addAndGet(buffer.length());
-        log.trace("READ {} bytes", buffer.length());
-        digest.update(buffer.getBytes());
-    }
-
     private <T, F> Result<T> convertResult(T uri, Result<F> response) {
         return switch (response) {
             case Result.Success<F> ign -> new Success<>(uri);
@@ -189,7 +196,7 @@ public class IndyClient {
         };
     }
 
-    private int getPort(URI uri) {
+    static int getPort(URI uri) {
         return switch (Integer.valueOf(uri.getPort())) {
             case Integer i when i.equals(-1) && uri.getScheme().equals("https") -> 443;
             case Integer i when i.equals(-1) && uri.getScheme().equals("http") -> 80;
@@ -205,18 +212,32 @@ public class IndyClient {
         }
     }
 
-    private <T> Result<T> vertxResponseHandler(HttpResponse<T> response, String initialUri, Throwable error) {
-        if (response != null) {
-            return switch (Integer.valueOf(response.statusCode())) {
-                case Integer i when i >= 500 -> new ServerError.SystemError("Err " + i + " body: " + response.bodyAsString());
-                case Integer i when i.equals(404) -> new NotFound(initialUri);
-                case Integer i when i.equals(409) -> new AuthorizationError();
-                case Integer i when i >= 400 -> new ServerError.UnknownError(Response.status(i).entity(response.body()).build(), "Unmatched Indy-Download Status");
-                default -> new Success<>(response.body());
-            };
-        } else {
+    private static Result<Void> statusResult(int status, Buffer body, String initialUri) {
+        return switch (Integer.valueOf(status)) {
+            case Integer i when i >= 500 -> new ServerError.SystemError("Err " + i + " body: " + body);
+            case Integer i when i.equals(404) -> new NotFound(initialUri);
+            case Integer i when i.equals(409) -> new AuthorizationError();
+            case Integer i when i >= 400 -> new ServerError.UnknownError(Response.status(i).entity(body).build(), "Unmatched Indy-Download Status");
+            default -> new Success<>(null);
+        };
+    }
+
+    private Result<HttpClientResponse> streamResponseHandler(HttpClientResponse response, String initialUri, Throwable error) {
+        if (response == null) {
             return handleError(error);
         }
+        Result<HttpClientResponse> result = switch (Integer.valueOf(response.statusCode())) {
+            case Integer i when i >= 500 -> new ServerError.SystemError("Err " + i + " " + response.statusMessage());
+            case Integer i when i.equals(404) -> new NotFound(initialUri);
+            case Integer i when i.equals(409) -> new AuthorizationError();
+            case Integer i when i >= 400 -> new ServerError.UnknownError(Response.status(i).build(), "Unmatched Indy-Download Status");
+            default -> new Success<>(response);
+        };
+        if (result instanceof Result.Error) {
+            // nobody is going to read the body
+            response.request().reset();
+        }
+        return result;
     }
 
     private static <T> Result<T> handleError(Throwable error) {
@@ -1,12 +1,18 @@
 package org.jboss.pnc.artsync.indy;
 
+import io.vertx.core.Future;
 import io.vertx.core.Vertx;
 import io.vertx.core.file.FileSystem;
+import io.vertx.core.http.HttpClientResponse;
 import jakarta.enterprise.context.ApplicationScoped;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.commonjava.indy.folo.dto.TrackedContentDTO;
 import org.commonjava.indy.folo.dto.TrackedContentEntryDTO;
 import org.jboss.pnc.artsync.config.ArtifactConfig;
+import org.jboss.pnc.artsync.concurrency.ByteAdmissionController;
+import org.jboss.pnc.artsync.concurrency.LatencyWindow;
 import org.jboss.pnc.artsync.config.ArtsyncConfig;
+import org.jboss.pnc.artsync.indy.IndyApplicationConfig.HedgeConfig;
 import org.jboss.pnc.artsync.model.Asset;
 import org.jboss.pnc.artsync.model.NpmNVAssets;
 import org.jboss.pnc.artsync.model.UploadResult;
@@ -20,32 +26,64 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.net.URI;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
 
 @ApplicationScoped
 public class IndyService {
 
+    // Indy latencies are per MiB, smaller files count as one (the latency of the request dominates)
+    private static final long LATENCY_UNIT = 1024 * 1024;
+
     private final IndyClient client;
 
     private final ArtifactConfig config;
 
     private final FileSystem fs;
 
+    private final ContentStore contentStore;
+
+    private final HedgeConfig hedge;
+
+    // durations of Indy downloads per LATENCY_UNIT
+    private final LatencyWindow indyLatencies;
+
+    private final ByteAdmissionController diskBudget;
+
+    private final ScheduledExecutorService scheduler;
+
+    // npm tarballs are published from the download dir instead of by the npm CLI from Indy
+    private final boolean nativeNpmPublish;
+
     private static final Logger LOG = LoggerFactory.getLogger(IndyService.class);
 
     public IndyService(IndyClient client,
                        ArtsyncConfig config,
-                       Vertx vertx) {
+                       Vertx vertx,
+                       ContentStore contentStore,
+                       IndyApplicationConfig indyConfig,
+                       ScheduledExecutorService scheduler,
+                       ByteAdmissionController diskBudget,
+                       @ConfigProperty(name = "aws.native-npm-publish") boolean nativeNpmPublish) {
         this.client = client;
+        this.nativeNpmPublish = nativeNpmPublish;
         this.config = config.artifactConfigs();
         this.fs = vertx.fileSystem();
+        this.contentStore = contentStore;
+        this.hedge = indyConfig.hedge();
+        this.indyLatencies = new LatencyWindow(hedge.window());
+        this.scheduler = scheduler;
+        this.diskBudget = diskBudget;
     }
 
     public ResultAgg<TrackedContentEntryDTO> getTrackingReport(String buildId) {
@@ -88,19 +126,10 @@ public class IndyService {
         for (var entry : uriPathMap.entrySet()) {
             futures.add(
                 fs.mkdirs(entry.getValue().file().getParent()).toCompletionStage()
-                        .thenCompose(destination -> downloadFileFromURL(overrideIndyUrl, entry.getKey().primary(), entry.getValue()))
-                        .thenCompose((result) -> switch (result) {
-
-                            // If there's no content in Indy, try secondary url (originUrl for Artifacts)
-                            case Result.Error.ClientError.NotFound(String uri) when entry.getKey().secondary() != null
-                                    -> {
-                                LOG.info("Download of {} returned no result, trying out OriginUrl", uri);
-
-                                yield downloadFileFromURL(overrideIndyUrl, entry.getKey().secondary(), entry.getValue());
-                            }
-                            // All good
-                            default -> CompletableFuture.completedFuture(result);
-                        })
+                        .thenCompose(destination -> contentStore.fetch(entry.getValue()))
+                        .thenCompose(hit -> hit
+                            ? CompletableFuture.completedFuture(new Success<>(entry.getKey().primary()))
+                            : downloadAndStore(overrideIndyUrl, entry.getKey(), entry.getValue()))
                         .thenApply(r -> returnFile(r, entry.getValue().file()))
                         .whenComplete((r, t) -> handleResult(agg, r, t))
                         .toCompletableFuture());
@@ -109,6 +138,89 @@ public class IndyService {
         return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).thenApply(ign -> agg);
     }
 
+    /**
+     * Opens the content of an asset for streaming, trying its origin URL if Indy has no content.
+     *
+     * @return paused response, see {@link IndyClient#openStream(String, boolean)}
+     */
+    public CompletableFuture<Result<HttpClientResponse>> openStream(Asset asset, boolean overrideIndyUrl) {
+        return client.openStream(asset.getDownloadURI().toString(), overrideIndyUrl)
+            .thenCompose((result) -> switch (result) {
+
+                // If there's no content in Indy, try secondary url (originUrl for Artifacts)
+                case Result.Error.ClientError.NotFound(String uri) when asset.getOriginURI() != null -> {
+                    LOG.info("Stream of {} returned no result, trying out OriginUrl", uri);
+
+                    yield client.openStream(asset.getOriginURI().toString(), overrideIndyUrl);
+                }
+                // All good
+                default -> CompletableFuture.completedFuture(result);
+            });
+    }
+
+    private CompletableFuture<Result<String>> downloadAndStore(boolean overrideIndyUrl, Urls urls, FileSize fileMeta) {
+        // a leftover of a previous attempt can be a link into the store, truncating it would corrupt the store
+        return fs.delete(fileMeta.file().getAbsolutePath()).recover(ign -> Future.succeededFuture())
+            .toCompletionStage()
+            .thenCompose(ign -> download(overrideIndyUrl, urls, fileMeta))
+            .thenCompose(result -> result instanceof Success
+                // size and digest were verified by the download
+                ? contentStore.store(fileMeta).thenApply(ign -> result)
+                : CompletableFuture.completedFuture(result))
+            .toCompletableFuture();
+    }
+
+    private CompletableFuture<Result<String>> download(boolean overrideIndyUrl, Urls urls, FileSize fileMeta) {
+        Optional<Duration> hedgeDelay = hedge.enabled() && urls.secondary() != null
+            ? indyLatencies.percentile(hedge.percentile())
+                .map(perUnit -> Duration.ofNanos((long) (perUnit.toNanos() * latencyUnits(fileMeta.size()))))
+                .map(latency -> latency.compareTo(hedge.minDelay()) > 0 ? latency : hedge.minDelay())
+            : Optional.empty();
+
+        if (hedgeDelay.isPresent()) {
+            return new HedgedDownload(fs, diskBudget, fileMeta,
+                    file -> timedIndyDownload(overrideIndyUrl, urls.primary(), file),
+                    file -> downloadFileFromURL(overrideIndyUrl, urls.secondary(), file))
+                .start(scheduler, hedgeDelay.get());
+        }
+
+        return timedIndyDownload(overrideIndyUrl, urls.primary(), fileMeta)
+            .thenCompose((result) -> switch (result) {
+
+                // If there's no content in Indy, try secondary url (originUrl for Artifacts)
+                case Result.Error.ClientError.NotFound(String uri) when urls.secondary() != null
+                        -> {
+                    LOG.info("Download of {} returned no result, trying out OriginUrl", uri);
+
+                    yield downloadFileFromURL(overrideIndyUrl, urls.secondary(), fileMeta);
+                }
+                // All good
+                default -> CompletableFuture.completedFuture(result);
+            });
+    }
+
+    /**
+     * Downloads from Indy and records how long downloads take per MiB, for the hedge delay. A download cancelled by a
+     * winning hedge is recorded with the time it took until then, it would have taken at least that long. Leaving it
+     * out would keep only the fast downloads in the window and the hedge delay would keep shrinking.
+     */
+    private CompletableFuture<Result<String>> timedIndyDownload(boolean overrideIndyUrl, String url, FileSize fileMeta) {
+        long start = System.nanoTime();
+        CompletableFuture<Result<String>> download = downloadFileFromURL(overrideIndyUrl, url, fileMeta);
+        download.whenComplete((result, t) -> {
+            if (result instanceof Success || t instanceof CancellationException) {
+                long elapsed = System.nanoTime() - start;
+                indyLatencies.record(Duration.ofNanos((long) (elapsed / latencyUnits(fileMeta.size()))));
+            }
+        });
+        // the hedge has to be able to cancel the download itself
+        return download;
+    }
+
+    private static double latencyUnits(long size) {
+        return (double) Math.max(size, LATENCY_UNIT) / LATENCY_UNIT;
+    }
+
     private CompletableFuture<Result<String>> downloadFileFromURL(boolean overrideIndyUrl, String url, FileSize fileMeta) {
         return client.downloadFile(url, fileMeta.file().getPath(), fileMeta.size(), fileMeta.sha256(), overrideIndyUrl);
     }
@@ -116,9 +228,9 @@ public class IndyService {
     public <T extends Asset> CompletableFuture<ResultAgg<File>> downloadToDirectory(VersionAssets<T> projectVersion,
                                                       Path versionRootDir,
                                                       boolean overrideIndyUrl) {
-        if (projectVersion instanceof NpmNVAssets ass) {
-            // NPM doesn't need pre-downloaded artifacts, you can use Download URL in commands line and npm will do the
-            // rest
+        if (projectVersion instanceof NpmNVAssets ass && !nativeNpmPublish) {
+            // NPM CLI doesn't need pre-downloaded artifacts, you can use Download URL in commands line and npm will do
+            // the rest
             return CompletableFuture.completedFuture(new ResultAgg<>(List.of(), List.of()));
         }
 
@@ -0,0 +1,325 @@
+package org.jboss.pnc.artsync.indy;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.AsyncFile;
+import io.vertx.core.file.FileSystem;
+import io.vertx.core.file.OpenOptions;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.RequestOptions;
+import lombok.extern.slf4j.Slf4j;
+import org.jboss.pnc.artsync.pnc.Result;
+
+import java.net.URI;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+
+/**
+ * Download of a single file from Indy which survives interruptions.
+ *
+ * An interrupted transfer is resumed from the last written byte with an HTTP Range request, both within a single
+ * {@link #run()} (up to the configured number of resumes) and by the following run, f.e. a retry of a server error.
+ * A big file is split into byte ranges fetched in parallel into a preallocated file, if Indy accepts ranges.
+ *
+ * The first range (the whole file if not split) is digested while written. Following ranges are digested from disk in
+ * order as soon as all ranges before them are, so the SHA-256 stays correct across segments.
+ *
+ * Runs of the same download must not overlap. A {@link #cancel() cancelled} download aborts its transfers and
+ * doesn't start any other.
+ */
+@Slf4j
+class RangedDownload {
+
+    private static final int READ_BUFFER = 1048576; // 1MB buffer for digesting segments from disk
+
+    private final HttpClient httpClient;
+
+    private final FileSystem fs;
+
+    private final URI uri;
+
+    private final String filePath;
+
+    private final long expectedSize;
+
+    private final int segmentCount;
+
+    private final int resumes;
+
+    // maps an unsuccessful status and its body
+    private final BiFunction<Integer, Buffer, Result<Void>> statusResult;
+
+    private List<Segment> segments;
+
+    private final Set<HttpClientRequest> active = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean cancelled = false;
+
+    private static final class Segment {
+        private final long start;
+
+        // exclusive, -1 for the rest of the file
+        private final long end;
+
+        private DigestingWriteStream written;
+
+        private Segment(long start, long end, MessageDigest digest) {
+            this.start = start;
+            this.end = end;
+            this.written = new DigestingWriteStream(null, digest);
+        }
+
+        private long offset() {
+            return start + written.getSize();
+        }
+
+        private boolean isComplete() {
+            return end != -1 && offset() >= end;
+        }
+    }
+
+    /**
+     * Thrown when Indy stops honoring ranges, the download has to start over.
+     */
+    private static class RangeIgnoredException extends RuntimeException {
+        private RangeIgnoredException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * @param segmentCount number of parallel ranges, 1 to download sequentially
+     */
+    RangedDownload(HttpClient httpClient,
+                   FileSystem fs,
+                   URI uri,
+                   String filePath,
+                   long expectedSize,
+                   int segmentCount,
+                   int resumes,
+                   BiFunction<Integer, Buffer, Result<Void>> statusResult) {
+        this.httpClient = httpClient;
+        this.fs = fs;
+        this.uri = uri;
+        this.filePath = filePath;
+        this.expectedSize = expectedSize;
+        this.segmentCount = segmentCount;
+        this.resumes = resumes;
+        this.statusResult = statusResult;
+    }
+
+    /**
+     * Downloads what is missing. On success, the file is complete and digested.
+     *
+     * @return failed future on transport errors left after the resumes
+     */
+    Future<Result<Void>> run() {
+        if (cancelled) {
+            return Future.failedFuture(new CancellationException("Download of " + filePath + " was cancelled"));
+        }
+        Future<Void> prepared = segments != null ? Future.succeededFuture() : prepare();
+
+        return prepared.compose(ign -> {
+            List<Future<Result<Void>>> fetches = new ArrayList<>();
+            for (Segment segment : segments) {
+                fetches.add(fetch(segment, resumes));
+            }
+            return Future.join(fetches)
+                .transform(ign2 -> {
+                    for (Future<Result<Void>> fetch : fetches) {
+                        if (fetch.failed()) {
+                            return Future.failedFuture(fetch.cause());
+                        }
+                        if (fetch.result() instanceof Result.Error) {
+                            return Future.succeededFuture(fetch.result());
+                        }
+                    }
+                    return digestFollowingSegments().map(success());
+                });
+        })
+        .recover(e -> {
+            if (e instanceof RangeIgnoredException) {
+                log.warn("Indy: {}, restarting download of {}", e.getMessage(), filePath);
+                restart();
+            }
+            return Future.failedFuture(e);
+        });
+    }
+
+    /**
+     * Aborts the transfers in progress, the file is left as it is.
+     */
+    void cancel() {
+        cancelled = true;
+        active.forEach(HttpClientRequest::reset);
+    }
+
+    /**
+     * Discards everything downloaded so far, f.e. when the content turned out to be corrupted.
+     */
+    void restart() {
+        segments = null;
+    }
+
+    long getSize() {
+        return segments == null ? 0 : segments.stream().mapToLong(segment -> segment.written.getSize()).sum();
+    }
+
+    /**
+     * Completes the digest, has to be called once the download succeeded.
+     */
+    String getHexDigest() {
+        return segments.getFirst().written.getHexDigest();
+    }
+
+    private Future<Void> prepare() {
+        MessageDigest digest = IndyClient.getDigest("SHA-256");
+        Future<Boolean> ranges = segmentCount > 1 ? acceptsRanges() : Future.succeededFuture(false);
+
+        return ranges.compose(segmented -> {
+            List<Segment> planned = new ArrayList<>();
+            if (segmented) {
+                long segmentSize = (expectedSize + segmentCount - 1) / segmentCount;
+                for (long start = 0; start < expectedSize; start += segmentSize) {
+                    planned.add(new Segment(start, Math.min(expectedSize, start + segmentSize), planned.isEmpty() ? digest : null));
+                }
+            } else {
+                planned.add(new Segment(0, -1, digest));
+            }
+
+            // segments write at their offsets, so the file has its final size up front
+            return fs.open(filePath, new OpenOptions().setWrite(true).setCreate(true).setTruncateExisting(true))
+                .compose(file -> file.close())
+                .compose(ign -> segmented ? fs.truncate(filePath, expectedSize) : Future.succeededFuture())
+                .onSuccess(ign -> segments = planned);
+        });
+    }
+
+    private Future<Boolean> acceptsRanges() {
+        return httpClient.request(requestOptions(HttpMethod.HEAD))
+            .compose(HttpClientRequest::send)
+            .map(response -> response.statusCode() == 200 && "bytes".equals(response.getHeader(HttpHeaders.ACCEPT_RANGES)))
+            .otherwise(false);
+    }
+
+    private Future<Result<Void>> fetch(Segment segment, int resumesLeft) {
+        if (segment.isComplete()) {
+            return Future.succeededFuture(success());
+        }
+        long offsetBefore = segment.offset();
+
+        return fetchOnce(segment).recover(e -> {
+            if (resumesLeft > 0 && !cancelled && !(e instanceof RangeIgnoredException)) {
+                log.warn("Indy: Download of {} interrupted at byte {} ({}), resuming", filePath, segment.offset(), e.getMessage());
+                // only attempts without any progress use up the resumes
+                return fetch(segment, segment.offset() > offsetBefore ? resumesLeft : resumesLeft - 1);
+            }
+            return Future.failedFuture(e);
+        });
+    }
+
+    private Future<Result<Void>> fetchOnce(Segment segment) {
+        long offset = segment.offset();
+        RequestOptions options = requestOptions(HttpMethod.GET);
+        boolean ranged = offset > 0 || segment.end != -1;
+        if (ranged) {
+            options.putHeader("Range", "bytes=" + offset + "-" + (segment.end == -1 ? "" : segment.end - 1));
+        }
+
+        return fs.open(filePath, new OpenOptions().setWrite(true).setCreate(true).setTruncateExisting(false))
+            .compose(file -> httpClient.request(options)
+                .compose(request -> {
+                    active.add(request);
+                    if (cancelled) {
+                        request.reset();
+                    }
+                    return request.send()
+                        .compose(response -> transfer(response, segment, file, offset, ranged))
+                        // the transfer is over, nothing to abort
+                        .onComplete(ign -> active.remove(request));
+                })
+                // waits for the pending writes, the size counts all that succeeded afterwards. They're not synced
+                // to the disk, the next open reads them from the page cache and the offsets don't outlive the process
+                .eventually(ign -> file.close()));
+    }
+
+    private Future<Result<Void>> transfer(HttpClientResponse response, Segment segment, AsyncFile file, long offset, boolean ranged) {
+        int status = response.statusCode();
+        boolean sequential = segment.end == -1;
+        if (status == 416 && sequential && offset > 0) {
+            // everything was written before the interruption, the digest tells if it's right
+            response.request().reset();
+            return Future.succeededFuture(success());
+        }
+        if (status != 200 && status != 206) {
+            return response.body().map(body -> statusResult.apply(status, body));
+        }
+
+        long writeFrom = offset;
+        if (ranged && status == 200) {
+            if (!sequential) {
+                response.request().reset();
+                return Future.failedFuture(new RangeIgnoredException("Range of " + uri + " ignored"));
+            }
+            // whole content again
+            log.warn("Indy: Range of {} ignored, downloading {} from the start", uri, filePath);
+            segment.written = new DigestingWriteStream(null, IndyClient.getDigest("SHA-256"));
+            writeFrom = 0;
+        }
+
+        file.setWritePos(writeFrom);
+        segment.written = segment.written.continueInto(file);
+        return pipe(response, segment).map(success());
+    }
+
+    private Future<Void> pipe(HttpClientResponse response, Segment segment) {
+        return response.pipe()
+            .endOnComplete(false)
+            .to(segment.written);
+    }
+
+    /**
+     * Feeds the digest of the first segment with the following segments in their order.
+     */
+    private Future<Void> digestFollowingSegments() {
+        DigestingWriteStream head = segments.getFirst().written;
+        Future<Void> digested = Future.succeededFuture();
+        for (Segment segment : segments.subList(1, segments.size())) {
+            digested = digested.compose(ign -> fs.open(filePath, new OpenOptions().setRead(true))
+                .compose(file -> {
+                    Promise<Void> done = Promise.promise();
+                    file.setReadPos(segment.start)
+                        .setReadLength(segment.end - segment.start)
+                        .setReadBufferSize(READ_BUFFER)
+                        .exceptionHandler(done::tryFail)
+                        .endHandler(done::tryComplete)
+                        .handler(head::digest);
+                    return done.future().eventually(ign2 -> file.close());
+                }));
+        }
+        return digested;
+    }
+
+    private static Result<Void> success() {
+        return new Result.Success<>(null);
+    }
+
+    private RequestOptions requestOptions(HttpMethod method) {
+        return new RequestOptions()
+            .setMethod(method)
+            .setHost(uri.getHost())
+            .setPort(IndyClient.getPort(uri))
+            .setURI(uri.getRawPath())
+            .setSsl(uri.getScheme().equals("https"));
+    }
+}
@@ -30,6 +30,7 @@ import org.jboss.pnc.enums.RepositoryType;
 
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
@@ -213,9 +214,89 @@ public class AssetEntry extends PanacheEntity {
         return count("errorCategory = ?1 or errorCategory is null", Category.IGNORE);
     }
 
-    public static PanacheQuery<IdentifierView> getSuccesses() {
-        return find("errorCategory = ?1 or errorCategory is null", Sort.by("id"), Category.IGNORE)
-            .project(IdentifierView.class);
+    /**
+     * Page of successes following the last ID of the previous page. Unlike OFFSET pages, keyset pages don't scan the
+     * rows before them.
+     */
+    public static List<IdentifierView> getSuccessesAfterId(long lastId, int limit) {
+        return find("(errorCategory = ?1 or errorCategory is null) and id > ?2", Sort.by("id"), Category.IGNORE, lastId)
+            .project(IdentifierView.class)
+            .range(0, limit - 1)
+            .list();
+    }
+
+    /**
+     * Page of all entries, successful or not, following the last ID of the previous page. Keyset-paginated as
+     * {@link #getSuccessesAfterId(long, int)}.
+     */
+    public static List<CommitView> getCommittedAfterId(long lastId, int limit) {
+        return find("id > ?1", Sort.by("id"), lastId)
+            .project(CommitView.class)
+            .range(0, limit - 1)
+            .list();
+    }
+
+    /**
+     * All entries, successful or not, with IDs in the range (afterId, upToId].
+     */
+    public static List<CommitView> getCommittedBetween(long afterId, long upToId) {
+        return find("id > ?1 and id <= ?2", Sort.by("id"), afterId, upToId)
+            .project(CommitView.class)
+            .list();
+    }
+
+    /**
+     * Entries with the IDs, those that aren't committed yet are missing.
+     */
+    public static List<CommitView> getCommittedWithIds(Collection<Long> ids) {
+        return find("id in ?1", Sort.by("id"), ids)
+            .project(CommitView.class)
+            .list();
+    }
+
+    /**
+     * Page of successes not covered by a snapshot, either with a higher ID or created since the snapshot (IDs are
+     * allocated in blocks per node, so they don't follow the order of commits). Keyset-paginated as
+     * {@link #getSuccessesAfterId(long, int)}.
+     */
+    public static List<IdentifierView> getSuccessesNotInSnapshot(long snapshotMaxId, ZonedDateTime since, long lastId, int limit) {
+        return find("(errorCategory = ?1 or errorCategory is null) and id > ?2 and (id > ?3 or createdTime >= ?4)",
+                Sort.by("id"), Category.IGNORE, lastId, snapshotMaxId, since)
+            .project(IdentifierView.class)
+            .range(0, limit - 1)
+            .list();
+    }
+
+    /**
+     * The entry with the lowest ID, a recreated DB has another one.
+     */
+    public static Optional<AssetEntry> getFirst() {
+        return findAll(Sort.by("id")).firstResultOptional();
+    }
+
+    /**
+     * Page of failures of the categories created since the timestamp, except for the errors, in the order they
+     * happened. Keyset-paginated as {@link #getSuccessesAfterId(long, int)}.
+     */
+    public static List<FailureView> getFailuresSince(ZonedDateTime since,
+                                                     Collection<Category> categories,
+                                                     Collection<String> excludedErrors,
+                                                     long lastId,
+                                                     int limit) {
+        return find("errorCategory in ?1 and createdTime >= ?2 and error not in ?3 and id > ?4",
+                Sort.by("id"), categories, since, excludedErrors, lastId)
+            .project(FailureView.class)
+            .range(0, limit - 1)
+            .list();
+    }
+
+    /**
+     * Entries with the IDs whose category isn't one of the categories (anymore), f.e. failures marked fixed.
+     */
+    public static List<CommitView> getNotInCategoriesWithIds(Collection<Long> ids, Collection<Category> categories) {
+        return find("id in ?1 and (errorCategory is null or errorCategory not in ?2)", Sort.by("id"), ids, categories)
+            .project(CommitView.class)
+            .list();
     }
 
     public static Paged<AssetEntry> getAllFiltered(Page page,
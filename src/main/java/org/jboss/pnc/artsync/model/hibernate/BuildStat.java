@@ -9,15 +9,21 @@ import io.quarkus.panache.common.Parameters;
 import io.quarkus.panache.common.Sort;
 import jakarta.persistence.Entity;
 import jakarta.persistence.FetchType;
+import jakarta.persistence.LockModeType;
 import jakarta.persistence.ManyToOne;
 import lombok.Getter;
 import lombok.Setter;
+import org.hibernate.LockOptions;
 import org.hibernate.annotations.Filter;
 import org.hibernate.annotations.FilterDef;
 import org.hibernate.annotations.FilterDefs;
 import org.hibernate.annotations.ParamDef;
+import org.hibernate.cfg.AvailableSettings;
 
+import java.time.Duration;
 import java.time.ZonedDateTime;
+import java.util.Collection;
+import java.util.List;
 
 import static org.jboss.pnc.artsync.model.hibernate.Paged.paginate;
 
@@ -50,6 +56,17 @@ public class BuildStat extends PanacheEntity {
     public long errors = 0;
     public long successes = 0;
 
+    // partition of the Job the build was planned in
+    @Setter
+    public Integer partitionIndex;
+
+    // all results of the build are persisted, a resumed Job skips it
+    public boolean finished = false;
+
+    // node processing the build of a sharded Job, the lease is valid until leaseExpiry
+    public String leaseOwner;
+    public ZonedDateTime leaseExpiry;
+
     public BuildStat(String buildID) {
         this.buildID = buildID;
     }
@@ -86,6 +103,55 @@ public class BuildStat extends PanacheEntity {
     public static BuildStat getLatest() {
         return find("from BuildStat", DEFAULT_SORTING.descending()).firstResult();
     }
+
+    /**
+     * Leases unfinished builds of a running Job which are not leased by anybody else (or whose lease expired). Builds
+     * the owner leased before (f.e. before a restart, its heartbeat kept extending them) are leased again, except for
+     * the ones it holds. Rows locked by other nodes leasing at the same time are skipped
+     * (SELECT ... FOR UPDATE SKIP LOCKED). Has to be called in a transaction.
+     *
+     * @param held IDs of builds the owner works on, not leased again
+     */
+    public static List<BuildStat> lease(long jobId, String owner, int limit, Duration leaseDuration, Collection<Long> held) {
+        ZonedDateTime now = ZonedDateTime.now();
+        // the Job is checked in a subquery, a join would lock its row too
+        String query = "job.id = ?1 and finished = false"
+            + " and (leaseOwner is null or leaseOwner = ?2 or leaseExpiry < ?3)"
+            + " and not exists (select 1 from Job ended where ended.id = ?1 and ended.endTime is not null)";
+        Object[] params = {jobId, owner, now};
+        if (!held.isEmpty()) {
+            query += " and id not in ?4";
+            params = new Object[] {jobId, owner, now, held};
+        }
+        List<BuildStat> leased = find(query, Sort.by("partitionIndex").and("timestamp").and("id"), params)
+            .withLock(LockModeType.PESSIMISTIC_WRITE)
+            .withHint(AvailableSettings.JAKARTA_LOCK_TIMEOUT, LockOptions.SKIP_LOCKED)
+            .page(0, limit)
+            .list();
+        leased.forEach(build -> {
+            build.leaseOwner = owner;
+            build.leaseExpiry = now.plus(leaseDuration);
+        });
+        return leased;
+    }
+
+    /**
+     * Releases unfinished builds of the Job leased by the owner, so that any node (the owner included) can lease them.
+     */
+    public static int releaseLeases(long jobId, String owner) {
+        return update("leaseOwner = null, leaseExpiry = null where job.id = ?1 and leaseOwner = ?2 and finished = false",
+            jobId,
+            owner);
+    }
+
+    /**
+     * Heartbeat of a node, extends leases of all unfinished builds it holds.
+     */
+    public static int extendLeases(String owner, Duration leaseDuration) {
+        return update("leaseExpiry = ?1 where leaseOwner = ?2 and finished = false",
+            ZonedDateTime.now().plus(leaseDuration),
+            owner);
+    }
     //endregion
 
     //region SETTERS/GETTERS
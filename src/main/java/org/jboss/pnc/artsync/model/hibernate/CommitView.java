@@ -0,0 +1,22 @@
+package org.jboss.pnc.artsync.model.hibernate;
+
+import io.quarkus.runtime.annotations.RegisterForReflection;
+import lombok.Getter;
+
+@Getter
+@RegisterForReflection
+public class CommitView {
+    public final Long id;
+    public final String identifier;
+    public final Category errorCategory;
+
+    public CommitView(Long id, String identifier, Category errorCategory) {
+        this.id = id;
+        this.identifier = identifier;
+        this.errorCategory = errorCategory;
+    }
+
+    public boolean isSuccess() {
+        return errorCategory == null || errorCategory == Category.IGNORE;
+    }
+}
@@ -0,0 +1,22 @@
+package org.jboss.pnc.artsync.model.hibernate;
+
+import io.quarkus.runtime.annotations.RegisterForReflection;
+import lombok.Getter;
+
+import java.time.ZonedDateTime;
+
+@Getter
+@RegisterForReflection
+public class FailureView {
+    public final Long id;
+    public final String identifier;
+    public final Category errorCategory;
+    public final ZonedDateTime createdTime;
+
+    public FailureView(Long id, String identifier, Category errorCategory, ZonedDateTime createdTime) {
+        this.id = id;
+        this.identifier = identifier;
+        this.errorCategory = errorCategory;
+        this.createdTime = createdTime;
+    }
+}
@@ -6,9 +6,11 @@ import lombok.Getter;
 @Getter
 @RegisterForReflection
 public class IdentifierView {
+    public final Long id;
     public final String identifier;
 
-    public IdentifierView(String identifier) {
+    public IdentifierView(Long id, String identifier) {
+        this.id = id;
         this.identifier = identifier;
     }
 }
@@ -49,6 +49,12 @@ public class Job extends PanacheEntity {
     public long errors = 0;
     public long successes = 0;
 
+    // number of times the Job was resumed after an interruption (or, shared by nodes, failed on one of them)
+    public int resumeAttempts = 0;
+
+    // the Job was given up after too many resumes, it has endTime but its unfinished builds were not processed
+    public boolean failed = false;
+
     @OneToMany(mappedBy = "job", fetch = FetchType.EAGER)
     @JsonIgnoreProperties("job")
     Set<BuildStat> builds = new HashSet<>();
@@ -56,10 +62,10 @@ public class Job extends PanacheEntity {
     //region Panache Queries
     /**
      * I want the one that was started last, but it must be finished.
-     * @return
+     * @return the latest Job that finished and was not given up, a given up Job didn't process all of its builds
      */
     public static Optional<Job> getLastFinishedJob() {
-        return find("from Job where lastProcessed is not null",
+        return find("from Job where lastProcessed is not null and endTime is not null and failed = false",
             Sort.by("startTime", Descending, NULLS_LAST)
                 .and("endTime", Descending, NULLS_LAST))
             .firstResultOptional();
@@ -78,6 +84,23 @@ public class Job extends PanacheEntity {
         return find("from Job", Sort.by("startTime", Descending)).firstResult();
     }
 
+    /**
+     * The latest Job, if it was interrupted before it finished.
+     * @return the latest Job if it has no endTime, empty otherwise
+     */
+    public static Optional<Job> getUnfinishedJob() {
+        return find("from Job", Sort.by("startTime", Descending, NULLS_LAST))
+            .<Job>firstResultOptional()
+            .filter(job -> job.endTime == null);
+    }
+
+
+    /**
+     * Counts a failed attempt of a node to process its part of a shared Job.
+     */
+    public static void countFailedAttempt(long jobId) {
+        update("resumeAttempts = resumeAttempts + 1 where id = ?1", jobId);
+    }
 
     //endregion
 }
@@ -0,0 +1,67 @@
+package org.jboss.pnc.artsync.model.hibernate;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import io.quarkus.hibernate.orm.panache.PanacheEntity;
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.EnumType;
+import jakarta.persistence.Enumerated;
+import jakarta.persistence.FetchType;
+import jakarta.persistence.Index;
+import jakarta.persistence.ManyToOne;
+import jakarta.persistence.Table;
+import lombok.Getter;
+
+import java.time.ZonedDateTime;
+import java.util.List;
+
+/**
+ * Planned upload of a single project version (GAV, NV, ...) of a build in a Job. Used to resume the Job after a
+ * restart without redoing versions that were already persisted.
+ */
+@Entity
+@Table(name = "WorkItem", indexes = {
+    @Index(name = "idx_workitem_fq_job", columnList = "job_id"),
+    @Index(name = "idx_workitem_fq_buildstat", columnList = "build_id"),
+    @Index(name = "idx_workitem_state", columnList = "state")
+})
+@Getter
+public class WorkItem extends PanacheEntity {
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JsonIgnoreProperties("builds")
+    public Job job;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JsonIgnoreProperties("job")
+    public BuildStat build;
+
+    @Column(nullable = false, columnDefinition = "TEXT")
+    public String versionKey;
+
+    @Enumerated(EnumType.STRING)
+    public WorkState state;
+
+    public ZonedDateTime updatedTime;
+
+    public WorkItem() {
+    }
+
+    public WorkItem(Job job, BuildStat build, String versionKey) {
+        this.job = job;
+        this.build = build;
+        this.versionKey = versionKey;
+        this.state = WorkState.PENDING;
+        this.updatedTime = ZonedDateTime.now();
+    }
+
+    //region Panache Queries
+    public static List<WorkItem> getByBuild(long buildStatId) {
+        return list("build.id", buildStatId);
+    }
+
+    public static int updateStates(WorkState state, List<Long> ids) {
+        return update("state = ?1, updatedTime = ?2 where id in ?3", state, ZonedDateTime.now(), ids);
+    }
+    //endregion
+}
@@ -0,0 +1,10 @@
+package org.jboss.pnc.artsync.model.hibernate;
+
+/**
+ * Progress of a planned project version. A resumed Job only skips persisted versions, so progress in between (download,
+ * upload) is not recorded.
+ */
+public enum WorkState {
+    PENDING,
+    PERSISTED
+}
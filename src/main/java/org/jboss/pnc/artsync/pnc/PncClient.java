@@ -1,5 +1,6 @@
 package org.jboss.pnc.artsync.pnc;
 
+import io.micrometer.core.instrument.MeterRegistry;
 import io.quarkus.virtual.threads.VirtualThreads;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.ws.rs.ProcessingException;
@@ -7,6 +8,7 @@ import jakarta.ws.rs.WebApplicationException;
 import jakarta.ws.rs.core.Response;
 import lombok.Getter;
 import org.eclipse.microprofile.rest.client.inject.RestClient;
+import org.jboss.pnc.artsync.BackendCircuitBreakers;
 import org.jboss.pnc.artsync.concurrency.ConstrainedExecutor;
 import org.jboss.pnc.artsync.pnc.Result.Error.ServerError.*;
 import org.jboss.pnc.artsync.pnc.Result.Error.ServerError.UnknownError;
@@ -43,10 +45,13 @@ public class PncClient {
     public PncClient(@RestClient PncRestClient restClient,
                      PncApplicationConfig config,
                      @VirtualThreads ExecutorService delegate,
-                     ScheduledExecutorService scheduler) {
+                     ScheduledExecutorService scheduler,
+                     MeterRegistry registry,
+                     BackendCircuitBreakers breakers) {
         this.restClient = restClient;
         this.config = config;
-        this.executor = new ConstrainedExecutor(delegate, scheduler, config, (ign) -> false, null, this::retryOn);
+        this.executor = new ConstrainedExecutor(delegate, scheduler, config, registry, (ign) -> false, null, this::retryOn, null);
+        breakers.register(executor.getCircuitBreaker(), config.faultTolerance().critical());
     }
 
     private boolean retryOn(Object response) {
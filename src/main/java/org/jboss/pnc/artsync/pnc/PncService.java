@@ -81,7 +81,7 @@ public class PncService {
     }
 
     private <T> void handleResult(ResultAgg<T> aggregate, Result<Page<T>> page, Throwable t) {
-        LOG.trace("Handling result, Rate-limiter Metrics: waiting: {} permissions: {}",client.getExecutor().getNumberOfWaitingThreads(),
+        LOG.trace("Handling result, Rate-limiter Metrics: waiting: {} permissions: {}",client.getExecutor().getNumberOfWaiting(),
             client.getExecutor().getNumberOfPermissions());
         switch (page) {
             case Success(var result) -> aggregate.successes().addAll(result.getContent());
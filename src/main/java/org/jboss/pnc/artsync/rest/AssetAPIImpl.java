@@ -1,8 +1,12 @@
 package org.jboss.pnc.artsync.rest;
 
+import io.quarkus.narayana.jta.QuarkusTransaction;
 import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.inject.Any;
+import jakarta.inject.Inject;
 import jakarta.ws.rs.BadRequestException;
 import jakarta.ws.rs.core.Response;
+import org.jboss.pnc.artsync.ProcessedArtifactsCache;
 import org.jboss.pnc.artsync.model.hibernate.AssetEntry;
 import org.jboss.pnc.artsync.model.hibernate.Category;
 import org.jboss.pnc.artsync.model.hibernate.Paged;
@@ -13,6 +17,11 @@ import java.time.ZonedDateTime;
 
 @ApplicationScoped
 public class AssetAPIImpl implements AssetAPI {
+
+    @Inject
+    @Any
+    ProcessedArtifactsCache processedCache;
+
     @Override
     public AssetEntry getSpecific(long id) {
         return AssetEntry.findById(id);
@@ -45,10 +54,13 @@ public class AssetAPIImpl implements AssetAPI {
 
     @Override
     public Response markErrorFixed(long id) {
-        if (AssetEntry.markFixed(id)) {
-            return Response.ok().build();
-        } else {
+        String identifier = QuarkusTransaction.requiringNew()
+            .call(() -> AssetEntry.markFixed(id) ? AssetEntry.<AssetEntry>findById(id).identifier : null);
+        if (identifier == null) {
             throw new BadRequestException("Already marked or doesn't exist.");
         }
+        // only once committed, a failure reloaded in the meantime would be backed off again
+        processedCache.evictFailure(identifier);
+        return Response.ok().build();
     }
 }
@@ -0,0 +1,36 @@
+-- Schema changes of resumable and sharded upload Jobs.
+--
+-- Hibernate only validates the schema (quarkus.hibernate-orm.database.generation=validate), run this script against
+-- an existing database before deploying the version which introduced the columns.
+
+-- plan of a Job, progress of its builds and leases of sharded Jobs
+alter table BuildStat add column if not exists partitionIndex integer;
+alter table BuildStat add column if not exists finished boolean not null default false;
+alter table BuildStat add column if not exists leaseOwner varchar(255);
+alter table BuildStat add column if not exists leaseExpiry timestamp(6) with time zone;
+
+-- builds of Jobs planned before this change are all finished, their Jobs were not resumable
+update BuildStat set finished = true where job_id in (select id from Job where endTime is not null);
+
+-- resumes of interrupted Jobs
+alter table Job add column if not exists resumeAttempts integer not null default 0;
+alter table Job add column if not exists failed boolean not null default false;
+
+-- planned project versions of a Job
+create sequence if not exists WorkItem_SEQ start with 1 increment by 50;
+
+create table if not exists WorkItem (
+    id bigint not null,
+    job_id bigint,
+    build_id bigint,
+    versionKey text not null,
+    state varchar(255) check (state in ('PENDING', 'PERSISTED')),
+    updatedTime timestamp(6) with time zone,
+    primary key (id),
+    constraint fk_workitem_job foreign key (job_id) references Job,
+    constraint fk_workitem_buildstat foreign key (build_id) references BuildStat
+);
+
+create index if not exists idx_workitem_fq_job on WorkItem (job_id);
+create index if not exists idx_workitem_fq_buildstat on WorkItem (build_id);
+create index if not exists idx_workitem_state on WorkItem (state);
@@ -0,0 +1,182 @@
+package org.jboss.pnc.artsync;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.quarkus.narayana.jta.QuarkusTransaction;
+import io.quarkus.test.junit.QuarkusTest;
+import jakarta.inject.Inject;
+import org.jboss.pnc.artsync.config.ArtsyncConfig;
+import org.jboss.pnc.artsync.model.hibernate.AssetEntry;
+import org.jboss.pnc.artsync.model.hibernate.BuildStat;
+import org.jboss.pnc.artsync.model.hibernate.Job;
+import org.jboss.pnc.artsync.model.hibernate.WorkItem;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Several nodes (coordinators with their own processed caches) in one JVM sharing one DB.
+ */
+@QuarkusTest
+class ShardCoordinatorTest {
+
+    private static final int NODES = 3;
+
+    // leasing a partition of a Job without builds only refreshes the processed cache
+    private static final long NO_JOB = -1;
+
+    @Inject
+    ArtsyncConfig config;
+
+    private final List<ShardCoordinator> nodes = new ArrayList<>();
+
+    private final List<ProcessedArtifactsCache> caches = new ArrayList<>();
+
+    private long jobId;
+
+    @BeforeEach
+    void startNodes() {
+        QuarkusTransaction.requiringNew().run(() -> {
+            WorkItem.deleteAll();
+            AssetEntry.deleteAll();
+            BuildStat.deleteAll();
+            Job.deleteAll();
+        });
+        jobId = QuarkusTransaction.requiringNew().call(() -> {
+            Job job = new Job();
+            job.startTime = ZonedDateTime.now();
+            job.persist();
+            for (int i = 0; i < 10; i++) {
+                BuildStat build = new BuildStat("build-" + i, ZonedDateTime.now());
+                build.setJob(job);
+                build.persist();
+            }
+            return job.id;
+        });
+
+        nodes.clear();
+        caches.clear();
+        for (int i = 0; i < NODES; i++) {
+            ProcessedArtifactsCache cache = new ProcessedArtifactsCache(config, new SimpleMeterRegistry());
+            cache.initializeCache();
+            caches.add(cache);
+            nodes.add(new ShardCoordinator(config.cron().sharding(), cache, "node-" + i));
+        }
+    }
+
+    @Test
+    void nodesLeaseDisjointBuilds() {
+        List<CompletableFuture<List<BuildStat>>> leases = nodes.stream()
+            .map(node -> CompletableFuture.supplyAsync(() -> node.leasePartition(jobId, 4)))
+            .toList();
+
+        Set<Long> leased = new HashSet<>();
+        int total = 0;
+        List<List<Long>> held = new ArrayList<>();
+        for (CompletableFuture<List<BuildStat>> lease : leases) {
+            List<Long> ids = ids(lease.join());
+            total += ids.size();
+            leased.addAll(ids);
+            held.add(ids);
+        }
+
+        assertEquals(10, total);
+        assertEquals(10, leased.size(), "A build was leased by more than one node");
+        for (int i = 0; i < NODES; i++) {
+            assertTrue(nodes.get(i).leasePartition(jobId, 4, held.get(i)).isEmpty());
+        }
+    }
+
+    @Test
+    void buildsOfNodeFailingMidPartitionAreTakenOver() {
+        ShardCoordinator failing = nodes.get(0);
+        ShardCoordinator other = nodes.get(1);
+        List<Long> current = ids(failing.leasePartition(jobId, 4));
+        List<Long> prefetched = ids(failing.leasePartition(jobId, 4, current));
+        // one build of the current partition finished before the failure
+        QuarkusTransaction.requiringNew().run(() -> BuildStat.<BuildStat>findById(current.getFirst()).finished = true);
+
+        List<Long> rest = ids(other.leasePartition(jobId, 4));
+        assertEquals(2, rest.size());
+        failing.heartbeat();
+        failing.releaseLeases(jobId);
+
+        List<Long> takenOver = ids(other.leasePartition(jobId, 10, rest));
+        assertEquals(7, takenOver.size());
+        assertTrue(takenOver.containsAll(current.subList(1, current.size())));
+        assertTrue(takenOver.containsAll(prefetched));
+    }
+
+    @Test
+    void restartedNodeLeasesItsBuildsAgain() {
+        List<Long> leased = ids(nodes.get(0).leasePartition(jobId, 4));
+        nodes.get(0).heartbeat();
+
+        ShardCoordinator restarted = new ShardCoordinator(config.cron().sharding(), caches.get(0), "node-0");
+        assertEquals(leased, ids(restarted.leasePartition(jobId, 4)));
+        assertTrue(ids(nodes.get(1).leasePartition(jobId, 10)).stream().noneMatch(leased::contains));
+    }
+
+    @Test
+    void lateCommitWithOldCreatedTimeIsRefreshed() throws Exception {
+        String late = "late:" + UUID.randomUUID();
+        String early = "early:" + UUID.randomUUID();
+
+        // the late entry gets the lower ID and an old createdTime but is committed after the early one got refreshed
+        CountDownLatch persisted = new CountDownLatch(1);
+        CountDownLatch commit = new CountDownLatch(1);
+        CompletableFuture<Void> lateCommitted = CompletableFuture.runAsync(() -> QuarkusTransaction.requiringNew()
+            .run(() -> {
+                entry(late, ZonedDateTime.now().minusDays(1)).persist();
+                persisted.countDown();
+                await(commit);
+            }));
+        assertTrue(persisted.await(30, TimeUnit.SECONDS));
+        QuarkusTransaction.requiringNew().run(() -> entry(early, ZonedDateTime.now()).persist());
+
+        nodes.forEach(node -> node.leasePartition(NO_JOB, 1));
+        caches.forEach(cache -> {
+            assertFalse(cache.shouldProcess(early));
+            assertTrue(cache.shouldProcess(late));
+        });
+
+        commit.countDown();
+        lateCommitted.get(30, TimeUnit.SECONDS);
+
+        nodes.forEach(node -> node.leasePartition(NO_JOB, 1));
+        caches.forEach(cache -> assertFalse(cache.shouldProcess(late)));
+    }
+
+    private static List<Long> ids(List<BuildStat> builds) {
+        return builds.stream().map(build -> build.id).toList();
+    }
+
+    private static AssetEntry entry(String identifier, ZonedDateTime createdTime) {
+        AssetEntry entry = new AssetEntry();
+        entry.identifier = identifier;
+        entry.createdTime = createdTime;
+        entry.uploadTime = createdTime;
+        return entry;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package org.jboss.pnc.artsync.aws;
+
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.identity.spi.AwsCredentialsIdentity;
+import software.amazon.awssdk.identity.spi.AwsSessionCredentialsIdentity;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Vectors of the AWS SigV4 test suite, the CodeArtifact publish request is checked against the signer of the AWS SDK
+ * (with an unsigned payload as the SDK wouldn't take a precomputed hash).
+ */
+class SigV4Test {
+
+    private static final AwsCredentialsIdentity SUITE_CREDENTIALS = AwsCredentialsIdentity.create("AKIDEXAMPLE",
+        "wJalrXUtnFEMI/K7MDENG+bPxRfiCYEXAMPLEKEY");
+
+    private static final String EMPTY_SHA256 = "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855";
+
+    private static final Map<String, String> SUITE_HEADERS = Map.of(
+        "host", "example.amazonaws.com",
+        "x-amz-date", "20150830T123600Z");
+
+    private final SigV4 suite = new SigV4("us-east-1", "service");
+
+    @Test
+    void getVanilla() {
+        assertEquals("AWS4-HMAC-SHA256 Credential=AKIDEXAMPLE/20150830/us-east-1/service/aws4_request, "
+                + "SignedHeaders=host;x-amz-date, "
+                + "Signature=5fa00fa31553b73ebf1942676e86291e8372ff2a2260956d9b8aae1d763fbf31",
+            suite.authorization(SUITE_CREDENTIALS, "GET", "/", Map.of(), SUITE_HEADERS, EMPTY_SHA256));
+    }
+
+    @Test
+    void getVanillaQueryOrderKeyCase() {
+        assertEquals("AWS4-HMAC-SHA256 Credential=AKIDEXAMPLE/20150830/us-east-1/service/aws4_request, "
+                + "SignedHeaders=host;x-amz-date, "
+                + "Signature=b97d918cfa904a5beff61c982a1b6f458b799221646efd99d3219ec94cdf2500",
+            suite.authorization(SUITE_CREDENTIALS, "GET", "/", Map.of("Param2", "value2", "Param1", "value1"),
+                SUITE_HEADERS, EMPTY_SHA256));
+    }
+
+    @Test
+    void postVanilla() {
+        assertEquals("AWS4-HMAC-SHA256 Credential=AKIDEXAMPLE/20150830/us-east-1/service/aws4_request, "
+                + "SignedHeaders=host;x-amz-date, "
+                + "Signature=5da7c1a2acd57cee7505fc6676e4e544621c30862966e37dddb68e92efbe5d6b",
+            suite.authorization(SUITE_CREDENTIALS, "POST", "/", Map.of(), SUITE_HEADERS, EMPTY_SHA256));
+    }
+
+    @Test
+    void publishWithSessionToken() {
+        var credentials = AwsSessionCredentialsIdentity.create("AKIDEXAMPLE",
+            "wJalrXUtnFEMI/K7MDENG+bPxRfiCYEXAMPLEKEY", "session-token");
+        var headers = Map.of(
+            "host", "codeartifact.us-east-1.amazonaws.com",
+            "x-amz-content-sha256", "UNSIGNED-PAYLOAD",
+            "x-amz-date", "20150830T123600Z",
+            "x-amz-security-token", "session-token");
+        // "domain" sorts before "domain-owner" although '-' < '='
+        var query = Map.of("domain", "d", "domain-owner", "123", "asset", "a b~1.txt");
+
+        assertEquals("AWS4-HMAC-SHA256 Credential=AKIDEXAMPLE/20150830/us-east-1/codeartifact/aws4_request, "
+                + "SignedHeaders=host;x-amz-content-sha256;x-amz-date;x-amz-security-token, "
+                + "Signature=ebaddd80be3dc02282c9ca711405a73bbba3bfdb2ad9be1c98546d954cd227f9",
+            new SigV4("us-east-1", "codeartifact").authorization(credentials, "POST", "/v1/package/version/publish",
+                query, headers, "UNSIGNED-PAYLOAD"));
+    }
+
+    @Test
+    void canonicalQuerySortsEncodedNames() {
+        assertEquals("asset=a%20b~1.txt&domain=d&domain-owner=123",
+            SigV4.canonicalQuery(Map.of("domain-owner", "123", "domain", "d", "asset", "a b~1.txt")));
+    }
+}
@@ -0,0 +1,126 @@
+package org.jboss.pnc.artsync.concurrency;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.jboss.pnc.artsync.config.FaultToleranceConfig;
+import org.jboss.pnc.artsync.config.RateLimitApplicationConfig;
+import org.jboss.pnc.artsync.config.RetryApplicationConfig;
+import org.jboss.pnc.artsync.config.ServiceApplicationConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Overhead of a call through {@link ConstrainedExecutor} (token bucket, bulkhead, circuit breaker and optionally the
+ * retry with its budget) around a task doing nothing, for a task run on the delegate and for a wrapped stage.
+ *
+ * Run the same way as {@link TokenBucketBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConstrainedExecutorBenchmark {
+
+    @Param({"false", "true"})
+    public boolean retries;
+
+    @Param({"2147483647", "64"})
+    public int maxConcurrentCalls;
+
+    private ExecutorService delegate;
+
+    private ScheduledExecutorService scheduler;
+
+    private ConstrainedExecutor executor;
+
+    @Setup
+    public void setUp() {
+        delegate = Executors.newVirtualThreadPerTaskExecutor();
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        ServiceApplicationConfig config = new Service("benchmark",
+            new RateLimit(Integer.MAX_VALUE, Duration.ofSeconds(1), Duration.ofMinutes(1), Optional.empty(), 1, 0.5,
+                Duration.ofSeconds(10)),
+            new Retry(retries, 3, false, Duration.ofMillis(1), false, Duration.ofMillis(10), 0.2, 5),
+            new FaultTolerance(50, 100, 20, Duration.ofSeconds(30), 10, maxConcurrentCalls, false));
+        executor = new ConstrainedExecutor(delegate, scheduler, config, new SimpleMeterRegistry(),
+            ign -> false, null, result -> false, null);
+    }
+
+    @TearDown
+    public void tearDown() {
+        delegate.shutdownNow();
+        scheduler.shutdownNow();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Integer supplyAsync() {
+        return executor.supplyAsync(1, () -> 1).join();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Integer supplyAsyncContended() {
+        return executor.supplyAsync(1, () -> 1).join();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Integer wrapAsyncContended() {
+        return executor.wrapAsync(1, () -> CompletableFuture.completedFuture(1)).join();
+    }
+
+    record Service(String serviceName,
+                   RateLimitApplicationConfig rateLimit,
+                   RetryApplicationConfig retry,
+                   FaultToleranceConfig faultTolerance) implements ServiceApplicationConfig {
+    }
+
+    record RateLimit(int rateOfRequests,
+                     Duration timeConstraint,
+                     Duration requestTimeout,
+                     Optional<Integer> maxRateOfRequests,
+                     double rateIncrease,
+                     double rateDecrease,
+                     Duration laneStarvationLimit) implements RateLimitApplicationConfig {
+    }
+
+    record Retry(boolean enabled,
+                 int maxAttempts,
+                 boolean exponentialBackoff,
+                 Duration interval,
+                 boolean jitter,
+                 Duration maxInterval,
+                 double budgetRatio,
+                 double budgetMinPerSecond) implements RetryApplicationConfig {
+    }
+
+    record FaultTolerance(float failureRateThreshold,
+                          int slidingWindowSize,
+                          int minimumNumberOfCalls,
+                          Duration waitDurationInOpenState,
+                          int permittedCallsInHalfOpenState,
+                          int maxConcurrentCalls,
+                          boolean critical) implements FaultToleranceConfig {
+    }
+}
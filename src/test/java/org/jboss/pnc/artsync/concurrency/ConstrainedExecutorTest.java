@@ -0,0 +1,129 @@
+package org.jboss.pnc.artsync.concurrency;
+
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.jboss.pnc.artsync.concurrency.ConstrainedExecutorBenchmark.FaultTolerance;
+import org.jboss.pnc.artsync.concurrency.ConstrainedExecutorBenchmark.RateLimit;
+import org.jboss.pnc.artsync.concurrency.ConstrainedExecutorBenchmark.Retry;
+import org.jboss.pnc.artsync.concurrency.ConstrainedExecutorBenchmark.Service;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Resources opened by {@link ConstrainedExecutor#wrapAsync(int, java.util.function.Supplier,
+ * java.util.function.Function, java.util.function.Consumer)} are discarded unless the call took them over.
+ */
+class ConstrainedExecutorTest {
+
+    private ExecutorService delegate;
+
+    private ScheduledExecutorService scheduler;
+
+    private ConstrainedExecutor executor;
+
+    private final List<String> discarded = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        delegate = Executors.newVirtualThreadPerTaskExecutor();
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        Service config = new Service("test",
+            new RateLimit(1000, Duration.ofSeconds(1), Duration.ofMinutes(1), Optional.empty(), 1, 0.5,
+                Duration.ofSeconds(10)),
+            new Retry(false, 3, false, Duration.ofMillis(1), false, Duration.ofMillis(10), 0.2, 5),
+            new FaultTolerance(50, 100, 20, Duration.ofMinutes(1), 10, 4, false));
+        executor = new ConstrainedExecutor(delegate, scheduler, config, new SimpleMeterRegistry(),
+            ign -> false, null, result -> false, null);
+    }
+
+    @AfterEach
+    void tearDown() {
+        delegate.shutdownNow();
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    void discardsResourceWhenBreakerIsOpen() {
+        executor.getCircuitBreaker().transitionToForcedOpenState();
+        AtomicBoolean called = new AtomicBoolean();
+
+        CompletableFuture<String> call = executor.wrapAsync(1,
+            () -> CompletableFuture.completedFuture("response"),
+            response -> {
+                called.set(true);
+                return CompletableFuture.completedFuture(response);
+            },
+            discarded::add);
+
+        ExecutionException failure = assertThrows(ExecutionException.class, () -> call.get(10, TimeUnit.SECONDS));
+        assertInstanceOf(CallNotPermittedException.class, failure.getCause());
+        assertFalse(called.get());
+        assertEquals(List.of("response"), discarded);
+    }
+
+    @Test
+    void releasesSlotOfCallRejectedByOpenBreaker() throws Exception {
+        executor.getCircuitBreaker().transitionToForcedOpenState();
+        for (int i = 0; i < 10; i++) {
+            String response = "response-" + i;
+            CompletableFuture<String> call = executor.wrapAsync(1,
+                () -> CompletableFuture.completedFuture(response),
+                CompletableFuture::completedFuture,
+                discarded::add);
+            assertThrows(ExecutionException.class, () -> call.get(10, TimeUnit.SECONDS));
+        }
+        executor.getCircuitBreaker().transitionToClosedState();
+
+        // more rejected calls than slots of the bulkhead, a leaked slot would block this one
+        assertEquals("response", executor.wrapAsync(1,
+                () -> CompletableFuture.completedFuture("response"),
+                CompletableFuture::completedFuture,
+                discarded::add)
+            .get(10, TimeUnit.SECONDS));
+        assertEquals(10, discarded.size());
+    }
+
+    @Test
+    void discardsResourceWhenCallThrowsBeforeReturningItsStage() {
+        CompletableFuture<String> call = executor.wrapAsync(1,
+            () -> CompletableFuture.completedFuture("response"),
+            response -> {
+                throw new IllegalStateException("Broken call");
+            },
+            discarded::add);
+
+        ExecutionException failure = assertThrows(ExecutionException.class, () -> call.get(10, TimeUnit.SECONDS));
+        assertInstanceOf(IllegalStateException.class, failure.getCause());
+        assertEquals(List.of("response"), discarded);
+    }
+
+    @Test
+    void keepsResourceTakenOverByCall() throws Exception {
+        CompletableFuture<String> call = executor.wrapAsync(1,
+            () -> CompletableFuture.completedFuture("response"),
+            response -> CompletableFuture.failedFuture(new IllegalStateException("Failed upload")),
+            discarded::add);
+
+        assertThrows(ExecutionException.class, () -> call.get(10, TimeUnit.SECONDS));
+        assertTrue(discarded.isEmpty(), "The call owns the resource once it returned its stage");
+    }
+}
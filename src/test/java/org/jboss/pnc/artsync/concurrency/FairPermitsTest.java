@@ -0,0 +1,119 @@
+package org.jboss.pnc.artsync.concurrency;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * A single permit, held while the requests queue up and then passed on one release at a time. Grants complete in
+ * the releasing thread, so their order is recorded as it happens.
+ */
+class FairPermitsTest {
+
+    private final List<String> granted = new ArrayList<>();
+
+    @Test
+    void sharesPermitsByWeight() {
+        FairPermits permits = new FairPermits(1, group -> Map.of("heavy", 2d).getOrDefault(group, 1d));
+        hold(permits);
+        for (int i = 0; i < 40; i++) {
+            acquire(permits, "heavy", "project", "heavy");
+            acquire(permits, "light", "project", "light");
+        }
+
+        release(permits, 30);
+
+        assertEquals(20, granted.stream().filter("heavy"::equals).count());
+        assertEquals(10, granted.stream().filter("light"::equals).count());
+    }
+
+    @Test
+    void sharesByCost() {
+        FairPermits permits = new FairPermits(1, group -> 1);
+        hold(permits);
+        for (int i = 0; i < 20; i++) {
+            acquire(permits, "big", "project", 4, "big");
+            acquire(permits, "small", "project", 1, "small");
+        }
+
+        release(permits, 10);
+
+        assertEquals(2, granted.stream().filter("big"::equals).count());
+        assertEquals(8, granted.stream().filter("small"::equals).count());
+    }
+
+    @Test
+    void servesFlowsOfGroupRoundRobin() {
+        FairPermits permits = new FairPermits(1, group -> 1);
+        hold(permits);
+        acquire(permits, "repository", "huge", "huge-1");
+        acquire(permits, "repository", "huge", "huge-2");
+        acquire(permits, "repository", "huge", "huge-3");
+        acquire(permits, "repository", "small", "small-1");
+
+        release(permits, 4);
+
+        assertEquals(List.of("huge-1", "small-1", "huge-2", "huge-3"), granted);
+    }
+
+    @Test
+    void idleGroupDoesNotSaveUpCredit() {
+        FairPermits permits = new FairPermits(1, group -> 1);
+        hold(permits);
+        for (int i = 0; i < 20; i++) {
+            acquire(permits, "busy", "project", "busy");
+        }
+        release(permits, 10);
+
+        for (int i = 0; i < 20; i++) {
+            acquire(permits, "idle", "project", "idle");
+        }
+        granted.clear();
+        release(permits, 10);
+
+        assertEquals(5, granted.stream().filter("idle"::equals).count());
+    }
+
+    @Test
+    void tracksWaitingAndUsedPermits() {
+        FairPermits permits = new FairPermits(2, group -> 1);
+        acquire(permits, "repository", "project", "first");
+        acquire(permits, "repository", "project", "second");
+        acquire(permits, "repository", "project", "third");
+        assertEquals(2, permits.getInUse());
+        assertEquals(1, permits.getNumberOfWaiting());
+
+        permits.release();
+        assertEquals(List.of("first", "second", "third"), granted);
+        assertEquals(2, permits.getInUse());
+        assertEquals(0, permits.getNumberOfWaiting());
+    }
+
+    @Test
+    void rejectsNoPermits() {
+        assertThrows(IllegalArgumentException.class, () -> new FairPermits(0, group -> 1));
+    }
+
+    private void hold(FairPermits permits) {
+        permits.acquire("holder", "holder", 1);
+    }
+
+    private void acquire(FairPermits permits, String group, String flow, String name) {
+        acquire(permits, group, flow, 1, name);
+    }
+
+    private void acquire(FairPermits permits, String group, String flow, double cost, String name) {
+        permits.acquire(group, flow, cost).thenRun(() -> granted.add(name));
+    }
+
+    private static void release(FairPermits permits, int times) {
+        for (int i = 0; i < times; i++) {
+            permits.release();
+        }
+    }
+}
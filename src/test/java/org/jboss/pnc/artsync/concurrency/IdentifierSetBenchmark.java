@@ -0,0 +1,136 @@
+package org.jboss.pnc.artsync.concurrency;
+
+import com.googlecode.concurrenttrees.radix.ConcurrentRadixTree;
+import com.googlecode.concurrenttrees.radix.node.concrete.DefaultCharArrayNodeFactory;
+import com.googlecode.concurrenttrees.radix.node.concrete.voidvalue.VoidValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * Heap taken by the processed identifiers and latency of their lookups in {@link IdentifierSet} (on heap and
+ * memory-mapped, with its Bloom filter) against the {@link ConcurrentRadixTree} the processed cache used before.
+ *
+ * The heap is measured once per trial after a full GC, before and after the identifiers are added, and printed in the
+ * output of the trial. Lookups are of identifiers in the set and of identifiers that aren't, which most lookups of
+ * the pipeline are.
+ *
+ * Run after {@code mvn test-compile} with
+ * {@code java -cp target/test-classes:target/classes:<test classpath> org.openjdk.jmh.Main IdentifierSetBenchmark}
+ * (the classpath from {@code mvn dependency:build-classpath -Dmdep.includeScope=test}).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class IdentifierSetBenchmark {
+
+    // lookups cycle through this many identifiers, so that they don't stay in the CPU caches
+    private static final int SAMPLES = 1 << 16;
+
+    @Param({"1000000", "5000000"})
+    public int identifiers;
+
+    @Param({"radix-tree", "segment", "mapped-segment"})
+    public String store;
+
+    private Path mappedDir;
+
+    private Predicate<String> contains;
+
+    private String[] present;
+
+    private String[] absent;
+
+    private int next = 0;
+
+    @Setup
+    public void setUp() throws IOException {
+        long before = usedHeap();
+        switch (store) {
+            case "radix-tree" -> {
+                ConcurrentRadixTree<VoidValue> tree = new ConcurrentRadixTree<>(new DefaultCharArrayNodeFactory());
+                for (int i = 0; i < identifiers; i++) {
+                    tree.putIfAbsent(identifier(i), VoidValue.SINGLETON);
+                }
+                contains = identifier -> tree.getValueForExactKey(identifier) != null;
+            }
+            case "segment", "mapped-segment" -> {
+                mappedDir = store.equals("mapped-segment") ? Files.createTempDirectory("identifier-set") : null;
+                IdentifierSet set = new IdentifierSet(10_000, mappedDir, 0.01, Runnable::run);
+                for (int i = 0; i < identifiers; i++) {
+                    set.add(identifier(i));
+                }
+                set.merge();
+                contains = set::contains;
+            }
+            default -> throw new IllegalArgumentException("Unknown store " + store);
+        }
+        long heap = usedHeap() - before;
+        System.out.printf("%n%s of %d identifiers takes %d MB of heap, %.1f bytes per identifier%n",
+            store, identifiers, heap / (1024 * 1024), (double) heap / identifiers);
+
+        SplittableRandom random = new SplittableRandom(42);
+        present = new String[SAMPLES];
+        absent = new String[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) {
+            present[i] = identifier(random.nextInt(identifiers));
+            absent[i] = identifier(identifiers + random.nextInt(identifiers));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        if (mappedDir != null) {
+            try (Stream<Path> files = Files.walk(mappedDir)) {
+                for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public boolean lookupPresent() {
+        return contains.test(present[next++ & (SAMPLES - 1)]);
+    }
+
+    @Benchmark
+    public boolean lookupAbsent() {
+        return contains.test(absent[next++ & (SAMPLES - 1)]);
+    }
+
+    // purl-like identifiers sharing long prefixes, like the ones of the processed cache
+    private static String identifier(int i) {
+        return "pkg:maven/org.jboss.pnc.group" + (i % 997) + "/artifact-" + (i % 7919) + "@" + (i / 7919) + ".0."
+            + (i % 13) + ".redhat-0000" + (i % 7) + "?type=jar";
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
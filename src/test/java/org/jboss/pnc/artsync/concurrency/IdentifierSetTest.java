@@ -0,0 +1,149 @@
+package org.jboss.pnc.artsync.concurrency;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Segments are split into buffers of 1 KiB, so that they span many buffers and most buffers end with padding.
+ */
+class IdentifierSetTest {
+
+    private static final int CHUNK_SHIFT = 10;
+
+    private static final List<String> IDENTIFIERS = IntStream.range(0, 2000)
+        .mapToObj(i -> "pkg:maven/org.jboss.pnc.group" + (i % 37) + "/artifact-" + i + "@1." + (i % 11) + ".0.redhat-00001?type=jar")
+        .toList();
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void findsIdentifiersAcrossBuffersOnHeap() {
+        IdentifierSet set = new IdentifierSet(100, null, 0.01, Runnable::run, CHUNK_SHIFT);
+        IDENTIFIERS.forEach(set::add);
+        set.merge();
+
+        assertContainsAll(set);
+        assertTrue(set.segmentBytes() > 10 << CHUNK_SHIFT);
+    }
+
+    @Test
+    void findsIdentifiersAcrossMappedBuffers() {
+        IdentifierSet set = new IdentifierSet(100, dir, 0, Runnable::run, CHUNK_SHIFT);
+        IDENTIFIERS.forEach(set::add);
+        set.merge();
+
+        assertContainsAll(set);
+    }
+
+    @Test
+    void loadsSnapshotIntoBuffers() throws Exception {
+        IdentifierSet written = new IdentifierSet(100, null, 0.01, Runnable::run, CHUNK_SHIFT);
+        IDENTIFIERS.forEach(written::add);
+        Path snapshot = dir.resolve("identifiers.snapshot");
+        written.writeSnapshot(snapshot, 7, 42, Instant.ofEpochMilli(1000));
+
+        for (Path mappedDir : new Path[] {null, dir}) {
+            IdentifierSet loaded = new IdentifierSet(100, mappedDir, 0.01, Runnable::run, CHUNK_SHIFT);
+            IdentifierSet.Snapshot covered = loaded.loadSnapshot(snapshot, 7);
+
+            assertEquals(42, covered.maxId());
+            assertEquals(IDENTIFIERS.size(), loaded.size());
+            assertContainsAll(loaded);
+        }
+    }
+
+    @Test
+    void rejectsSnapshotOfAnotherSource() throws Exception {
+        IdentifierSet written = new IdentifierSet(100, null, 0.01, Runnable::run, CHUNK_SHIFT);
+        IDENTIFIERS.forEach(written::add);
+        Path snapshot = dir.resolve("identifiers.snapshot");
+        written.writeSnapshot(snapshot, 7, 42, Instant.ofEpochMilli(1000));
+
+        IdentifierSet loaded = new IdentifierSet(100, null, 0.01, Runnable::run, CHUNK_SHIFT);
+        loaded.add(IDENTIFIERS.getFirst());
+        assertThrows(IOException.class, () -> loaded.loadSnapshot(snapshot, 8));
+        assertEquals(1, loaded.size());
+    }
+
+    @Test
+    void failedMergeIsRetriedOnceTheDeltaDoubles() throws Exception {
+        Path missing = dir.resolve("segments");
+        IdentifierSet set = new IdentifierSet(100, missing, 0, Runnable::run, CHUNK_SHIFT);
+        IDENTIFIERS.subList(0, 100).forEach(set::add);
+        assertEquals(0, set.segmentBytes());
+
+        Files.createDirectory(missing);
+        IDENTIFIERS.subList(100, 199).forEach(set::add);
+        assertEquals(0, set.segmentBytes(), "Merged before the delta doubled");
+
+        set.add(IDENTIFIERS.get(199));
+        assertTrue(set.segmentBytes() > 0);
+        IDENTIFIERS.subList(0, 200).forEach(identifier -> assertTrue(set.contains(identifier), identifier));
+    }
+
+    @Test
+    void rejectsNeighboursOfContainedIdentifiers() {
+        IdentifierSet set = new IdentifierSet(100, null, 0, Runnable::run, CHUNK_SHIFT);
+        IDENTIFIERS.forEach(set::add);
+        set.merge();
+
+        Set<String> contained = Set.copyOf(IDENTIFIERS);
+        for (String identifier : IDENTIFIERS) {
+            char last = identifier.charAt(identifier.length() - 1);
+            String body = identifier.substring(0, identifier.length() - 1);
+            for (String neighbour : List.of(identifier + "x", body, body + (char) (last - 1), body + (char) (last + 1))) {
+                assertEquals(contained.contains(neighbour), set.contains(neighbour), neighbour);
+            }
+        }
+    }
+
+    @Test
+    void mergesOnExecutor() {
+        List<Runnable> scheduled = new ArrayList<>();
+        IdentifierSet set = new IdentifierSet(100, null, 0.01, scheduled::add, CHUNK_SHIFT);
+        IDENTIFIERS.subList(0, 150).forEach(set::add);
+
+        assertEquals(1, scheduled.size(), "Merge has to be scheduled once");
+        assertEquals(0, set.segmentBytes(), "Merged on the adding thread");
+
+        scheduled.getFirst().run();
+        assertTrue(set.segmentBytes() > 0);
+        assertEquals(150, set.size());
+        IDENTIFIERS.subList(0, 150).forEach(identifier -> assertTrue(set.contains(identifier), identifier));
+    }
+
+    @Test
+    void countsOnlyLookupsInFilterStatistics() {
+        IdentifierSet set = new IdentifierSet(100, null, 0.01, Runnable::run, CHUNK_SHIFT);
+        IDENTIFIERS.forEach(set::add);
+        IDENTIFIERS.forEach(set::add);
+        assertEquals(0, set.filterNegatives() + set.filterPositives() + set.filterFalsePositives());
+
+        set.contains(IDENTIFIERS.getFirst());
+        set.contains("absent");
+        assertEquals(1, set.filterPositives());
+        assertEquals(1, set.filterNegatives() + set.filterFalsePositives());
+    }
+
+    private static void assertContainsAll(IdentifierSet set) {
+        IDENTIFIERS.forEach(identifier -> assertTrue(set.contains(identifier), identifier));
+        assertFalse(set.contains("pkg:maven/org.jboss.pnc.group1/artifact-1@1.1.0.redhat-00002?type=jar"));
+        assertFalse(set.contains("pkg:maven/org.jboss.pnc.group0/artifact-"));
+        assertFalse(set.contains(""));
+    }
+}
@@ -0,0 +1,71 @@
+package org.jboss.pnc.artsync.concurrency;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Budgets without the time-based refill, so that only calls and retries move the balance.
+ */
+class RetryBudgetTest {
+
+    // a budget starts full, with ten retries
+    private static final int MAX = 10;
+
+    @Test
+    void rejectsRetriesOnceExhausted() {
+        RetryBudget budget = new RetryBudget(0.25, 0);
+        for (int i = 0; i < MAX; i++) {
+            assertTrue(budget.tryWithdraw(), "Retry " + i + " rejected");
+        }
+
+        assertFalse(budget.tryWithdraw());
+        assertFalse(budget.tryWithdraw(), "A rejected retry must not be charged");
+        assertEquals(0, budget.getBalance());
+    }
+
+    @Test
+    void callsEarnRetriesBackByRatio() {
+        RetryBudget budget = exhausted(0.25);
+
+        for (int i = 0; i < 3; i++) {
+            budget.deposit();
+        }
+        assertFalse(budget.tryWithdraw(), "Three calls earned a whole retry");
+
+        budget.deposit();
+        assertTrue(budget.tryWithdraw());
+        assertFalse(budget.tryWithdraw());
+    }
+
+    @Test
+    void balanceIsCapped() {
+        RetryBudget budget = exhausted(0.5);
+        for (int i = 0; i < 1000; i++) {
+            budget.deposit();
+        }
+
+        assertEquals(MAX, budget.getBalance());
+        for (int i = 0; i < MAX; i++) {
+            assertTrue(budget.tryWithdraw());
+        }
+        assertFalse(budget.tryWithdraw());
+    }
+
+    @Test
+    void rejectsNegativeBudget() {
+        assertThrows(IllegalArgumentException.class, () -> new RetryBudget(-0.1, 0));
+        assertThrows(IllegalArgumentException.class, () -> new RetryBudget(0.1, -1));
+    }
+
+    private static RetryBudget exhausted(double ratio) {
+        RetryBudget budget = new RetryBudget(ratio, 0);
+        while (budget.tryWithdraw()) {
+            // spend the initial balance
+        }
+        return budget;
+    }
+}
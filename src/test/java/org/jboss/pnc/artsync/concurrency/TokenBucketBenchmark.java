@@ -0,0 +1,100 @@
+package org.jboss.pnc.artsync.concurrency;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Overhead of {@link TokenBucket} acquisitions which never wait for tokens (the lock and the lane bookkeeping), alone
+ * and contended, and throughput of the lanes sharing a bucket which runs out of tokens and dispatches the waiters from
+ * its scheduler.
+ *
+ * Run after {@code mvn test-compile} with
+ * {@code java -cp target/test-classes:target/classes:<test classpath> org.openjdk.jmh.Main TokenBucketBenchmark}
+ * (the classpath from {@code mvn dependency:build-classpath -Dmdep.includeScope=test}).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TokenBucketBenchmark {
+
+    // tokens per second of the bucket which runs out of them
+    private static final int LIMITED_RATE = 1_000_000;
+
+    @Param({"1", "10"})
+    public int tokens;
+
+    private ScheduledExecutorService scheduler;
+
+    // refills a token per nanosecond, faster than the threads can take them
+    private TokenBucket unlimited;
+
+    private TokenBucket limited;
+
+    @Setup
+    public void setUp() {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        unlimited = new TokenBucket(scheduler, 1_000_000_000L, Integer.MAX_VALUE, Duration.ofSeconds(1),
+            Duration.ofMinutes(1), Duration.ofSeconds(10), null);
+        limited = new TokenBucket(scheduler, LIMITED_RATE / 100, LIMITED_RATE, Duration.ofSeconds(1),
+            Duration.ofMinutes(1), Duration.ofMillis(100), null);
+    }
+
+    @TearDown
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void uncontended() {
+        unlimited.acquire(Lane.DATA, tokens).join();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void contended() {
+        unlimited.acquire(Lane.DATA, tokens).join();
+    }
+
+    @Benchmark
+    @Group("lanes")
+    @GroupThreads(1)
+    public void control() {
+        limited.acquire(Lane.CONTROL, tokens).join();
+    }
+
+    @Benchmark
+    @Group("lanes")
+    @GroupThreads(2)
+    public void verification() {
+        limited.acquire(Lane.VERIFICATION, tokens).join();
+    }
+
+    @Benchmark
+    @Group("lanes")
+    @GroupThreads(4)
+    public void data() {
+        limited.acquire(Lane.DATA, tokens).join();
+    }
+}
@@ -0,0 +1,110 @@
+package org.jboss.pnc.artsync.concurrency;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Buckets refill a token per hour, so nothing refills during a test unless it raises the rate. The order of the
+ * grants doesn't depend on the timing.
+ */
+class TokenBucketTest {
+
+    private static final Duration HOUR = Duration.ofHours(1);
+
+    private ScheduledExecutorService scheduler;
+
+    private final List<String> granted = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @AfterEach
+    void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    void grantsBurstUpToCapacityRightAway() {
+        TokenBucket bucket = bucket(10, Duration.ofDays(1));
+
+        assertTrue(bucket.acquire(4).isDone());
+        assertTrue(bucket.acquire(6).isDone());
+        assertFalse(bucket.acquire(1).isDone());
+        assertEquals(1, bucket.getNumberOfWaiting());
+    }
+
+    @Test
+    void rejectsRequestWaitingLongerThanMaxWait() {
+        TokenBucket bucket = bucket(10, Duration.ofMinutes(1));
+        bucket.acquire(10);
+
+        ExecutionException rejected = assertThrows(ExecutionException.class, () -> bucket.acquire(1).get());
+        assertInstanceOf(RejectedExecutionException.class, rejected.getCause());
+        assertEquals(0, bucket.getNumberOfWaiting());
+    }
+
+    @Test
+    void oversizedRequestBorrowsFollowingTokens() {
+        TokenBucket bucket = bucket(2, Duration.ofDays(1));
+
+        assertTrue(bucket.acquire(5).isDone());
+        assertEquals(0, bucket.getAvailableTokens());
+        assertFalse(bucket.acquire(1).isDone(), "The debt of the oversized request wasn't paid off");
+    }
+
+    @Test
+    void servesHigherLanesFirst() throws Exception {
+        TokenBucket bucket = bucket(1, Duration.ofDays(1));
+        bucket.acquire(1);
+        CompletableFuture<?> all = CompletableFuture.allOf(
+            acquire(bucket, Lane.DATA, 1, "data"),
+            acquire(bucket, Lane.VERIFICATION, 1, "verification"),
+            acquire(bucket, Lane.CONTROL, 1, "control"));
+
+        bucket.setRate(1000, Duration.ofSeconds(1));
+        all.get(30, TimeUnit.SECONDS);
+
+        assertEquals(List.of("control", "verification", "data"), granted);
+    }
+
+    @Test
+    void heavyRequestIsNotOvertakenInItsLane() throws Exception {
+        TokenBucket bucket = bucket(4, Duration.ofDays(1));
+        bucket.acquire(4);
+        CompletableFuture<?> all = CompletableFuture.allOf(
+            acquire(bucket, Lane.DATA, 3, "heavy"),
+            acquire(bucket, Lane.DATA, 1, "light"));
+
+        bucket.setRate(1000, Duration.ofSeconds(1));
+        all.get(30, TimeUnit.SECONDS);
+
+        assertEquals(List.of("heavy", "light"), granted);
+    }
+
+    private TokenBucket bucket(long capacity, Duration maxWait) {
+        return new TokenBucket(scheduler, capacity, 1, HOUR, maxWait, Duration.ofDays(1), null);
+    }
+
+    private CompletableFuture<Void> acquire(TokenBucket bucket, Lane lane, int tokens, String name) {
+        return bucket.acquire(lane, tokens).thenRun(() -> granted.add(name));
+    }
+}
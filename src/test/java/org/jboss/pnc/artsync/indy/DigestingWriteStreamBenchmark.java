@@ -0,0 +1,161 @@
+package org.jboss.pnc.artsync.indy;
+
+import io.netty.buffer.Unpooled;
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.AsyncFile;
+import io.vertx.core.file.OpenOptions;
+import io.vertx.core.streams.WriteStream;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Download of a multi-GB file into disk with its size and SHA-256 computed while writing
+ * ({@link DigestingWriteStream}, fed from direct buffers) against writing it first and reading it again with the
+ * content copied to heap (how downloads were verified before).
+ *
+ * The content comes from a direct buffer of the size of a Netty read, like a response body. Needs twice
+ * {@link #gigabytes} of free space in {@code java.io.tmpdir}, the page cache makes the re-read cheaper than on a busy
+ * node.
+ *
+ * Run after {@code mvn test-compile} with
+ * {@code java -cp target/test-classes:target/classes:<test classpath> org.openjdk.jmh.Main DigestingWriteStreamBenchmark}
+ * (the classpath from {@code mvn dependency:build-classpath -Dmdep.includeScope=test}).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DigestingWriteStreamBenchmark {
+
+    private static final int CHUNK = 16 * 1024;
+
+    private static final long GIGABYTE = 1024L * 1024 * 1024;
+
+    @Param({"2", "4"})
+    public int gigabytes;
+
+    private Vertx vertx;
+
+    private Context context;
+
+    private Buffer chunk;
+
+    private Path file;
+
+    @Setup
+    public void setUp() {
+        vertx = Vertx.vertx();
+        context = vertx.getOrCreateContext();
+        byte[] random = new byte[CHUNK];
+        ThreadLocalRandom.current().nextBytes(random);
+        chunk = Buffer.buffer(Unpooled.directBuffer(CHUNK).writeBytes(random));
+    }
+
+    @Setup(Level.Iteration)
+    public void createFile() throws IOException {
+        file = Files.createTempFile("digesting-write-stream", ".bin");
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteFile() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @TearDown
+    public void tearDown() {
+        vertx.close().toCompletionStage().toCompletableFuture().join();
+    }
+
+    @Benchmark
+    public String digestWhileWriting() {
+        DigestingWriteStream stream = new DigestingWriteStream(open(), DigestUtils.getSha256Digest());
+        write(stream).join();
+        return stream.getSize() + ":" + stream.getHexDigest();
+    }
+
+    @Benchmark
+    public String writeThenDigest() {
+        write(open()).join();
+        return reread().join();
+    }
+
+    /**
+     * Opens the file on the context of the writes, an AsyncFile is used only from the context that opened it.
+     */
+    private AsyncFile open() {
+        CompletableFuture<AsyncFile> opened = new CompletableFuture<>();
+        context.runOnContext(ign -> vertx.fileSystem()
+            .open(file.toString(), new OpenOptions().setWrite(true).setTruncateExisting(true))
+            .onSuccess(opened::complete)
+            .onFailure(opened::completeExceptionally));
+        return opened.join();
+    }
+
+    /**
+     * Writes the chunk until the file has {@link #gigabytes}, respecting the back-pressure of the stream.
+     */
+    private CompletableFuture<Void> write(WriteStream<Buffer> stream) {
+        long chunks = gigabytes * GIGABYTE / CHUNK;
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        context.runOnContext(ign -> new Runnable() {
+            private long written = 0;
+
+            @Override
+            public void run() {
+                while (written < chunks && !stream.writeQueueFull()) {
+                    stream.write(chunk);
+                    written++;
+                }
+                if (written < chunks) {
+                    stream.drainHandler(drained -> run());
+                } else {
+                    // the file drains again while ending
+                    stream.drainHandler(null);
+                    stream.end().onSuccess(done::complete).onFailure(done::completeExceptionally);
+                }
+            }
+        }.run());
+        return done;
+    }
+
+    private CompletableFuture<String> reread() {
+        CompletableFuture<String> done = new CompletableFuture<>();
+        MessageDigest sha256 = DigestUtils.getSha256Digest();
+        long[] size = {0};
+        context.runOnContext(ign -> vertx.fileSystem().open(file.toString(), new OpenOptions().setRead(true))
+            .onFailure(done::completeExceptionally)
+            .onSuccess(read -> read
+                .handler(buffer -> {
+                    size[0] += buffer.length();
+                    sha256.update(buffer.getBytes());
+                })
+                .exceptionHandler(done::completeExceptionally)
+                .endHandler(end -> done.complete(size[0] + ":" + Hex.encodeHexString(sha256.digest())))));
+        return done;
+    }
+}
@@ -0,0 +1,125 @@
+package org.jboss.pnc.artsync.indy;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Promise;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.streams.WriteStream;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Writes into a delegate which completes them only when told to, in any order.
+ */
+class DigestingWriteStreamTest {
+
+    @Test
+    void countsWritesCompletedOutOfOrderInTheirWriteOrder() {
+        ManualWriteStream delegate = new ManualWriteStream();
+        DigestingWriteStream stream = new DigestingWriteStream(delegate, DigestUtils.getSha256Digest());
+        stream.write(Buffer.buffer("first "));
+        stream.write(Buffer.buffer("second "), null);
+        stream.write(Buffer.buffer("third"));
+
+        delegate.complete(2, true);
+        assertEquals(0, stream.getSize(), "Counted a write completed before an earlier one");
+
+        delegate.complete(0, true);
+        assertEquals("first ".length(), stream.getSize());
+
+        delegate.complete(1, true);
+        assertEquals("first second third".length(), stream.getSize());
+        assertEquals(DigestUtils.sha256Hex("first second third"), stream.getHexDigest());
+    }
+
+    @Test
+    void countsNothingAfterFailedWrite() {
+        ManualWriteStream delegate = new ManualWriteStream();
+        DigestingWriteStream stream = new DigestingWriteStream(delegate, DigestUtils.getSha256Digest());
+        stream.write(Buffer.buffer("first "));
+        stream.write(Buffer.buffer("second "));
+        stream.write(Buffer.buffer("third"));
+
+        delegate.complete(2, true);
+        delegate.complete(1, false);
+        delegate.complete(0, true);
+        assertEquals("first ".length(), stream.getSize());
+
+        stream.write(Buffer.buffer("fourth"));
+        delegate.complete(3, true);
+        assertEquals("first ".length(), stream.getSize(), "Counted a write after the gap");
+        assertEquals(DigestUtils.sha256Hex("first "), stream.getHexDigest());
+    }
+
+    @Test
+    void continuesWithSizeAndDigest() {
+        ManualWriteStream first = new ManualWriteStream();
+        DigestingWriteStream stream = new DigestingWriteStream(first, DigestUtils.getSha256Digest());
+        stream.write(Buffer.buffer("first "));
+        first.complete(0, true);
+
+        ManualWriteStream next = new ManualWriteStream();
+        DigestingWriteStream continued = stream.continueInto(next);
+        continued.write(Buffer.buffer("second"));
+        next.complete(0, true);
+
+        assertEquals("first second".length(), continued.getSize());
+        assertEquals(DigestUtils.sha256Hex("first second"), continued.getHexDigest());
+    }
+
+    private static final class ManualWriteStream implements WriteStream<Buffer> {
+
+        private final List<Promise<Void>> writes = new ArrayList<>();
+
+        void complete(int write, boolean succeeded) {
+            if (succeeded) {
+                writes.get(write).complete();
+            } else {
+                writes.get(write).fail("Write " + write + " failed");
+            }
+        }
+
+        @Override
+        public Future<Void> write(Buffer data) {
+            Promise<Void> write = Promise.promise();
+            writes.add(write);
+            return write.future();
+        }
+
+        @Override
+        public void write(Buffer data, Handler<AsyncResult<Void>> handler) {
+            write(data).onComplete(handler);
+        }
+
+        @Override
+        public void end(Handler<AsyncResult<Void>> handler) {
+            handler.handle(Future.succeededFuture());
+        }
+
+        @Override
+        public WriteStream<Buffer> exceptionHandler(Handler<Throwable> handler) {
+            return this;
+        }
+
+        @Override
+        public WriteStream<Buffer> setWriteQueueMaxSize(int maxSize) {
+            return this;
+        }
+
+        @Override
+        public boolean writeQueueFull() {
+            return false;
+        }
+
+        @Override
+        public WriteStream<Buffer> drainHandler(Handler<Void> handler) {
+            return this;
+        }
+    }
+}
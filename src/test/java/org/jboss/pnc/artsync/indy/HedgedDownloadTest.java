@@ -0,0 +1,160 @@
+package org.jboss.pnc.artsync.indy;
+
+import io.vertx.core.Vertx;
+import org.jboss.pnc.artsync.concurrency.ByteAdmissionController;
+import org.jboss.pnc.artsync.pnc.Result;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Both downloads are completed by the tests, each writes its own content into the file it was given.
+ */
+class HedgedDownloadTest {
+
+    private static final long SIZE = 1024;
+
+    private static final Duration NOW = Duration.ZERO;
+
+    private static final Duration NEVER = Duration.ofHours(1);
+
+    @TempDir
+    Path dir;
+
+    private Vertx vertx;
+
+    private ScheduledExecutorService scheduler;
+
+    private ByteAdmissionController diskBudget;
+
+    private final Download primary = new Download("indy");
+
+    private final Download hedge = new Download("origin");
+
+    @BeforeEach
+    void setUp() {
+        vertx = Vertx.vertx();
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        diskBudget = new ByteAdmissionController(10 * SIZE, () -> Long.MAX_VALUE);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        scheduler.shutdownNow();
+        vertx.close().toCompletionStage().toCompletableFuture().get(30, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void primaryWins() throws Exception {
+        CompletableFuture<Result<String>> result = start(NOW);
+        hedge.started.get(30, TimeUnit.SECONDS);
+        assertEquals(SIZE, diskBudget.getBytesInFlight(), "Hedge didn't reserve its copy");
+
+        primary.succeed();
+
+        assertInstanceOf(Result.Success.class, result.get(30, TimeUnit.SECONDS));
+        assertEquals("indy", Files.readString(destination()));
+        assertTrue(hedge.download.isCancelled());
+        awaitReleased();
+    }
+
+    @Test
+    void hedgeWins() throws Exception {
+        CompletableFuture<Result<String>> result = start(NOW);
+        hedge.started.get(30, TimeUnit.SECONDS);
+
+        hedge.succeed();
+
+        assertInstanceOf(Result.Success.class, result.get(30, TimeUnit.SECONDS));
+        assertEquals("origin", Files.readString(destination()));
+        assertTrue(primary.download.isCancelled());
+        awaitReleased();
+    }
+
+    @Test
+    void fallsBackToOriginWithoutReservingWhenIndyHasNoContent() throws Exception {
+        CompletableFuture<Result<String>> result = start(NEVER);
+
+        primary.download.complete(new Result.Error.ClientError.NotFound("indy"));
+        hedge.started.get(30, TimeUnit.SECONDS);
+        assertEquals(0, diskBudget.getBytesInFlight(), "Fallback is not a second copy");
+        hedge.succeed();
+
+        assertInstanceOf(Result.Success.class, result.get(30, TimeUnit.SECONDS));
+        assertEquals("origin", Files.readString(destination()));
+        assertEquals(0, diskBudget.getBytesInFlight());
+    }
+
+    @Test
+    void reportsErrorOfIndyWhenNeitherSucceeds() throws Exception {
+        CompletableFuture<Result<String>> result = start(NOW);
+        hedge.started.get(30, TimeUnit.SECONDS);
+
+        hedge.download.complete(new Result.Error.ServerError.SystemError("origin"));
+        primary.download.complete(new Result.Error.ServerError.SystemError("indy"));
+
+        assertEquals(new Result.Error.ServerError.SystemError("indy"), result.get(30, TimeUnit.SECONDS));
+        assertFalse(Files.exists(destination()));
+        awaitReleased();
+    }
+
+    private CompletableFuture<Result<String>> start(Duration delay) {
+        FileSize file = new FileSize(destination().toFile(), SIZE, "sha256");
+        return new HedgedDownload(vertx.fileSystem(), diskBudget, file, primary::start, hedge::start)
+            .start(scheduler, delay);
+    }
+
+    private Path destination() {
+        return dir.resolve("file.jar");
+    }
+
+    /**
+     * The bytes of the second copy are released once the extra file is deleted, after the result.
+     */
+    private void awaitReleased() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (diskBudget.getBytesInFlight() != 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, diskBudget.getBytesInFlight(), "Hedge didn't release its copy");
+    }
+
+    private static final class Download {
+
+        private final String content;
+
+        private final CompletableFuture<Result<String>> download = new CompletableFuture<>();
+
+        private final CompletableFuture<FileSize> started = new CompletableFuture<>();
+
+        private Download(String content) {
+            this.content = content;
+        }
+
+        private CompletableFuture<Result<String>> start(FileSize file) {
+            started.complete(file);
+            return download;
+        }
+
+        private void succeed() throws IOException {
+            FileSize file = started.join();
+            Files.writeString(file.file().toPath(), content);
+            download.complete(new Result.Success<>(file.file().getPath()));
+        }
+    }
+}
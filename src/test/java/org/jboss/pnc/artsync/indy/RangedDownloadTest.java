@@ -0,0 +1,142 @@
+package org.jboss.pnc.artsync.indy;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.HttpServerRequest;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.jboss.pnc.artsync.pnc.Result;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Downloads from a local server whose first response is cut after half of the content.
+ */
+class RangedDownloadTest {
+
+    private static final int SIZE = 256 * 1024;
+
+    private static final byte[] CONTENT = new byte[SIZE];
+
+    static {
+        new Random(42).nextBytes(CONTENT);
+    }
+
+    @TempDir
+    Path dir;
+
+    private Vertx vertx;
+
+    private HttpServer server;
+
+    private HttpClient client;
+
+    // Range headers of the GET requests, null for none
+    private final List<String> ranges = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    void startVertx() {
+        vertx = Vertx.vertx();
+        client = vertx.createHttpClient();
+    }
+
+    @AfterEach
+    void stopVertx() throws Exception {
+        vertx.close().toCompletionStage().toCompletableFuture().get(30, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void resumesFromLastWrittenByteAfterReset() throws Exception {
+        serve(request -> {
+            if (ranges.size() == 1) {
+                cutAfterHalf(request);
+            } else {
+                long from = Long.parseLong(request.getHeader("Range").replaceAll("bytes=(\\d+)-", "$1"));
+                request.response()
+                    .setStatusCode(206)
+                    .putHeader(HttpHeaders.CONTENT_RANGE, "bytes " + from + "-" + (SIZE - 1) + "/" + SIZE)
+                    .end(Buffer.buffer(CONTENT).slice((int) from, SIZE));
+            }
+        });
+
+        RangedDownload download = download();
+        assertInstanceOf(Result.Success.class, run(download));
+
+        assertEquals(2, ranges.size());
+        assertNull(ranges.getFirst());
+        assertEquals("bytes=" + SIZE / 2 + "-", ranges.get(1));
+        assertDownloaded(download);
+    }
+
+    @Test
+    void startsOverWhenRangeIsAnsweredWithWholeContent() throws Exception {
+        serve(request -> {
+            if (ranges.size() == 1) {
+                cutAfterHalf(request);
+            } else {
+                request.response().setStatusCode(200).end(Buffer.buffer(CONTENT));
+            }
+        });
+
+        RangedDownload download = download();
+        assertInstanceOf(Result.Success.class, run(download));
+
+        assertEquals("bytes=" + SIZE / 2 + "-", ranges.get(1));
+        assertDownloaded(download);
+    }
+
+    private void serve(Consumer<HttpServerRequest> handler) throws Exception {
+        server = vertx.createHttpServer()
+            .requestHandler(request -> {
+                ranges.add(request.getHeader("Range"));
+                handler.accept(request);
+            })
+            .listen(0)
+            .toCompletionStage().toCompletableFuture().get(30, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Sends the first half of the content and closes the connection once it's flushed.
+     */
+    private static void cutAfterHalf(HttpServerRequest request) {
+        request.response()
+            .setStatusCode(200)
+            .putHeader(HttpHeaders.CONTENT_LENGTH, String.valueOf(SIZE))
+            .write(Buffer.buffer(CONTENT).slice(0, SIZE / 2))
+            .onComplete(ign -> request.connection().close());
+    }
+
+    private RangedDownload download() {
+        URI uri = URI.create("http://localhost:" + server.actualPort() + "/api/content/maven/group/static/file.jar");
+        return new RangedDownload(client, vertx.fileSystem(), uri, dir.resolve("file.jar").toString(), SIZE, 1, 1,
+            (status, body) -> new Result.Error.ServerError.SystemError(status + " " + body));
+    }
+
+    private static Result<Void> run(RangedDownload download) throws Exception {
+        return download.run().toCompletionStage().toCompletableFuture().get(30, TimeUnit.SECONDS);
+    }
+
+    private void assertDownloaded(RangedDownload download) throws Exception {
+        assertArrayEquals(CONTENT, Files.readAllBytes(dir.resolve("file.jar")));
+        assertEquals(SIZE, download.getSize());
+        assertEquals(DigestUtils.sha256Hex(CONTENT), download.getHexDigest());
+    }
+}